@@ -1,5 +1,8 @@
 package org.gitub.pm2media;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -23,6 +26,9 @@ public class Article {
 	/** the attachments (files, images) the article contains. */
 	private Set<Attachment> attachments;
 
+	/** The link the article was read from, null if not known. */
+	private String link;
+
 	/**
 	 * Class constructor specifying name and text of the article.
 	 * 
@@ -62,6 +68,35 @@ public class Article {
 		return namespace + separator + name;
 	}
 
+	/**
+	 * Gets the link the article was read from, to read it again after a
+	 * failure.
+	 * 
+	 * @return the link to the PmWiki article, or null if not known
+	 */
+	public final String getLink() {
+		return link;
+	}
+
+	/**
+	 * Sets the link the article was read from.
+	 * 
+	 * @param link
+	 *            the link to the PmWiki article
+	 */
+	public final void setLink(final String link) {
+		this.link = link;
+	}
+
+	/**
+	 * Gets the namespace (group) of the article.
+	 * 
+	 * @return the namespace of the article
+	 */
+	public final String getNamespace() {
+		return namespace;
+	}
+
 	/**
 	 * Gets the body of the article.
 	 * 
@@ -93,4 +128,28 @@ public class Article {
 	public final void convertBody(final PmWiki2MediaWikiConverter converter) {
 		body = converter.convertMarkup(body);
 	}
+
+	/**
+	 * Gets the SHA-1 of the body as MediaWiki reports it for revisions.
+	 * MediaWiki normalizes the text when saving it, removing whitespace at
+	 * the end and turning CR LF and CR into LF, so the body is hashed the
+	 * same way.
+	 * 
+	 * @return the SHA-1 of the UTF-8 encoded, normalized body in hex
+	 */
+	public final String getBodySha1() {
+		String saved = body.replaceAll("\\s+$", "").replace("\r\n", "\n").replace('\r', '\n');
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(saved.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(40);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 }
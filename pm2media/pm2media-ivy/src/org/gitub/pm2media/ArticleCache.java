@@ -1,74 +1,206 @@
 package org.gitub.pm2media;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 import org.apache.commons.io.FileUtils;
 
 /**
  * Class to cache articles on local disk.
- * 
+ *
+ * Each article is kept in a file named after the hex SHA-256 of the article
+ * name, in directories named after the first two pairs of digits
+ * (ab/cd/abcd...), so no directory holds more than a few hundred entries
+ * however many articles there are.  An entry starts with a header line
+ * giving the length and CRC-32 of the body; an entry which does not match
+ * its header, for instance one cut short by a crash, is dropped and the
+ * article fetched again.  Entries are written to a temporary file first and
+ * renamed into place, so a reader sees the old entry or the new one.
+ *
+ * With pm2media.articleCache.format=packed, forName() returns a
+ * PackedArticleCache instead, which keeps all articles in one file.
+ *
  * @author smootp
  *
  */
 public class ArticleCache {
+	private static final String HEADER_PREFIX = "pm2media-cache 1 ";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Packed caches by name, shared because one segment takes one writer. */
+	private static final Map<String, PackedArticleCache> packedCaches = new HashMap<String, PackedArticleCache>();
+
+	/**
+	 * Returns the cache of the given name in the format set by
+	 * pm2media.articleCache.format, "files" or "packed".
+	 */
+	public static ArticleCache forName(final String cacheName) {
+		if (!"packed".equals(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.ARTICLE_CACHE_FORMAT, "files").trim())) {
+			return new ArticleCache(cacheName);
+		}
+		synchronized (packedCaches) {
+			PackedArticleCache cache = packedCaches.get(cacheName);
+			if (cache == null) {
+				try {
+					cache = new PackedArticleCache(cacheName);
+				} catch (IOException e) {
+					Logger.getInstance().logError("Could not open packed " + cacheName + " cache, using one file per article: "
+							+ e.getLocalizedMessage());
+					return new ArticleCache(cacheName);
+				}
+				packedCaches.put(cacheName, cache);
+			}
+			return cache;
+		}
+	}
+
 	private final String cacheDirectoryName;
-	
-	private void createCacheDir(final String directoryName) {
-		File cacheDir = new File(directoryName);
-		
+
+	/** Fan-out directories known to exist. */
+	private final Set<File> directories = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+	private void createCacheDir(final File directory) {
+		if (directories.contains(directory)) {
+			return;
+		}
 		try {
-			if (! cacheDir.exists()) {
-				cacheDir.mkdirs();
+			if (! directory.exists()) {
+				directory.mkdirs();
 			}
+			directories.add(directory);
 		} catch (SecurityException e) {
 			Logger.getInstance().logError("Could not create cache directory.");
 			e.printStackTrace();
 		}
 	}
-	
+
 	public ArticleCache(final String cacheName) {
-		cacheDirectoryName = Pm2MediaPrefs.getProperty(String.format(Pm2MediaPrefs.CACHE_NAME_FORMAT, cacheName), 
+		cacheDirectoryName = Pm2MediaPrefs.getProperty(String.format(Pm2MediaPrefs.CACHE_NAME_FORMAT, cacheName),
 				cacheName + "-cache");
 	}
-	
+
+	protected String getCacheDirectoryName() {
+		return cacheDirectoryName;
+	}
+
 	public void cleanCache() {
 		File cacheDirectory = new File(cacheDirectoryName);
-	
+
 		FileUtils.deleteQuietly(cacheDirectory);
+		directories.clear();
+	}
+
+	/**
+	 * Returns the file an article is cached in.
+	 */
+	public File getCacheFile(final String articleName) {
+		String hash;
+		try {
+			hash = AttachmentStore.toHex(AttachmentStore.newDigest().digest(articleName.getBytes(UTF8)));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return new File(new File(new File(cacheDirectoryName, hash.substring(0, 2)), hash.substring(2, 4)), hash);
 	}
-	
+
 	public void cacheArticle(final String articleName, final String articleBody) {
-		File cachedArticle = new File(cacheDirectoryName + "/" + articleName);
-		createCacheDir(cachedArticle.getParent());
+		File cachedArticle = getCacheFile(articleName);
+		File tmpDirectory = new File(cacheDirectoryName, "tmp");
+		createCacheDir(tmpDirectory);
+		createCacheDir(cachedArticle.getParentFile());
+
+		byte[] body = articleBody.getBytes(UTF8);
+		File tmpFile = null;
 		try {
-			FileUtils.writeStringToFile(cachedArticle, articleBody);
+			tmpFile = File.createTempFile("article", ".part", tmpDirectory);
+			OutputStream output = new FileOutputStream(tmpFile);
+			try {
+				output.write(header(body).getBytes(UTF8));
+				output.write(body);
+			} finally {
+				output.close();
+			}
+			try {
+				Files.move(tmpFile.toPath(), cachedArticle.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), cachedArticle.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
 		} catch (IOException e) {
 			// Don't worry, it just won't be cached.
-			;
+			if (tmpFile != null) {
+				tmpFile.delete();
+			}
 		}
 	}
 
 	public boolean isArticleCached(final String articleName) {
-		File cachedArticleName = new File(cacheDirectoryName + "/" + articleName);
-		return cachedArticleName.exists();
+		return getCacheFile(articleName).exists();
 	}
-	
-	public String getCachedArticle(final String articleName) {
-		File cachedArticle = new File(cacheDirectoryName + "/" + articleName);
-		String articleBody = "";
 
-		if (isArticleCached(articleName)) {
-			try {
-				articleBody = FileUtils.readFileToString(cachedArticle);
-			} catch (IOException e) {
+	/**
+	 * Returns the cached body of an article.
+	 *
+	 * @return the body, or null if the article is not cached or its entry is
+	 *         damaged
+	 */
+	public String getCachedArticle(final String articleName) {
+		File cachedArticle = getCacheFile(articleName);
+		byte[] entry;
+		try {
+			entry = FileUtils.readFileToByteArray(cachedArticle);
+		} catch (IOException e) {
+			if (cachedArticle.exists()) {
 				Logger.getInstance().logError(
 						"Failed to read article " + articleName
 								+ " from cache.");
 				e.printStackTrace();
 			}
+			return null;
+		}
+
+		String body = parse(entry);
+		if (body == null) {
+			Logger.getInstance().logError("Cached article " + articleName + " is damaged, fetching it again.");
+			cachedArticle.delete();
 		}
-		
-		return articleBody;
+		return body;
+	}
+
+	/**
+	 * Returns the body of an entry, or null if it does not match its header.
+	 */
+	private static String parse(final byte[] entry) {
+		int newline = -1;
+		for (int i = 0; i < entry.length; i++) {
+			if (entry[i] == '\n') {
+				newline = i;
+				break;
+			}
+		}
+		if (newline < 0) {
+			return null;
+		}
+		String header = new String(entry, 0, newline + 1, UTF8);
+		byte[] body = new byte[entry.length - newline - 1];
+		System.arraycopy(entry, newline + 1, body, 0, body.length);
+		return header.equals(header(body)) ? new String(body, UTF8) : null;
+	}
+
+	private static String header(final byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		return HEADER_PREFIX + body.length + " " + Long.toHexString(crc.getValue()) + "\n";
 	}
 }
@@ -0,0 +1,22 @@
+package org.gitub.pm2media;
+
+import java.io.IOException;
+
+/**
+ * File the converted articles are written into instead of being posted, for
+ * loading them into the MediaWiki in bulk.
+ *
+ * @author smootp
+ *
+ */
+public interface ArticleDump {
+	/**
+	 * Appends an article to the dump.
+	 */
+	void write(Article article) throws IOException;
+
+	/**
+	 * Completes the dump.  Nothing may be written afterwards.
+	 */
+	void close() throws IOException;
+}
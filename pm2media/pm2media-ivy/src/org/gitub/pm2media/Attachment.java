@@ -1,5 +1,7 @@
 package org.gitub.pm2media;
 
+import java.io.File;
+
 /**
  * Attachment is the class to save files or images being on an article page in
  * the Article class.
@@ -14,6 +16,21 @@ public class Attachment {
 	/** URL to file on source wiki. */
 	private String fileURL;
 
+	/** Downloaded copy of the file in the AttachmentStore, null before the download. */
+	private File localFile;
+
+	/** Hex SHA-256 of the downloaded file. */
+	private String sha256;
+
+	/** Size in bytes the PmWiki announced, -1 if not known. */
+	private long size = -1;
+
+	/** Content type the PmWiki announced, null if not known. */
+	private String contentType;
+
+	/** ETag the PmWiki announced, null if not known. */
+	private String etag;
+
 	/**
 	 * Class constructor specifying file and filename.
 	 * 
@@ -64,4 +81,78 @@ public class Attachment {
 	public final void setFileURL(final String fileURL) {
 		this.fileURL = fileURL;
 	}
+
+	/**
+	 * Returns the downloaded copy of the file.
+	 * 
+	 * @return the local file, or null if the file has not been downloaded
+	 */
+	public final File getLocalFile() {
+		return localFile;
+	}
+
+	/**
+	 * Returns the hex SHA-256 of the downloaded file.
+	 * 
+	 * @return the hash, or null if the file has not been downloaded
+	 */
+	public final String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * Sets the downloaded copy of the file and its hash.
+	 * 
+	 * @param localFile
+	 *            the local file
+	 * @param sha256
+	 *            the hex SHA-256 of the file
+	 */
+	public final void setLocalFile(final File localFile, final String sha256) {
+		this.localFile = localFile;
+		this.sha256 = sha256;
+	}
+
+	/**
+	 * Returns the size the PmWiki announced for the file.
+	 * 
+	 * @return the size in bytes, or -1 if not known
+	 */
+	public final long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the content type the PmWiki announced for the file.
+	 * 
+	 * @return the content type, or null if not known
+	 */
+	public final String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Returns the ETag the PmWiki announced for the file.
+	 * 
+	 * @return the ETag, or null if not known
+	 */
+	public final String getETag() {
+		return etag;
+	}
+
+	/**
+	 * Sets what the PmWiki announced for the file before it was downloaded.
+	 * 
+	 * @param size
+	 *            the size in bytes, -1 if not known
+	 * @param contentType
+	 *            the content type, null if not known
+	 * @param etag
+	 *            the ETag, null if not known
+	 */
+	public final void setRemoteInfo(final long size, final String contentType, final String etag) {
+		this.size = size;
+		this.contentType = contentType;
+		this.etag = etag;
+	}
 }
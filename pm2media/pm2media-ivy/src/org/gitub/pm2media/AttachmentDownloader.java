@@ -0,0 +1,340 @@
+package org.gitub.pm2media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+
+/**
+ * Downloads attachments into the AttachmentStore.  The response is
+ * transferred into a partial file named after the URL by FileChannel
+ * transfers.  If the connection breaks, the download continues where it
+ * stopped with an HTTP Range request, in the same run or the next one.
+ * If-Range makes the server send the whole file again if it changed in
+ * between.  A part whose ETag differs from the one the AttachmentProber was
+ * given is stale already and fetched whole without a Range request.
+ *
+ * A completed file is checked against the length the server announced and
+ * against a Content-MD5 or "Digest: SHA-256=" header if there is one, before
+ * it is moved into the store.
+ *
+ * @author smootp
+ *
+ */
+public class AttachmentDownloader {
+	/** Bytes per FileChannel transfer. */
+	private static final long TRANSFER_SIZE = 1024 * 1024;
+
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+	private static final Pattern SHA256_DIGEST = Pattern.compile("(?i)(?:^|,)\\s*SHA-256=([^,\\s]+)");
+
+	private final AttachmentStore store;
+
+	private int maxAttempts = 5;
+	public AttachmentDownloader withMaxAttempts(final int maxAttempts) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		return this;
+	}
+
+	private long retryDelayMillis = 2000;
+	public AttachmentDownloader withRetryDelayMillis(final long retryDelayMillis) {
+		this.retryDelayMillis = retryDelayMillis;
+		return this;
+	}
+
+	private final BasicCredentialsProvider credentials = new BasicCredentialsProvider();
+	public AttachmentDownloader withCredentials(final String username, final String password) {
+		if (username != null && !username.isEmpty()) {
+			credentials.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+		}
+		return this;
+	}
+
+	private final CloseableHttpClient httpClient;
+
+	public AttachmentDownloader(final AttachmentStore store) {
+		this.store = store;
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(30000)
+				.setSocketTimeout(120000)
+				.build();
+		httpClient = HttpClients.custom()
+				.setDefaultRequestConfig(requestConfig)
+				.setDefaultCredentialsProvider(credentials)
+				.setUserAgent(Pm2Media.USER_AGENT)
+				.build();
+	}
+
+	/**
+	 * Returns the stored file for a URL, downloading it first unless the
+	 * store already has it.
+	 *
+	 * @return the file in the store
+	 * @throws IOException
+	 *             if the file could not be downloaded completely within
+	 *             maxAttempts attempts
+	 */
+	public File download(final String url) throws IOException {
+		return download(url, null);
+	}
+
+	/**
+	 * Returns the stored file for a URL, downloading it first unless the
+	 * store already has it.
+	 *
+	 * @param etag
+	 *            the ETag the server announced for the file, null if not
+	 *            known
+	 * @return the file in the store
+	 * @throws IOException
+	 *             if the file could not be downloaded completely within
+	 *             maxAttempts attempts
+	 */
+	public File download(final String url, final String etag) throws IOException {
+		File stored = store.getFile(url);
+		if (stored != null) {
+			Logger.getInstance().log("Found " + url + " in attachment store.");
+			return stored;
+		}
+
+		File partFile = store.getPartialFile(url);
+		IOException lastError = null;
+		for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+			if (attempt > 1) {
+				Logger.getInstance().log("Resuming download of " + url + " at " + partFile.length() + " bytes (attempt "
+						+ attempt + ").");
+				pause(attempt);
+			}
+			try {
+				String sha256 = transfer(url, partFile, etag);
+				File file = store.add(url, partFile, sha256);
+				// left over if the store had the same content from another URL
+				discard(partFile);
+				return file;
+			} catch (HttpResponseException e) {
+				int status = e.getStatusCode();
+				// 416 has discarded the part, the next attempt starts over
+				if (status < 500 && status != 408 && status != 429 && status != 416) {
+					throw e;
+				}
+				lastError = e;
+			} catch (IOException e) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				lastError = e;
+			}
+			Logger.getInstance().logError("Download of " + url + " failed: " + lastError.getLocalizedMessage());
+		}
+		throw lastError;
+	}
+
+	/**
+	 * Requests a file for reading it once, without storing it.  The caller
+	 * must close the response.
+	 *
+	 * @throws HttpResponseException
+	 *             if the server does not send the file
+	 */
+	public CloseableHttpResponse open(final String url) throws IOException {
+		CloseableHttpResponse response = httpClient.execute(new HttpGet(url));
+		int status = response.getStatusLine().getStatusCode();
+		if (status != 200 || response.getEntity() == null) {
+			response.close();
+			throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase() + " for " + url);
+		}
+		return response;
+	}
+
+	public void close() {
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not close attachment downloader: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Fetches the rest of a file into its partial file and checks it.
+	 *
+	 * @param etag
+	 *            the ETag the server announced, null if not known
+	 * @return the hex SHA-256 of the complete file
+	 */
+	private String transfer(final String url, final File partFile, final String etag) throws IOException {
+		File validatorFile = getValidatorFile(partFile);
+		long offset = partFile.length();
+		String validator = offset > 0 && validatorFile.isFile() ? FileUtils.readFileToString(validatorFile, "UTF-8") : null;
+		if (validator == null) {
+			// without ETag or Last-Modified the server cannot tell whether the part is still valid
+			offset = 0;
+		} else if (isStrongETag(validator) && isStrongETag(etag) && !validator.equals(etag)) {
+			// the file changed since the part was fetched, If-Range would get all of it anyway
+			Logger.getInstance().log("Part of " + url + " is outdated, downloading it again.");
+			offset = 0;
+		}
+
+		HttpGet request = new HttpGet(url);
+		if (offset > 0) {
+			request.setHeader("Range", "bytes=" + offset + "-");
+			request.setHeader("If-Range", validator);
+		}
+
+		CloseableHttpResponse response = httpClient.execute(request);
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			long total;
+			if (status == 206) {
+				Header contentRange = response.getFirstHeader("Content-Range");
+				Matcher matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange.getValue());
+				if (matcher == null || !matcher.matches() || Long.parseLong(matcher.group(1)) != offset) {
+					discard(partFile);
+					throw new IOException("Unexpected Content-Range " + (contentRange == null ? "" : contentRange.getValue()));
+				}
+				total = matcher.group(3).equals("*") ? -1 : Long.parseLong(matcher.group(3));
+			} else if (status == 200) {
+				offset = 0;
+				total = entity == null ? -1 : entity.getContentLength();
+			} else {
+				if (status == 416) {
+					// the part does not fit the file on the server any more
+					discard(partFile);
+				}
+				throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase() + " for " + url);
+			}
+			saveValidator(response, validatorFile);
+
+			long position = offset;
+			FileChannel output = new RandomAccessFile(partFile, "rw").getChannel();
+			try {
+				output.truncate(offset);
+				if (entity != null) {
+					ReadableByteChannel input = Channels.newChannel(entity.getContent());
+					long transferred;
+					while ((transferred = output.transferFrom(input, position, TRANSFER_SIZE)) > 0) {
+						position += transferred;
+					}
+				}
+			} finally {
+				output.close();
+			}
+
+			if (total >= 0 && position != total) {
+				throw new IOException("Download of " + url + " ended after " + position + " of " + total + " bytes");
+			}
+			return verify(url, partFile, status == 200 ? response.getFirstHeader("Content-MD5") : null,
+					response.getFirstHeader("Digest"));
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Hashes a complete file and compares it with the checksums the server
+	 * sent.  A file which does not match is discarded.
+	 *
+	 * @return the hex SHA-256 of the file
+	 */
+	private String verify(final String url, final File partFile, final Header contentMd5, final Header digest)
+			throws IOException {
+		MessageDigest sha256 = AttachmentStore.newDigest();
+		MessageDigest md5 = null;
+		if (contentMd5 != null) {
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+		}
+
+		FileChannel input = new FileInputStream(partFile).getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) TRANSFER_SIZE);
+			while (input.read(buffer) != -1) {
+				buffer.flip();
+				if (md5 != null) {
+					md5.update(buffer.duplicate());
+				}
+				sha256.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			input.close();
+		}
+
+		byte[] sha256Bytes = sha256.digest();
+		if (md5 != null && !Base64.encodeBase64String(md5.digest()).equals(contentMd5.getValue().trim())) {
+			discard(partFile);
+			throw new IOException("Content-MD5 of " + url + " does not match");
+		}
+		Matcher matcher = digest == null ? null : SHA256_DIGEST.matcher(digest.getValue());
+		if (matcher != null && matcher.find() && !Base64.encodeBase64String(sha256Bytes).equals(matcher.group(1))) {
+			discard(partFile);
+			throw new IOException("SHA-256 digest of " + url + " does not match");
+		}
+		return AttachmentStore.toHex(sha256Bytes);
+	}
+
+	/**
+	 * Keeps the ETag or Last-Modified date of the response for If-Range.
+	 * Weak ETags may not be used for ranges.
+	 */
+	private static void saveValidator(final CloseableHttpResponse response, final File validatorFile) throws IOException {
+		Header etag = response.getFirstHeader("ETag");
+		Header lastModified = response.getFirstHeader("Last-Modified");
+		if (etag != null && !etag.getValue().startsWith("W/")) {
+			FileUtils.writeStringToFile(validatorFile, etag.getValue(), "UTF-8");
+		} else if (lastModified != null) {
+			FileUtils.writeStringToFile(validatorFile, lastModified.getValue(), "UTF-8");
+		} else {
+			validatorFile.delete();
+		}
+	}
+
+	private static boolean isStrongETag(final String value) {
+		return value != null && value.startsWith("\"");
+	}
+
+	private static File getValidatorFile(final File partFile) {
+		return new File(partFile.getPath() + ".validator");
+	}
+
+	private static void discard(final File partFile) {
+		partFile.delete();
+		getValidatorFile(partFile).delete();
+	}
+
+	private void pause(final int attempt) throws InterruptedIOException {
+		try {
+			Thread.sleep(retryDelayMillis * (attempt - 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Download interrupted");
+		}
+	}
+}
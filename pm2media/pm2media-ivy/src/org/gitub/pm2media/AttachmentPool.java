@@ -0,0 +1,290 @@
+package org.gitub.pm2media;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads and uploads attachments on threads of their own, so that posting
+ * articles never waits for binary transfers.  Each attachment URL is queued
+ * once per run; an article showing a file which is already queued does not
+ * queue it again, but waits for the transfer under way like the article
+ * which queued it.  A URL whose transfer failed is forgotten, so that the
+ * retry of an article showing it queues it again.
+ *
+ * The queue holds Attachments, not their content, so it can be long at
+ * little cost and submit() rarely blocks.  With the api backend, the workers
+ * stream attachments into the MediaWiki side by side.  With the form
+ * backend they download side by side and take turns on the MediaWiki's
+ * WebClient for uploading, locked on the MediaWiki like the posting code.
+ *
+ * @author smootp
+ *
+ */
+public class AttachmentPool {
+
+	/**
+	 * Told when the attachments of an article are through.
+	 */
+	public interface Listener {
+		/**
+		 * Called on a worker thread once all attachments of an article are
+		 * through, or right away if none needed to be transferred.
+		 *
+		 * @param transferred
+		 *            false if any of them could not be transferred
+		 */
+		void attachmentsDone(boolean transferred);
+	}
+
+	/** The attachments of one article, reported when all are through. */
+	private static final class Batch {
+		final AtomicInteger left = new AtomicInteger();
+		final Listener listener;
+		volatile boolean failed = false;
+
+		Batch(final Listener listener) {
+			this.listener = listener;
+		}
+
+		void transferred(final boolean success) {
+			if (!success) {
+				failed = true;
+			}
+			if (left.decrementAndGet() == 0) {
+				listener.attachmentsDone(!failed);
+			}
+		}
+	}
+
+	/** The transfer of one URL and the batches of all articles waiting for it. */
+	private static final class Item {
+		final Attachment attachment;
+		final List<Batch> batches = new ArrayList<Batch>();
+
+		Item(final Attachment attachment) {
+			this.attachment = attachment;
+		}
+
+		@Override
+		public String toString() {
+			return attachment.getFileName();
+		}
+	}
+
+	private final WikiParams pmWikiParams;
+
+	private final MediaWiki mediaWiki;
+
+	private int threads = 2;
+	public AttachmentPool withThreads(final int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	private int queueCapacity = 10000;
+	public AttachmentPool withQueueCapacity(final int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	/** Set in long run mode to drop the pages held by the workers' web clients. */
+	private boolean releasePages = false;
+	public AttachmentPool withReleasePages(final boolean releasePages) {
+		this.releasePages = releasePages;
+		return this;
+	}
+
+	private PipelineStage<Item> stage;
+
+	/** Transfers queued or under way by URL, guarded by the pool. */
+	private final Map<String, Item> queuedURLs = new HashMap<String, Item>();
+
+	/** URLs transferred in this run, guarded by the pool. */
+	private final Set<String> transferredURLs = new HashSet<String>();
+
+	/** Attachments queued and not yet through. */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	public AttachmentPool(final WikiParams pmWikiParams, final MediaWiki mediaWiki) {
+		this.pmWikiParams = pmWikiParams;
+		this.mediaWiki = mediaWiki;
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	public void start() {
+		stage = new PipelineStage<Item>("attachments", threads, queueCapacity, new PipelineStage.WorkerFactory<Item>() {
+			@Override
+			public PipelineStage.Worker<Item> newWorker() {
+				return new TransferWorker();
+			}
+		});
+		stage.start();
+		Logger.getInstance().log("Attachment pool started with " + stage.getThreadCount() + " threads.");
+	}
+
+	/**
+	 * Queues the attachments of an article whose URLs were not transferred
+	 * or queued before.
+	 *
+	 * @param listener
+	 *            told once all of the attachments are through, including
+	 *            those another article queued
+	 */
+	public void submit(final Collection<Attachment> attachments, final Listener listener) throws InterruptedException {
+		Batch batch = new Batch(listener);
+		List<Item> fresh = new ArrayList<Item>();
+		int waiting = 0;
+		synchronized (this) {
+			for (Attachment attachment : attachments) {
+				if (transferredURLs.contains(attachment.getFileURL())) {
+					continue;
+				}
+				Item item = queuedURLs.get(attachment.getFileURL());
+				if (item == null) {
+					item = new Item(attachment);
+					queuedURLs.put(attachment.getFileURL(), item);
+					fresh.add(item);
+				}
+				item.batches.add(batch);
+				batch.left.incrementAndGet();
+				waiting++;
+			}
+		}
+		if (waiting == 0) {
+			listener.attachmentsDone(true);
+			return;
+		}
+		if (fresh.isEmpty()) {
+			return;
+		}
+
+		if (mediaWiki != null && Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_ATTACHMENTS)) {
+			// one query for the whole article instead of one per upload
+			List<Attachment> freshAttachments = new ArrayList<Attachment>();
+			for (Item item : fresh) {
+				freshAttachments.add(item.attachment);
+			}
+			mediaWiki.prefetchFileSha1s(freshAttachments);
+		}
+
+		pending.addAndGet(fresh.size());
+		for (int i = 0; i < fresh.size(); i++) {
+			try {
+				stage.put(fresh.get(i));
+			} catch (InterruptedException e) {
+				// the articles waiting for the rest learn that they failed
+				for (Item item : fresh.subList(i, fresh.size())) {
+					transferred(item, false);
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Waits until every queued attachment is through.
+	 */
+	public void finish() throws InterruptedException {
+		while (pending.get() > 0) {
+			Thread.sleep(100);
+		}
+	}
+
+	/**
+	 * Stops the workers.  Attachments still queued are dropped.
+	 */
+	public void close() {
+		if (stage != null) {
+			stage.stop();
+			stage = null;
+		}
+	}
+
+	/**
+	 * Returns the number of attachments queued and not yet through.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	@Override
+	public String toString() {
+		PipelineStage<Item> current = stage;
+		return current == null ? "attachments stopped" : current.toString();
+	}
+
+	/**
+	 * Copies one attachment from the PmWiki into the MediaWiki, or only
+	 * downloads it if uploads are switched off.
+	 *
+	 * @return false if the attachment could not be copied
+	 */
+	protected boolean transfer(final Attachment attachment, final PmWiki pmWiki) {
+		if (!Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_ATTACHMENTS)) {
+			return pmWiki.download(attachment);
+		} else if (mediaWiki.uploadsThroughApi()) {
+			return mediaWiki.transfer(attachment, pmWiki);
+		} else {
+			if (!pmWiki.download(attachment)) {
+				return false;
+			}
+			synchronized (mediaWiki) {
+				return mediaWiki.upload(attachment);
+			}
+		}
+	}
+
+	/**
+	 * Reports a transfer to the articles waiting for it.
+	 */
+	private void transferred(final Item item, final boolean success) {
+		synchronized (this) {
+			// a failed URL is neither queued nor transferred, the next article showing it queues it again
+			queuedURLs.remove(item.attachment.getFileURL());
+			if (success) {
+				transferredURLs.add(item.attachment.getFileURL());
+			}
+		}
+		pending.decrementAndGet();
+		// no batch joins the item once it left queuedURLs
+		for (Batch batch : item.batches) {
+			batch.transferred(success);
+		}
+	}
+
+	private class TransferWorker extends PipelineStage.Worker<Item> {
+		private final PmWiki pmWiki = newPmWiki();
+
+		@Override
+		public void process(final Item item) {
+			boolean success = false;
+			try {
+				success = transfer(item.attachment, pmWiki);
+				if (releasePages) {
+					pmWiki.releasePages();
+				}
+			} finally {
+				transferred(item, success);
+			}
+		}
+
+		@Override
+		public void close() {
+			pmWiki.close();
+		}
+	}
+
+	private PmWiki newPmWiki() {
+		PmWiki pmWiki = new PmWiki().withWikiParams(pmWikiParams);
+		pmWiki.initializeCredentials();
+		return pmWiki;
+	}
+}
@@ -0,0 +1,269 @@
+package org.gitub.pm2media;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.http.Header;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Asks the PmWiki for the size, content type and ETag of attachments with
+ * HEAD requests, several at a time, before anything is downloaded.  Each URL
+ * is asked for once per run; the answers are kept and shared by all PmWiki
+ * instances.
+ *
+ * The answers decide which attachments are taken at all: missing files,
+ * files above pmwiki.attachments.maxSizeMB and files of a content type listed
+ * in pmwiki.attachments.excludedTypes are left out.  A server which does not
+ * answer HEAD requests lets every attachment through.
+ *
+ * The shared instance lives for one run and is closed by closeInstance(),
+ * after which the next run probes afresh.
+ *
+ * @author smootp
+ *
+ */
+public class AttachmentProber {
+
+	/** What the server said about an attachment URL. */
+	private static final class Probe {
+		/** HTTP status, 0 if the request failed. */
+		final int status;
+		/** Content-Length, -1 if not known. */
+		final long size;
+		final String contentType;
+		final String etag;
+
+		Probe(final int status, final long size, final String contentType, final String etag) {
+			this.status = status;
+			this.size = size;
+			this.contentType = contentType;
+			this.etag = etag;
+		}
+	}
+
+	private static AttachmentProber instance;
+
+	/**
+	 * Returns the prober configured by pmwiki.probe.threads and the
+	 * pmwiki.attachments policy.  The credentials of the PmWiki are set when
+	 * the prober is created; all PmWiki instances of a run share them.
+	 */
+	public static synchronized AttachmentProber getInstance(final WikiParams pmWikiParams) {
+		if (instance == null) {
+			instance = new AttachmentProber(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.PMWIKI_PROBE_THREADS, 8))
+					.withMaxSize(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.PMWIKI_ATTACHMENTS_MAX_SIZE_MB, 0) * 1024L * 1024L)
+					.withExcludedTypes(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.PMWIKI_ATTACHMENTS_EXCLUDED_TYPES, "text/html"))
+					.withCredentials(pmWikiParams.getUsername(), pmWikiParams.getPassword());
+		}
+		return instance;
+	}
+
+	/**
+	 * Closes the shared prober at the end of a run, if there is one.
+	 */
+	public static synchronized void closeInstance() {
+		if (instance != null) {
+			instance.close();
+			instance = null;
+		}
+	}
+
+	/** Largest attachment taken in bytes, 0 for no limit. */
+	private long maxSize = 0;
+	public AttachmentProber withMaxSize(final long maxSize) {
+		this.maxSize = maxSize;
+		return this;
+	}
+
+	/** Content types left out, lower case; "image/" leaves out all images. */
+	private final List<String> excludedTypes = new ArrayList<String>();
+	public AttachmentProber withExcludedTypes(final String commaSeparatedTypes) {
+		for (String type : commaSeparatedTypes.split(",")) {
+			if (!type.trim().isEmpty()) {
+				excludedTypes.add(type.trim().toLowerCase(Locale.ENGLISH));
+			}
+		}
+		return this;
+	}
+
+	private final BasicCredentialsProvider credentials = new BasicCredentialsProvider();
+	public AttachmentProber withCredentials(final String username, final String password) {
+		if (username != null && !username.isEmpty()) {
+			credentials.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+		}
+		return this;
+	}
+
+	/** Answers by URL, pending while the request is under way. */
+	private final ConcurrentHashMap<String, Future<Probe>> probes = new ConcurrentHashMap<String, Future<Probe>>();
+
+	private final ExecutorService executor;
+
+	private final CloseableHttpClient httpClient;
+
+	public AttachmentProber(final int threads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				// the shared prober must not keep the converter from exiting
+				Thread thread = new Thread(runnable, "attachment-prober");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(Math.max(1, threads));
+		connectionManager.setDefaultMaxPerRoute(Math.max(1, threads));
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(30000)
+				.setSocketTimeout(30000)
+				.build();
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setDefaultCredentialsProvider(credentials)
+				.setUserAgent(Pm2Media.USER_AGENT)
+				.build();
+	}
+
+	/**
+	 * Probes all attachments at the same time and fills in their size,
+	 * content type and ETag.  Returns when every answer is in.
+	 */
+	public void probe(final Collection<Attachment> attachments) {
+		List<Future<Probe>> futures = new ArrayList<Future<Probe>>(attachments.size());
+		for (Attachment attachment : attachments) {
+			futures.add(request(attachment.getFileURL()));
+		}
+
+		int i = 0;
+		for (Attachment attachment : attachments) {
+			Probe probe = get(futures.get(i++), attachment.getFileURL());
+			attachment.setRemoteInfo(probe.size, probe.contentType, probe.etag);
+		}
+	}
+
+	/**
+	 * Returns why an attachment is left out, or null if it is taken.  The
+	 * attachment must have been probed.
+	 */
+	public String getRejection(final Attachment attachment) {
+		Probe probe = get(request(attachment.getFileURL()), attachment.getFileURL());
+		if (probe.status == 404 || probe.status == 410) {
+			return "it does not exist on the PmWiki";
+		}
+		if (maxSize > 0 && probe.size > maxSize) {
+			return "it has " + probe.size / (1024 * 1024) + " MB";
+		}
+		if (probe.contentType != null) {
+			String contentType = probe.contentType.toLowerCase(Locale.ENGLISH);
+			for (String excludedType : excludedTypes) {
+				if (contentType.startsWith(excludedType)) {
+					return "its type is " + probe.contentType;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of URLs probed or being probed.
+	 */
+	public int getProbedCount() {
+		return probes.size();
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not close attachment prober: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Returns the answer for a URL, sending the request unless it was sent
+	 * before.
+	 */
+	private Future<Probe> request(final String url) {
+		Future<Probe> future = probes.get(url);
+		if (future != null) {
+			return future;
+		}
+		FutureTask<Probe> task = new FutureTask<Probe>(new Callable<Probe>() {
+			@Override
+			public Probe call() {
+				return head(url);
+			}
+		});
+		future = probes.putIfAbsent(url, task);
+		if (future != null) {
+			return future;
+		}
+		executor.execute(task);
+		return task;
+	}
+
+	private Probe head(final String url) {
+		try {
+			CloseableHttpResponse response = httpClient.execute(new HttpHead(url));
+			try {
+				int status = response.getStatusLine().getStatusCode();
+				if (status != 200) {
+					return new Probe(status, -1, null, null);
+				}
+				Header length = response.getFirstHeader("Content-Length");
+				Header type = response.getFirstHeader("Content-Type");
+				Header etag = response.getFirstHeader("ETag");
+				return new Probe(status, length == null ? -1 : parseLength(length.getValue()),
+						type == null ? null : type.getValue(), etag == null ? null : etag.getValue());
+			} finally {
+				response.close();
+			}
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not probe " + url + ": " + e.getLocalizedMessage());
+			return new Probe(0, -1, null, null);
+		}
+	}
+
+	private static Probe get(final Future<Probe> future, final String url) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Logger.getInstance().logError("Could not probe " + url + ": " + e.getCause());
+		}
+		return new Probe(0, -1, null, null);
+	}
+
+	private static long parseLength(final String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
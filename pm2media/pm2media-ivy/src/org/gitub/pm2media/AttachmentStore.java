@@ -0,0 +1,314 @@
+package org.gitub.pm2media;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local store of attachment files, kept between runs.  Files are stored
+ * under the hex SHA-256 of their content, in directories named after the
+ * first two pairs of digits (ab/cd/abcd...), so a file attached to many
+ * articles is kept once.
+ *
+ * An index maps the URL each file was downloaded from to its hash.  The
+ * index is a log of tab-separated lines like the PostManifest; a torn last
+ * line is ignored.  Which files were uploaded into which MediaWiki under
+ * which name is kept in an UploadRegistry next to it, so that the lookup
+ * before each upload neither grows with the number of files nor needs them
+ * all in memory.  Files are written to a temporary file first and
+ * renamed into place, so a stored file is always complete.
+ *
+ * @author smootp
+ *
+ */
+public class AttachmentStore {
+	private static final String INDEX_FILE = "index.tsv";
+	private static final String REGISTRY_FILE = "uploads.db";
+	private static final String URL_LINE = "url";
+
+	private static AttachmentStore instance;
+
+	/**
+	 * Returns the store in pm2media.attachmentStore.directory.
+	 */
+	public static synchronized AttachmentStore getInstance() {
+		if (instance == null) {
+			instance = new AttachmentStore(new File(
+					Pm2MediaPrefs.getProperty(Pm2MediaPrefs.ATTACHMENT_STORE_DIRECTORY, "attachment-store")),
+					Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.ATTACHMENT_STORE_EXPECTED_UPLOADS, 100000));
+		}
+		return instance;
+	}
+
+	private final File directory;
+
+	/** Hash of the content per source URL. */
+	private final Map<String, String> hashes = new HashMap<String, String>();
+
+	/** Uploaded files as "target\thash", target being the wiki URL and file name. */
+	private UploadRegistry uploads;
+
+	private final int expectedUploads;
+
+	private Writer index;
+
+	public AttachmentStore(final File directory) {
+		this(directory, 100000);
+	}
+
+	/**
+	 * @param expectedUploads
+	 *            number of uploads the registry is sized for
+	 */
+	public AttachmentStore(final File directory, final int expectedUploads) {
+		this.directory = directory;
+		this.expectedUploads = expectedUploads;
+		load();
+	}
+
+	/**
+	 * Returns the stored file downloaded from a URL.
+	 *
+	 * @return the file, or null if nothing from the URL is stored
+	 */
+	public synchronized File getFile(final String url) {
+		String hash = hashes.get(url);
+		if (hash == null) {
+			return null;
+		}
+		File file = getFileForHash(hash);
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * Returns the hex SHA-256 of the file downloaded from a URL, or null.
+	 */
+	public synchronized String getHash(final String url) {
+		return hashes.get(url);
+	}
+
+	/**
+	 * Returns where a file with the given hash is stored.
+	 */
+	public File getFileForHash(final String hash) {
+		return new File(new File(new File(directory, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+	}
+
+	/**
+	 * Stores the content read from a URL, replacing what was stored for the
+	 * URL before.  The stream is read to its end but not closed.
+	 *
+	 * @return the stored file
+	 */
+	public File put(final String url, final InputStream content) throws IOException {
+		File tmpFile = newTempFile();
+		try {
+			MessageDigest digest = newDigest();
+			OutputStream output = new DigestOutputStream(new FileOutputStream(tmpFile), digest);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = content.read(buffer)) != -1) {
+					output.write(buffer, 0, read);
+				}
+			} finally {
+				output.close();
+			}
+			return add(url, tmpFile, toHex(digest.digest()));
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Returns whether the file with the given hash was uploaded under the
+	 * given target, in this or an earlier run.
+	 *
+	 * @param target
+	 *            the URL of the MediaWiki and the file name
+	 */
+	public synchronized boolean isUploaded(final String target, final String hash) {
+		try {
+			return getUploads().contains(target + "\t" + hash);
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not read upload registry, uploading " + target + ": " + e.getLocalizedMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Records that the file with the given hash was uploaded under the given
+	 * target.
+	 */
+	public synchronized void recordUpload(final String target, final String hash) throws IOException {
+		getUploads().add(target + "\t" + hash);
+	}
+
+	public synchronized void close() {
+		if (uploads != null) {
+			try {
+				uploads.close();
+			} catch (IOException e) {
+				Logger.getInstance().logError("Could not close upload registry: " + e.getLocalizedMessage());
+			}
+			uploads = null;
+		}
+		if (index == null) {
+			return;
+		}
+		try {
+			index.close();
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not close attachment index: " + e.getLocalizedMessage());
+		}
+		index = null;
+	}
+
+	private UploadRegistry getUploads() throws IOException {
+		if (uploads == null) {
+			directory.mkdirs();
+			uploads = new UploadRegistry(new File(directory, REGISTRY_FILE), expectedUploads);
+		}
+		return uploads;
+	}
+
+	/**
+	 * Moves a completely written temporary file into place and records the
+	 * URL it came from.
+	 */
+	File add(final String url, final File tmpFile, final String hash) throws IOException {
+		File file = getFileForHash(hash);
+		if (!file.isFile()) {
+			file.getParentFile().mkdirs();
+			try {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		recordHash(url, hash);
+		return file;
+	}
+
+	/**
+	 * Records the hash of the content at a URL without storing the content,
+	 * for files which were passed on as they were downloaded.
+	 */
+	public synchronized void recordHash(final String url, final String hash) throws IOException {
+		if (!hash.equals(hashes.put(url, hash))) {
+			appendLine(URL_LINE + "\t" + url + "\t" + hash);
+		}
+	}
+
+	/**
+	 * Returns the file a download from the URL is written to until it is
+	 * complete.  The name depends on the URL only, so an interrupted download
+	 * can be continued by a later run.
+	 */
+	public File getPartialFile(final String url) throws IOException {
+		File tmpDirectory = new File(directory, "tmp");
+		tmpDirectory.mkdirs();
+		return new File(tmpDirectory, toHex(newDigest().digest(url.getBytes("UTF-8"))) + ".part");
+	}
+
+	File newTempFile() throws IOException {
+		File tmpDirectory = new File(directory, "tmp");
+		tmpDirectory.mkdirs();
+		return File.createTempFile("attachment", ".part", tmpDirectory);
+	}
+
+	static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	static String toHex(final byte[] digest) {
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private void appendLine(final String line) throws IOException {
+		if (index == null) {
+			directory.mkdirs();
+			index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, INDEX_FILE), true), "UTF-8"));
+		}
+		index.write(line + "\n");
+		index.flush();
+	}
+
+	private void load() {
+		File file = new File(directory, INDEX_FILE);
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t");
+					// a torn line of an interrupted run has fewer fields or a short hash
+					if (fields.length != 3 || fields[2].length() != 64) {
+						continue;
+					}
+					if (fields[0].equals(URL_LINE)) {
+						hashes.put(fields[1], fields[2]);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			Logger.getInstance().log("Attachment store " + directory + " holds " + hashes.size() + " files.");
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not read attachment index " + file + ", downloading all attachments: "
+					+ e.getLocalizedMessage());
+		}
+
+		// a torn line must not swallow the next one
+		if (file.length() > 0 && !endsWithNewline(file)) {
+			try {
+				appendLine("");
+			} catch (IOException e) {
+				Logger.getInstance().logError("Could not repair attachment index " + file + ": " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	private static boolean endsWithNewline(final File file) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.seek(raf.length() - 1);
+				return raf.read() == '\n';
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.gitub.pm2media;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Journal of the progress of a conversion, so that a run which died can be
+ * resumed where it stopped.  Every stage an article passes is appended as an
+ * "article TAB stage" line.  The file is forced to disk every syncInterval
+ * lines or syncMillis milliseconds, whichever comes first; a crash loses at
+ * most that much progress, which is then simply redone.  A line cut short by
+ * the crash does not end in a known stage and is ignored on replay.
+ *
+ * @author smootp
+ *
+ */
+public class CheckpointJournal {
+	/** Stages of an article, in the order they are usually reached. */
+	public enum Stage { FETCHED, CONVERTED, POSTED, ATTACHMENTS_DONE }
+
+	private final File file;
+
+	private int syncInterval = 100;
+	public CheckpointJournal withSyncInterval(final int syncInterval) {
+		this.syncInterval = Math.max(1, syncInterval);
+		return this;
+	}
+
+	private long syncMillis = 1000;
+	public CheckpointJournal withSyncMillis(final long syncMillis) {
+		this.syncMillis = syncMillis;
+		return this;
+	}
+
+	/** Stages reached per article, one bit per stage. */
+	private final Map<String, Integer> stages = new HashMap<String, Integer>();
+
+	private FileOutputStream output;
+	private Writer writer;
+	private int unsynced = 0;
+	private long lastSync = System.currentTimeMillis();
+
+	/**
+	 * Opens the journal, replaying what an earlier run recorded in it.
+	 */
+	public CheckpointJournal(final File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			replay();
+		}
+		boolean torn = endsTorn(file);
+		output = new FileOutputStream(file, true);
+		writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+		if (torn) {
+			// keep the next line from being glued to the torn one
+			writer.write("\n");
+		}
+	}
+
+	public synchronized void record(final String article, final Stage stage) throws IOException {
+		Integer reached = stages.get(article);
+		int bit = 1 << stage.ordinal();
+		if (reached != null && (reached & bit) != 0) {
+			return;
+		}
+		stages.put(article, (reached == null ? 0 : reached) | bit);
+
+		writer.write(article + "\t" + stage.name() + "\n");
+		unsynced++;
+		if (unsynced >= syncInterval || System.currentTimeMillis() - lastSync >= syncMillis) {
+			sync();
+		}
+	}
+
+	public synchronized boolean isDone(final String article, final Stage stage) {
+		Integer reached = stages.get(article);
+		return reached != null && (reached & (1 << stage.ordinal())) != 0;
+	}
+
+	/**
+	 * Returns whether the article was posted and its attachments uploaded.
+	 */
+	public synchronized boolean isComplete(final String article) {
+		return isDone(article, Stage.POSTED) && isDone(article, Stage.ATTACHMENTS_DONE);
+	}
+
+	/**
+	 * Returns the number of complete articles.
+	 */
+	public synchronized int getCompleteCount() {
+		int complete = 0;
+		for (String article : stages.keySet()) {
+			if (isComplete(article)) {
+				complete++;
+			}
+		}
+		return complete;
+	}
+
+	/**
+	 * Forces the recorded stages to disk.
+	 */
+	public synchronized void sync() throws IOException {
+		writer.flush();
+		output.getFD().sync();
+		unsynced = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	public synchronized void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Closes and removes the journal, after a run that went through.
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+		if (!file.delete()) {
+			throw new IOException("Cannot delete " + file);
+		}
+	}
+
+	/**
+	 * Returns whether a log file ends in a line cut short by a crash, which
+	 * the next line appended must not be glued to.
+	 */
+	static boolean endsTorn(final File file) throws IOException {
+		if (file.length() == 0) {
+			return false;
+		}
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			input.seek(input.length() - 1);
+			return input.read() != '\n';
+		} finally {
+			input.close();
+		}
+	}
+
+	private void replay() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.lastIndexOf('\t');
+				if (tab <= 0) {
+					continue;
+				}
+				Stage stage;
+				try {
+					stage = Stage.valueOf(line.substring(tab + 1));
+				} catch (IllegalArgumentException e) {
+					// torn write of the run that died
+					continue;
+				}
+				String article = line.substring(0, tab);
+				Integer reached = stages.get(article);
+				stages.put(article, (reached == null ? 0 : reached) | (1 << stage.ordinal()));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package org.gitub.pm2media;
+
+/**
+ * Limits the number of requests in flight, adapting the limit the way TCP
+ * adapts its window (additive increase, multiplicative decrease).  The limit
+ * grows by one per round of requests answered quickly, and is halved when
+ * the server says it is overloaded (maxlag, HTTP 429 or 503) or when the
+ * average latency climbs to twice the lowest seen recently.  After a decrease
+ * the limit is left alone for one round, so that a burst of errors caused by
+ * the same overload halves it only once.
+ *
+ * @author smootp
+ *
+ */
+public class ConcurrencyLimiter {
+	/** Weight of the latest latency in the moving average. */
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	private final int minLimit;
+	private final int maxLimit;
+
+	private double limit;
+	private int inFlight = 0;
+
+	private double averageLatency = 0;
+	private double lowestLatency = Double.MAX_VALUE;
+
+	/** Requests to complete before the limit may be decreased again. */
+	private int cooldown = 0;
+
+	private long completed = 0;
+	private long throttled = 0;
+
+	/** Completed requests between two log lines, 0 for no logging. */
+	private int reportInterval = 0;
+	public ConcurrencyLimiter withReportInterval(final int reportInterval) {
+		this.reportInterval = reportInterval;
+		return this;
+	}
+
+	public ConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+	}
+
+	/**
+	 * Waits until one more request may be sent.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (inFlight >= (int) limit) {
+			wait();
+		}
+		inFlight++;
+	}
+
+	/**
+	 * Reports that a request acquired before has completed.
+	 *
+	 * @param latencyMillis
+	 *            time the request took
+	 * @param overloaded
+	 *            true if the server asked us to slow down
+	 */
+	public synchronized void release(final long latencyMillis, final boolean overloaded) {
+		inFlight--;
+		completed++;
+		if (cooldown > 0) {
+			cooldown--;
+		}
+
+		if (overloaded) {
+			throttled++;
+			decrease();
+		} else {
+			averageLatency = averageLatency == 0 ? latencyMillis
+					: (1 - LATENCY_WEIGHT) * averageLatency + LATENCY_WEIGHT * latencyMillis;
+			// let the baseline creep up, so that a server which got slower
+			// for good does not keep the limit at its minimum
+			lowestLatency = Math.min(averageLatency, lowestLatency * 1.01);
+			if (averageLatency > 2 * lowestLatency) {
+				decrease();
+			} else {
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+		}
+
+		if (reportInterval > 0 && completed % reportInterval == 0) {
+			Logger.getInstance().log("Posting " + inFlight + " articles at a time (limit " + getLimit()
+					+ "), average latency " + Math.round(averageLatency) + " ms, "
+					+ throttled + " of " + completed + " requests throttled.");
+		}
+		notifyAll();
+	}
+
+	private void decrease() {
+		if (cooldown > 0) {
+			return;
+		}
+		limit = Math.max(minLimit, limit / 2);
+		cooldown = inFlight + 1;
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized long getAverageLatency() {
+		return Math.round(averageLatency);
+	}
+}
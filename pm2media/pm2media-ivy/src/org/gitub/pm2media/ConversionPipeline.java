@@ -0,0 +1,493 @@
+package org.gitub.pm2media;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts articles in stages which run at the same time: fetch, convert
+ * and post.  Each stage has its own bounded queue and worker threads, so the
+ * PmWiki is read while earlier articles are still converted and posted.  A
+ * full queue blocks the stage feeding it, back up to submit().  Attachments
+ * are handed to an AttachmentPool, whose long queue keeps the post stage
+ * from waiting for them.
+ *
+ * Fetch workers have a PmWiki each.  The MediaWiki is shared by the post
+ * stage and the attachment pool, which take turns since its WebClient is not
+ * thread safe; with the api backend posts still run in parallel inside
+ * MediaWiki.
+ *
+ * Every article in flight is either queued, held by a worker, or waiting
+ * for its attachments.  A worker which neither hands an article on nor
+ * completes it, whatever it throws, fails it, so finish() never waits for
+ * an article nobody holds.
+ *
+ * @author smootp
+ *
+ */
+public class ConversionPipeline {
+
+	/** An article on its way through the pipeline. */
+	private static final class Job {
+		final String articleLink;
+		final String articleNamespace;
+		final String articleName;
+		final boolean refresh;
+		Article article;
+
+		/** Set once the article is done or failed, which happens only once. */
+		final AtomicBoolean finished = new AtomicBoolean();
+
+		Job(final String articleLink, final String articleNamespace, final String articleName, final boolean refresh) {
+			this.articleLink = articleLink;
+			this.articleNamespace = articleNamespace;
+			this.articleName = articleName;
+			this.refresh = refresh;
+		}
+
+		String getPathInWiki() {
+			return articleNamespace + "/" + articleName;
+		}
+
+		@Override
+		public String toString() {
+			return getPathInWiki();
+		}
+	}
+
+	private final WikiParams pmWikiParams;
+
+	private final MediaWiki mediaWiki;
+
+	private final String imagePrefix;
+
+	private int fetchThreads = 4;
+	public ConversionPipeline withFetchThreads(final int fetchThreads) {
+		this.fetchThreads = fetchThreads;
+		return this;
+	}
+
+	private int convertThreads = 2;
+	public ConversionPipeline withConvertThreads(final int convertThreads) {
+		this.convertThreads = convertThreads;
+		return this;
+	}
+
+	/** Takes the attachments of posted articles, null if they are not downloaded. */
+	private AttachmentPool attachmentPool;
+	public ConversionPipeline withAttachmentPool(final AttachmentPool attachmentPool) {
+		this.attachmentPool = attachmentPool;
+		return this;
+	}
+
+	private int queueCapacity = 32;
+	public ConversionPipeline withQueueCapacity(final int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	private int reportSeconds = 30;
+	public ConversionPipeline withReportSeconds(final int reportSeconds) {
+		this.reportSeconds = reportSeconds;
+		return this;
+	}
+
+	private CheckpointJournal journal;
+	public ConversionPipeline withJournal(final CheckpointJournal journal) {
+		this.journal = journal;
+		return this;
+	}
+
+	private RetryQueue retryQueue;
+	public ConversionPipeline withRetryQueue(final RetryQueue retryQueue) {
+		this.retryQueue = retryQueue;
+		return this;
+	}
+
+	/** Set in long run mode to release pages, recycle web clients and sample the heap. */
+	private HeapMonitor heapMonitor;
+	public ConversionPipeline withHeapMonitor(final HeapMonitor heapMonitor) {
+		this.heapMonitor = heapMonitor;
+		return this;
+	}
+
+	private PipelineStage<Job> fetchStage;
+	private PipelineStage<Job> convertStage;
+	private PipelineStage<Job> postStage;
+
+	/** Articles submitted and not yet through all stages. */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private ScheduledExecutorService reporter;
+
+	public ConversionPipeline(final WikiParams pmWikiParams, final MediaWiki mediaWiki, final String imagePrefix) {
+		this.pmWikiParams = pmWikiParams;
+		this.mediaWiki = mediaWiki;
+		this.imagePrefix = imagePrefix;
+	}
+
+	/**
+	 * Starts the worker threads of all stages.
+	 */
+	public void start() {
+		fetchStage = new PipelineStage<Job>("fetch", fetchThreads, queueCapacity, new PipelineStage.WorkerFactory<Job>() {
+			@Override
+			public PipelineStage.Worker<Job> newWorker() {
+				return new FetchWorker();
+			}
+		});
+		convertStage = new PipelineStage<Job>("convert", convertThreads, queueCapacity, new PipelineStage.WorkerFactory<Job>() {
+			@Override
+			public PipelineStage.Worker<Job> newWorker() {
+				return new ConvertWorker();
+			}
+		});
+		postStage = new PipelineStage<Job>("post", 1, queueCapacity, new PipelineStage.WorkerFactory<Job>() {
+			@Override
+			public PipelineStage.Worker<Job> newWorker() {
+				return new PostWorker();
+			}
+		});
+
+		// downstream first, so no stage feeds one which is not running
+		postStage.start();
+		convertStage.start();
+		fetchStage.start();
+		Logger.getInstance().log("Pipeline started with " + fetchStage.getThreadCount() + " fetch and "
+				+ convertStage.getThreadCount() + " convert threads.");
+
+		if (reportSeconds > 0) {
+			reporter = Executors.newSingleThreadScheduledExecutor();
+			reporter.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					report();
+				}
+			}, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Queues an article for conversion, waiting while the fetch queue is
+	 * full, and queues the failed articles whose retry delay has passed.
+	 *
+	 * @param articleLink
+	 *            the link to the PmWiki article
+	 * @param refresh
+	 *            true to bypass the PmWiki article cache
+	 */
+	public void submit(final String articleLink, final boolean refresh) {
+		enqueue(articleLink, refresh, null);
+		enqueueDueRetries();
+	}
+
+	/**
+	 * Queues an article which was read from the PmWiki already, e.g. by the
+	 * crawler, for conversion.  It skips the fetch stage.
+	 */
+	public void submit(final String articleLink, final Article article) {
+		enqueue(articleLink, false, article);
+		enqueueDueRetries();
+	}
+
+	private void enqueueDueRetries() {
+		if (retryQueue != null) {
+			String retryLink;
+			while ((retryLink = retryQueue.poll()) != null) {
+				Logger.getInstance().log("Retrying " + retryLink + ".");
+				enqueue(retryLink, true, null);
+			}
+		}
+	}
+
+	/**
+	 * Waits until every submitted article went through all stages, including
+	 * the retries of failed articles.
+	 */
+	public void finish() {
+		try {
+			while (true) {
+				String retryLink = retryQueue == null ? null : retryQueue.poll();
+				if (retryLink != null) {
+					Logger.getInstance().log("Retrying " + retryLink + ".");
+					enqueue(retryLink, true, null);
+				} else if (inFlight.get() > 0) {
+					Thread.sleep(100);
+				} else {
+					// failures of the posts still in flight are reported when they complete
+					synchronized (mediaWiki) {
+						mediaWiki.flush();
+					}
+					if (inFlight.get() > 0) {
+						continue;
+					}
+					retryLink = retryQueue == null ? null : retryQueue.take();
+					if (retryLink == null) {
+						return;
+					}
+					Logger.getInstance().log("Retrying " + retryLink + ".");
+					enqueue(retryLink, true, null);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops all stages.  Articles still in the pipeline are dropped.
+	 */
+	public void close() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		if (fetchStage == null) {
+			return;
+		}
+		report();
+		fetchStage.stop();
+		convertStage.stop();
+		postStage.stop();
+		fetchStage = null;
+	}
+
+	/**
+	 * Returns the number of articles submitted and not yet through all stages.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Logs the occupancy of every stage.  A stage whose queue stays full is
+	 * the bottleneck, the stages before it wait for it.
+	 */
+	void report() {
+		if (fetchStage == null) {
+			return;
+		}
+		Logger.getInstance().log("Pipeline: " + fetchStage + "; " + convertStage + "; " + postStage + "; "
+				+ (attachmentPool == null ? "" : attachmentPool + "; ") + inFlight.get() + " articles in flight.");
+	}
+
+	private void enqueue(final String articleLink, final boolean refresh, final Article article) {
+		String[] page = PmWiki.splitArticleLink(pmWikiParams.getURL(), articleLink);
+		if (page == null) {
+			Logger.getInstance().logError("Not a link to an article: " + articleLink);
+			return;
+		}
+
+		// don't parse articles which are PmWiki specific
+		if (!PmWiki.articleIsRelevant(page[1], page[0])) {
+			return;
+		}
+
+		Job job = new Job(articleLink, page[0], page[1], refresh);
+		if (journal != null && journal.isComplete(job.getPathInWiki())) {
+			Logger.getInstance().log("Skipping " + job + ", completed before.");
+			return;
+		}
+
+		inFlight.incrementAndGet();
+		boolean queued = false;
+		try {
+			if (article != null) {
+				job.article = article;
+				checkpoint(job, CheckpointJournal.Stage.FETCHED);
+				convertStage.put(job);
+			} else {
+				fetchStage.put(job);
+			}
+			queued = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (!queued) {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Called when an article went through all stages.
+	 */
+	private void done(final Job job) {
+		if (job.finished.compareAndSet(false, true)) {
+			release(job);
+		}
+	}
+
+	private void failed(final Job job, final Exception e) {
+		Logger.getInstance().logError("Exception while converting article " + job.articleName + ": " + e.getLocalizedMessage());
+		e.printStackTrace();
+		failed(job, String.valueOf(e.getLocalizedMessage()));
+	}
+
+	private void failed(final Job job, final String reason) {
+		if (!job.finished.compareAndSet(false, true)) {
+			return;
+		}
+		// queued for retry before it leaves the pipeline, so finish() waits for it
+		if (retryQueue != null) {
+			retryQueue.failed(job.articleLink, reason);
+		}
+		release(job);
+	}
+
+	private void release(final Job job) {
+		job.article = null;
+		inFlight.decrementAndGet();
+	}
+
+	private void checkpoint(final Job job, final CheckpointJournal.Stage stage) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			journal.record(job.getPathInWiki(), stage);
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not record " + job + " in journal: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Worker of a stage, which fails the articles it neither hands on nor
+	 * completes.
+	 */
+	private abstract class JobWorker extends PipelineStage.Worker<Job> {
+		@Override
+		public final void process(final Job job) throws InterruptedException {
+			boolean handedOn = false;
+			try {
+				handedOn = handle(job);
+			} catch (RuntimeException e) {
+				failed(job, e);
+			} finally {
+				// does nothing if the article was completed or failed already
+				if (!handedOn) {
+					failed(job, "dropped by the pipeline");
+				}
+			}
+		}
+
+		/**
+		 * Processes an article.
+		 *
+		 * @return true if the article was handed on to the next stage or the
+		 *         attachment pool, false if it was completed or failed here
+		 */
+		protected abstract boolean handle(Job job) throws InterruptedException;
+	}
+
+	/** Reads articles from the PmWiki. */
+	private class FetchWorker extends JobWorker {
+		private final PmWiki pmWiki = newPmWiki();
+		private int articlesSinceRecycle = 0;
+
+		@Override
+		protected boolean handle(final Job job) throws InterruptedException {
+			try {
+				job.article = pmWiki.getArticle(job.articleLink, job.articleNamespace, job.articleName, job.refresh);
+				checkpoint(job, CheckpointJournal.Stage.FETCHED);
+			} catch (Exception e) {
+				failed(job, e);
+				return false;
+			} finally {
+				if (heapMonitor != null) {
+					pmWiki.releasePages();
+					if (++articlesSinceRecycle >= Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.LONG_RUN_RECYCLE_INTERVAL, 200)) {
+						pmWiki.recycleWebClient();
+						articlesSinceRecycle = 0;
+					}
+				}
+			}
+			convertStage.put(job);
+			return true;
+		}
+
+		@Override
+		public void close() {
+			pmWiki.close();
+		}
+	}
+
+	/** Converts articles into MediaWiki syntax. */
+	private class ConvertWorker extends JobWorker {
+		private final PmWiki2MediaWikiConverter converter = new PmWiki2MediaWikiConverter()
+				.withImagePrefix(imagePrefix)
+				.withSourceWikiPrefix(pmWikiParams.getURL());
+
+		@Override
+		protected boolean handle(final Job job) throws InterruptedException {
+			// nothing to post
+			if (job.article.getBody().isEmpty()) {
+				checkpoint(job, CheckpointJournal.Stage.POSTED);
+				checkpoint(job, CheckpointJournal.Stage.ATTACHMENTS_DONE);
+				done(job);
+				return false;
+			}
+
+			job.article.convertBody(converter);
+			checkpoint(job, CheckpointJournal.Stage.CONVERTED);
+			postStage.put(job);
+			return true;
+		}
+	}
+
+	/** Posts articles into the MediaWiki and hands on their attachments. */
+	private class PostWorker extends JobWorker {
+		private int articlesSinceRecycle = 0;
+
+		@Override
+		protected boolean handle(final Job job) throws InterruptedException {
+			synchronized (mediaWiki) {
+				// posted by the run which died, only the attachments are missing
+				if (journal == null || !journal.isDone(job.getPathInWiki(), CheckpointJournal.Stage.POSTED)) {
+					mediaWiki.postArticle(job.article);
+				}
+				afterPost();
+			}
+
+			if (attachmentPool == null) {
+				checkpoint(job, CheckpointJournal.Stage.ATTACHMENTS_DONE);
+				done(job);
+				return false;
+			}
+
+			attachmentPool.submit(job.article.getAttachments(), new AttachmentPool.Listener() {
+				@Override
+				public void attachmentsDone(final boolean transferred) {
+					if (transferred) {
+						checkpoint(job, CheckpointJournal.Stage.ATTACHMENTS_DONE);
+						done(job);
+					} else {
+						failed(job, "attachments not transferred");
+					}
+				}
+			});
+			return true;
+		}
+
+		private void afterPost() {
+			if (heapMonitor == null) {
+				return;
+			}
+			mediaWiki.releasePages();
+			if (++articlesSinceRecycle >= Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.LONG_RUN_RECYCLE_INTERVAL, 200)) {
+				mediaWiki.recycleWebClient();
+				articlesSinceRecycle = 0;
+			}
+			heapMonitor.sample();
+		}
+	}
+
+	private PmWiki newPmWiki() {
+		PmWiki pmWiki = new PmWiki().withWikiParams(pmWikiParams);
+		pmWiki.initializeCredentials();
+		return pmWiki;
+	}
+}
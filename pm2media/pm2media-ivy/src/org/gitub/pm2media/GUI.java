@@ -44,6 +44,9 @@ public final class GUI extends JFrame implements Runnable {
 	/** serialVersionUID. */
 	private static final long serialVersionUID = 1L;
 
+	/** maximum number of characters kept in the log pane. */
+	private static final int MAX_LOG_LENGTH = 1000000;
+
 	/** text pane to show log messages. */
 	private JTextPane logPane;
 
@@ -244,7 +247,14 @@ private void addInputControlToPanel(JPanel panel, final int row, final String in
 					txtMWLoginPage.getText(), 
 					txtMWUploadPage.getText(),
 					txtMWImagePrefix.getText(), this);
-			pm2Media.convert();
+			String mode = Pm2MediaPrefs.getProperty(Pm2MediaPrefs.RUN_MODE, "convert");
+			if ("sync".equalsIgnoreCase(mode)) {
+				pm2Media.sync();
+			} else if ("mirror".equalsIgnoreCase(mode)) {
+				pm2Media.mirror();
+			} else {
+				pm2Media.convert();
+			}
 		} catch (Exception e) {
 			Logger.getInstance().logError("Exception while converting wiki: " + e.getLocalizedMessage());
 			e.printStackTrace();
@@ -260,11 +270,16 @@ private void addInputControlToPanel(JPanel panel, final int row, final String in
 	 *            the SimpleAttributeSet defining font face, font color and font
 	 *            size
 	 */
-	public void log(final String logText, final SimpleAttributeSet set) {
+	public synchronized void log(final String logText, final SimpleAttributeSet set) {
 		try {
 			logPane.getDocument().insertString(
 					logPane.getDocument().getLength(), logText.concat("\n"),
 					set);
+			// keep memory bounded during long running sync and mirror modes
+			int excess = logPane.getDocument().getLength() - MAX_LOG_LENGTH;
+			if (excess > 0) {
+				logPane.getDocument().remove(0, excess);
+			}
 			logScrollPane.repaint();
 			// setting cursors position to the end of the logPane
 			try {
@@ -0,0 +1,68 @@
+package org.gitub.pm2media;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * Keeps track of heap high-water marks during long runs.
+ *
+ * Two figures are reported: the highest heap use seen at all, which includes
+ * garbage not yet collected, and the highest heap use right after a garbage
+ * collection, which is what the program really keeps alive.  The latter must
+ * stay flat in a run without leaks.
+ *
+ * @author smootp
+ *
+ */
+public class HeapMonitor {
+	private static final long MEGABYTE = 1024 * 1024;
+
+	/** Number of samples between two reports. */
+	private final int reportInterval;
+
+	private int samples = 0;
+	private long peakUsed = 0;
+	private long peakLive = 0;
+
+	public HeapMonitor(final int reportInterval) {
+		this.reportInterval = Math.max(1, reportInterval);
+	}
+
+	/**
+	 * Records the current heap use and logs the high-water marks every
+	 * reportInterval samples.
+	 */
+	public void sample() {
+		long used = 0;
+		long live = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP) {
+				continue;
+			}
+			used += pool.getUsage().getUsed();
+			MemoryUsage afterCollection = pool.getCollectionUsage();
+			if (afterCollection != null) {
+				live += afterCollection.getUsed();
+			}
+		}
+		peakUsed = Math.max(peakUsed, used);
+		peakLive = Math.max(peakLive, live);
+
+		samples++;
+		if (samples % reportInterval == 0) {
+			report();
+		}
+	}
+
+	/**
+	 * Logs the high-water marks.
+	 */
+	public void report() {
+		Logger.getInstance().log("Heap after " + samples + " articles: high-water mark "
+				+ peakUsed / MEGABYTE + " MB, after garbage collection "
+				+ peakLive / MEGABYTE + " MB, limit "
+				+ Runtime.getRuntime().maxMemory() / MEGABYTE + " MB.");
+	}
+}
@@ -1,6 +1,7 @@
 package org.gitub.pm2media;
 
 import java.awt.Color;
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.FileWriter;
 import java.text.SimpleDateFormat;
@@ -45,6 +46,16 @@ public final class Logger {
 		dateFormat = new SimpleDateFormat("HH:mm:ss");
 	};
 	
+	/**
+	 * Whether pages are written to files by logPage().  Serializing every page
+	 * is expensive, so it is off in long run mode.
+	 */
+	private volatile boolean pageLogging = true;
+
+	public void setPageLogging(final boolean pageLogging) {
+		this.pageLogging = pageLogging;
+	}
+
 	/** Phases of operations which might cause errors. */
 	public enum Mode { OPEN, PARSE, POST, READ, ERROR, UPLOAD }
 	
@@ -105,8 +116,7 @@ public final class Logger {
 	 *            the text to be logged
 	 */
 	public void log(final String logText) {
-		Date date = new Date();
-		GUI.getInstance().log(dateFormat.format(date) + ": " + logText, defaultSet);
+		write(logText, defaultSet);
 	}
 
 	/**
@@ -116,8 +126,20 @@ public final class Logger {
 	 *            the text to be logged
 	 */
 	public void logError(final String logText) {
-		Date date = new Date();
-		GUI.getInstance().log(dateFormat.format(date) + ": " + logText, errorSet);
+		write(logText, errorSet);
+	}
+
+	private void write(final String logText, final SimpleAttributeSet set) {
+		String line;
+		synchronized (dateFormat) {
+			line = dateFormat.format(new Date()) + ": " + logText;
+		}
+		// no GUI when running headless, e.g. in unit tests
+		if (GraphicsEnvironment.isHeadless()) {
+			System.out.println(line);
+		} else {
+			GUI.getInstance().log(line, set);
+		}
 	}
 
 	public void logPage(final WikiPage page, final String filename) {
@@ -125,6 +147,9 @@ public final class Logger {
 	}
 
 	public void logPage(final HtmlPage page, final String filename) {
+		if (!pageLogging) {
+			return;
+		}
 		try {
 			logPage(page.asXml().toString(), filename);
 		} catch (Exception e) {
@@ -1,9 +1,30 @@
 package org.gitub.pm2media;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.FileBody;
 
 import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
@@ -19,6 +40,7 @@ public class MediaWiki {
 	private WikiParams wikiParams;
 	public final void setWikiParams(final WikiParams wikiParams) {
 		this.wikiParams = wikiParams;
+		WebClientPool.getInstance().allowHost(wikiParams.getURL());
 	}
 	public final MediaWiki withWikiParams(final WikiParams wikiParams) {
 		setWikiParams(wikiParams);
@@ -38,21 +60,124 @@ public class MediaWiki {
 		this.uploadPage = uploadPage;
 		return this;
 	}
+
+	/**
+	 * Told when posting an article has completed.  Posts may complete after
+	 * postArticle() returned, and the methods may be called from the threads
+	 * posting in parallel.
+	 */
+	public interface PostListener {
+		/**
+		 * Called when an article was posted, or found not to need posting.
+		 */
+		void postCompleted(Article article);
+
+		/**
+		 * Called when posting an article failed.
+		 */
+		void postFailed(Article article);
+	}
+
+	private PostListener postListener;
+	public final MediaWiki withPostListener(final PostListener postListener) {
+		this.postListener = postListener;
+		return this;
+	}
 	
 	/** containing cookie text */
 	static String cookie = "";
 
-	/** ArrayList containing all image names in order to prevent multiple upload */
-	ArrayList<String> attachments = new ArrayList<String>();
-
-	private final WebClient webClient = new WebClient();
+	private WebClient webClient = WebClientPool.getInstance().borrow();
 
 	private ArticleCache mediawikiCache;
 
+	/** Action API sessions, null when posting through the HTML forms. */
+	private MediaWikiSessionPool sessions;
+
+	/** SHA-1 of the files in the MediaWiki by file name, "" for files which do not exist. */
+	private final ConcurrentHashMap<String, String> fileSha1s = new ConcurrentHashMap<String, String>();
+
+	/** Dump the articles are written into instead of being posted, or null. */
+	private ArticleDump dump;
+
+	/** Articles waiting for the pre-flight check. */
+	private List<Article> pendingArticles = new ArrayList<Article>();
+
+	/** Anonymous API client for the pre-flight check when posting through the forms. */
+	private MediaWikiApi queryApi;
+
+	/** Articles posted in earlier runs, null if not kept. */
+	private PostManifest manifest;
+
+	/** Times a throttled edit is tried before giving up. */
+	private static final int MAX_THROTTLED_ATTEMPTS = 5;
+
+	/** Posts articles in parallel through the API, null to post one at a time. */
+	private ThreadPoolExecutor postExecutor;
+
+	/** Adapts the number of parallel posts to the load of the MediaWiki. */
+	private ConcurrencyLimiter postLimiter;
+
+	/** Posts handed to postExecutor and not yet completed. */
+	private int postsInProgress = 0;
+	private final Object postsLock = new Object();
+
 	public MediaWiki() {
 		webClient.addRequestHeader("Accept-Encoding", "");
-		mediawikiCache = new ArticleCache("mediawiki");
-		mediawikiCache.cleanCache();
+		mediawikiCache = ArticleCache.forName("mediawiki");
+
+		String manifestFile = Pm2MediaPrefs.getProperty(Pm2MediaPrefs.MEDIAWIKI_MANIFEST_FILE, "").trim();
+		if (!manifestFile.isEmpty()) {
+			manifest = new PostManifest(new File(manifestFile));
+		}
+	}
+
+	/**
+	 * Returns the WebClient to the pool.  The MediaWiki must not be used
+	 * afterwards.
+	 */
+	public void close() {
+		flush();
+		if (postExecutor != null) {
+			postExecutor.shutdown();
+			postExecutor = null;
+		}
+		if (manifest != null) {
+			manifest.close();
+		}
+		if (queryApi != null) {
+			queryApi.close();
+		}
+		if (sessions != null) {
+			sessions.close();
+		}
+		if (dump != null) {
+			try {
+				dump.close();
+			}
+			catch (IOException e) {
+				Logger.getInstance().logError("Failed to complete dump: " + e.getLocalizedMessage());
+			}
+			dump = null;
+		}
+		webClient.removeRequestHeader("Accept-Encoding");
+		WebClientPool.getInstance().release(webClient);
+	}
+
+	/**
+	 * Closes all pages and their window history, keeping the session.
+	 */
+	public void releasePages() {
+		webClient.closeAllWindows();
+	}
+
+	/**
+	 * Replaces the WebClient by a new one with the same session cookies, to
+	 * drop whatever state the old one has accumulated.
+	 */
+	public void recycleWebClient() {
+		webClient = WebClientPool.getInstance().recycle(webClient);
+		webClient.addRequestHeader("Accept-Encoding", "");
 	}
 
 	/**
@@ -62,15 +187,237 @@ public class MediaWiki {
 	 *            the article to be posted
 	 */
 	public void postArticle(Article article) {
-		String editLink = wikiParams.getURL() + "?title=" + article.getPathInWiki("/") + "&action=edit";
-
 		saveToCache(article);
+
+		if (dump != null) {
+			try {
+				Logger.getInstance().log("Dumping " + article.getPathInWiki("/") + ".");
+				dump.write(article);
+				notifyPostListener(article, true);
+			}
+			catch (IOException e) {
+				Logger.getInstance().logError("Failed to dump article " + article.getPathInWiki("/") + ": " + e.getLocalizedMessage());
+				notifyPostListener(article, false);
+			}
+			return;
+		}
 		
 		if (! Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_ARTICLES)) {
 			Logger.getInstance().log("Skipping upload of " + article.getPathInWiki("/") + ".");
+			notifyPostListener(article, true);
 			return;
 		}
 		
+		if (manifest != null && manifest.isUpToDate(article.getPathInWiki("/"), article.getBodySha1())) {
+			Logger.getInstance().log("Skipping " + article.getPathInWiki("/") + ", unchanged since last post.");
+			notifyPostListener(article, true);
+			return;
+		}
+
+		if (Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_PREFLIGHT)) {
+			pendingArticles.add(article);
+			if (pendingArticles.size() >= MediaWikiApi.MAX_TITLES_PER_QUERY) {
+				checkPendingArticles();
+			}
+			return;
+		}
+
+		submitArticle(article);
+	}
+
+	/**
+	 * Posts the articles waiting for the pre-flight check and waits for all
+	 * parallel posts to complete.
+	 */
+	public void flush() {
+		checkPendingArticles();
+		awaitPosts();
+	}
+
+	/**
+	 * Posts the articles waiting for the pre-flight check, skipping those
+	 * whose text the MediaWiki already has.  One query covers
+	 * MediaWikiApi.MAX_TITLES_PER_QUERY articles.
+	 */
+	private void checkPendingArticles() {
+		if (pendingArticles.isEmpty()) {
+			return;
+		}
+		List<Article> articles = pendingArticles;
+		pendingArticles = new ArrayList<Article>();
+
+		Map<String, String> sha1s = null;
+		List<String> titles = new ArrayList<String>(articles.size());
+		for (Article article : articles) {
+			titles.add(article.getPathInWiki("/"));
+		}
+		try {
+			sha1s = getQueryApi().getRevisionSha1s(titles);
+		}
+		catch (IOException e) {
+			Logger.getInstance().logError("Pre-flight check failed, posting all articles: " + e.getLocalizedMessage());
+		}
+
+		int unchanged = 0;
+		for (Article article : articles) {
+			if (sha1s != null && article.getBodySha1().equals(sha1s.get(article.getPathInWiki("/")))) {
+				unchanged++;
+				recordPost(article, PostManifest.UNCHANGED);
+				continue;
+			}
+			submitArticle(article);
+		}
+		Logger.getInstance().log("Pre-flight check: " + unchanged + " of " + articles.size() + " articles unchanged.");
+	}
+
+	private MediaWikiApi getQueryApi() {
+		if (sessions != null) {
+			return sessions.getApi();
+		}
+		if (queryApi == null) {
+			queryApi = new MediaWikiApi(getApiURL());
+		}
+		return queryApi;
+	}
+
+	/**
+	 * Posts an article into the MediaWiki without further checks and records
+	 * the result in the manifest.
+	 */
+	private void submitArticle(final Article article) {
+		if (postExecutor != null) {
+			synchronized (postsLock) {
+				postsInProgress++;
+			}
+			postExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						recordPost(article, postInParallel(article) ? PostManifest.POSTED : PostManifest.FAILED);
+					}
+					finally {
+						synchronized (postsLock) {
+							postsInProgress--;
+							postsLock.notifyAll();
+						}
+					}
+				}
+			});
+			return;
+		}
+
+		recordPost(article, postToWiki(article) ? PostManifest.POSTED : PostManifest.FAILED);
+	}
+
+	/**
+	 * Posts an article through the API once postLimiter allows another edit
+	 * in flight.  Edits the MediaWiki refuses for overload are repeated after
+	 * the delay it asks for.
+	 * 
+	 * @return false if the article could not be posted
+	 */
+	private boolean postInParallel(final Article article) {
+		for (int attempt = 1; ; attempt++) {
+			int retryAfter;
+			try {
+				postLimiter.acquire();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			long startTime = System.currentTimeMillis();
+			boolean overloaded = false;
+			try {
+				Logger.getInstance().log(article.getPathInWiki("/"), Logger.Mode.POST);
+				sessions.edit(article.getPathInWiki("/"), article.getBody(), Pm2Media.CHANGE_SUMMARY);
+				return true;
+			}
+			catch (MediaWikiApiException e) {
+				overloaded = e.isThrottled();
+				if (!overloaded || attempt == MAX_THROTTLED_ATTEMPTS) {
+					Logger.getInstance().logError("Failed to upload article " + article.getPathInWiki("/") + ": " + e.getLocalizedMessage());
+					return false;
+				}
+				retryAfter = Math.max(1, e.getRetryAfter());
+			}
+			catch (IOException e) {
+				Logger.getInstance().logError("Failed to upload article " + article.getPathInWiki("/") + ": " + e.getLocalizedMessage());
+				return false;
+			}
+			finally {
+				postLimiter.release(System.currentTimeMillis() - startTime, overloaded);
+			}
+
+			try {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(retryAfter));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Waits until all articles handed to postExecutor are posted.
+	 */
+	private void awaitPosts() {
+		synchronized (postsLock) {
+			while (postsInProgress > 0) {
+				try {
+					postsLock.wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private void notifyPostListener(final Article article, final boolean success) {
+		if (postListener == null) {
+			return;
+		}
+		if (success) {
+			postListener.postCompleted(article);
+		}
+		else {
+			postListener.postFailed(article);
+		}
+	}
+
+	private void recordPost(final Article article, final String result) {
+		if (manifest != null) {
+			try {
+				manifest.record(article.getPathInWiki("/"), article.getBodySha1(), result);
+			}
+			catch (IOException e) {
+				Logger.getInstance().logError("Could not record " + article.getPathInWiki("/") + " in post manifest: " + e.getLocalizedMessage());
+			}
+		}
+		notifyPostListener(article, !result.equals(PostManifest.FAILED));
+	}
+
+	/**
+	 * @return false if the article could not be posted
+	 */
+	private boolean postToWiki(final Article article) {
+		String editLink = wikiParams.getURL() + "?title=" + article.getPathInWiki("/") + "&action=edit";
+
+		if (sessions != null) {
+			try {
+				Logger.getInstance().log(article.getPathInWiki("/"), Logger.Mode.POST);
+				sessions.edit(article.getPathInWiki("/"), article.getBody(), Pm2Media.CHANGE_SUMMARY);
+				return true;
+			}
+			catch (IOException e) {
+				Logger.getInstance().logError("Failed to upload article " + article.getPathInWiki("/") + ": " + e.getLocalizedMessage());
+				return false;
+			}
+		}
+
 		// posting content into MediaWiki
 		try {
 			Logger.getInstance().log(editLink, Logger.Mode.READ);
@@ -82,14 +429,59 @@ public class MediaWiki {
 			
 			HtmlPage submitPage = page.clickSubmit("wpSave");
 			Logger.getInstance().logPage(submitPage, "article-post-results-page.html");
+			return isSaved(submitPage, article);
 		}
 		catch (Exception e) {
 			Logger.getInstance().logError("Failed to upload article " + article.getPathInWiki("/") + ": " + e.getLocalizedMessage());
 			e.printStackTrace();
+			return false;
 		}
-
 	}
 	
+	/**
+	 * Returns whether the page MediaWiki answered a submitted edit form with
+	 * shows the saved article.  A refused edit (edit conflict, spam filter,
+	 * lost session, ...) shows the edit form again, usually with an error box.
+	 */
+	private boolean isSaved(final HtmlPage resultPage, final Article article) {
+		String error = null;
+		if (resultPage.getFirstByXPath("//*[contains(concat(' ', @class, ' '), ' errorbox ')]") != null) {
+			error = "MediaWiki shows an error";
+		} else if (resultPage.getElementById("wpTextbox1") != null || !resultPage.getElementsByName("wpTextbox1").isEmpty()) {
+			error = "MediaWiki shows the edit form again";
+		} else if (resultPage.getUrl().toString().indexOf("action=") != -1) {
+			error = "MediaWiki did not redirect to the article";
+		}
+		if (error != null) {
+			Logger.getInstance().logError("Failed to upload article " + article.getPathInWiki("/") + ": " + error + ".");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the page MediaWiki answered an upload with.  An accepted upload
+	 * redirects to the description page of the file; an error, a warning, a
+	 * permission error or an expired session shows an error box or the
+	 * upload form again.
+	 */
+	private boolean isUploadAccepted(final HtmlPage resultPage, final Attachment attachment) {
+		String error = null;
+		if (resultPage.getFirstByXPath("//*[contains(concat(' ', @class, ' '), ' errorbox ')]") != null
+				|| resultPage.getFirstByXPath("//*[contains(concat(' ', @class, ' '), ' permissions-errors ')]") != null) {
+			error = "MediaWiki shows an error";
+		} else if (resultPage.getElementById("mw-upload-form") != null || !resultPage.getElementsByName("wpUploadFile").isEmpty()) {
+			error = "MediaWiki shows the upload form again";
+		} else if (this.uploadPage != null && resultPage.getUrl().toString().indexOf(this.uploadPage) != -1) {
+			error = "MediaWiki did not redirect to the file";
+		}
+		if (error != null) {
+			Logger.getInstance().logError("Failed to upload " + attachment.getFileName() + ": " + error + ".");
+			return false;
+		}
+		return true;
+	}
+
 	private void saveToCache(Article article) {
 		if (Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_USE_CACHE)) {
 			mediawikiCache.cacheArticle(article.getPathInWiki("/"), article.getBody());
@@ -102,6 +494,13 @@ public class MediaWiki {
 	 * @return the success of the login process
 	 */
 	public boolean login() {
+		if (!"post".equalsIgnoreCase(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.MEDIAWIKI_OUTPUT, "post"))) {
+			return openDump();
+		}
+		if ("api".equalsIgnoreCase(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.MEDIAWIKI_BACKEND, "form"))) {
+			return loginToApi();
+		}
+
 		// login with specified user
 		try {
 			WikiPage loginPage = new WikiPage(webClient.getPage(this.wikiParams.getURL() + "/" + loginPagePath)).withFormName("userlogin");
@@ -133,23 +532,301 @@ public class MediaWiki {
 	}
 
 	/**
-	 * Uploads an attachment onto a MediaWiki.
+	 * Logs the specified user, and the bot accounts listed as
+	 * mediawiki.account.1.username, mediawiki.account.2.username and so on,
+	 * into the MediaWiki Action API.  Articles are posted through the API
+	 * from then on, spread over the accounts.
+	 * 
+	 * @return the success of the login process, true if at least one
+	 *         account could log in
+	 */
+	private boolean loginToApi() {
+		if (sessions == null) {
+			sessions = new MediaWikiSessionPool(getApiURL())
+					.withMaxLag(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.MEDIAWIKI_MAX_LAG, 5))
+					.withChunkSize(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_CHUNK_SIZE_KB, 5120) * 1024)
+					.withSessionFile(new File(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.MEDIAWIKI_SESSION_FILE, "mediawiki-session.ser")))
+					.withAccount(wikiParams.getUsername(), wikiParams.getPassword());
+			for (int i = 1; ; i++) {
+				String username = Pm2MediaPrefs.getProperty(String.format(Pm2MediaPrefs.MEDIAWIKI_ACCOUNT_USERNAME_FORMAT, i));
+				String password = Pm2MediaPrefs.getProperty(String.format(Pm2MediaPrefs.MEDIAWIKI_ACCOUNT_PASSWORD_FORMAT, i));
+				if (username == null || username.trim().isEmpty() || password == null) {
+					break;
+				}
+				sessions.withAccount(username.trim(), password);
+			}
+		}
+
+		if (sessions.login() == 0) {
+			Logger.getInstance().logError("Failed to log into MediaWiki API.");
+			return false;
+		}
+		startParallelPosting();
+		return true;
+	}
+
+	/**
+	 * Opens the dump selected by mediawiki.output.  Nothing is posted into the
+	 * MediaWiki then, so there is no need to log in.
+	 * 
+	 * @return false if the output is unknown
+	 */
+	private boolean openDump() {
+		if (dump != null) {
+			return true;
+		}
+
+		String output = Pm2MediaPrefs.getProperty(Pm2MediaPrefs.MEDIAWIKI_OUTPUT, "post");
+		String fileName = Pm2MediaPrefs.getProperty(Pm2MediaPrefs.MEDIAWIKI_DUMP_FILE, "").trim();
+		if ("xmldump".equalsIgnoreCase(output)) {
+			dump = new XmlDumpWriter(new File(fileName.isEmpty() ? "pm2media-dump.xml" : fileName))
+					.withMaxFileSize(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.MEDIAWIKI_DUMP_MAX_FILE_SIZE_MB, 0) * 1024L * 1024L)
+					.withGzip(Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_DUMP_GZIP))
+					.withContributor(wikiParams.getUsername());
+			return true;
+		}
+		if ("sql".equalsIgnoreCase(output) || "tsv".equalsIgnoreCase(output)) {
+			boolean tabSeparated = "tsv".equalsIgnoreCase(output);
+			if (fileName.isEmpty()) {
+				fileName = tabSeparated ? "pm2media-dump" : "pm2media-dump.sql";
+			}
+			dump = new SqlDumpWriter(new File(fileName), tabSeparated)
+					.withFirstId(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.MEDIAWIKI_DUMP_FIRST_ID, 1))
+					.withBatchSize(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.MEDIAWIKI_DUMP_BATCH_SIZE, 500))
+					.withTablePrefix(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.MEDIAWIKI_DUMP_TABLE_PREFIX, "").trim())
+					.withActorId(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.MEDIAWIKI_DUMP_ACTOR_ID, 1))
+					.withCommentId(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.MEDIAWIKI_DUMP_COMMENT_ID, 1));
+			return true;
+		}
+
+		Logger.getInstance().logError("Unknown output " + output + ", expected post, xmldump, sql or tsv.");
+		return false;
+	}
+
+	/**
+	 * Starts the threads for posting in parallel if
+	 * mediawiki.maxParallelPosts is above 1.  The number of edits in flight
+	 * starts at 2 and adapts to the load of the MediaWiki.
+	 */
+	private void startParallelPosting() {
+		int maxParallelPosts = Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.MEDIAWIKI_MAX_PARALLEL_POSTS, 1);
+		if (maxParallelPosts <= 1 || postExecutor != null) {
+			return;
+		}
+		postLimiter = new ConcurrencyLimiter(2, 1, maxParallelPosts)
+				.withReportInterval(50);
+		// when all threads are busy and the queue is full, the converting
+		// thread posts itself, which keeps it from running far ahead
+		postExecutor = new ThreadPoolExecutor(maxParallelPosts, maxParallelPosts, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(maxParallelPosts * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	private String getApiURL() {
+		String apiURL = Pm2MediaPrefs.getProperty(Pm2MediaPrefs.MEDIAWIKI_API_URL, "").trim();
+		if (apiURL.isEmpty()) {
+			apiURL = MediaWikiApi.getApiURL(wikiParams.getURL());
+		}
+		return apiURL;
+	}
+
+	/**
+	 * Returns whether attachments are uploaded through the API.  Uploads then
+	 * need no WebClient, so transfer() and upload() may be called from any
+	 * thread.
+	 */
+	public boolean uploadsThroughApi() {
+		return sessions != null && dump == null;
+	}
+
+	/**
+	 * Returns whether uploads are checked against the files in the MediaWiki
+	 * first (mediawiki.upload.deduplicate, off by default), which needs the
+	 * API.  The check needs the hash of the file, so attachments are then
+	 * downloaded into the store rather than streamed.
+	 */
+	private boolean deduplicatesUploads() {
+		return uploadsThroughApi() && Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_DEDUPLICATE);
+	}
+
+	/**
+	 * Asks the MediaWiki for the SHA-1 of the files the attachments would be
+	 * uploaded as, in batches, so that the uploads need not ask one by one.
+	 */
+	public void prefetchFileSha1s(final Collection<Attachment> attachments) {
+		if (!deduplicatesUploads()) {
+			return;
+		}
+		Map<String, String> titles = new HashMap<String, String>();
+		for (Attachment attachment : attachments) {
+			String destName = new File(attachment.getFileName()).getName();
+			if (!fileSha1s.containsKey(destName)) {
+				titles.put("File:" + destName, destName);
+			}
+		}
+		if (titles.isEmpty()) {
+			return;
+		}
+		try {
+			Map<String, String> sha1s = sessions.getApi().getFileSha1s(titles.keySet());
+			for (Map.Entry<String, String> title : titles.entrySet()) {
+				String sha1 = sha1s.get(title.getKey());
+				fileSha1s.put(title.getValue(), sha1 == null ? "" : sha1);
+			}
+		}
+		catch (IOException e) {
+			Logger.getInstance().logError("Could not ask MediaWiki for its files: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Copies an attachment from the PmWiki into the MediaWiki.  When posting
+	 * through the API, the PmWiki's response is streamed straight into the
+	 * upload request and nothing is written to disk.  If that fails, the
+	 * attachment is downloaded into the AttachmentStore and uploaded from
+	 * there, so that retries need not fetch it again.
 	 * 
 	 * @param attachment
-	 *            the attachment to be uploaded
+	 *            the attachment to be copied
+	 * @param pmWiki
+	 *            the PmWiki to read the attachment from
+	 * @return false if the attachment could not be copied
 	 */
-	public final void upload(final Attachment attachment) {
-		if (attachments.contains(attachment.getFileName())) {
-			return; /* image already uploaded */
+	public final boolean transfer(final Attachment attachment, final PmWiki pmWiki) {
+		AttachmentStore store = AttachmentStore.getInstance();
+		String knownHash = store.getHash(attachment.getFileURL());
+		if (knownHash != null && store.isUploaded(getUploadTarget(attachment), knownHash)) {
+			return true; /* image already uploaded */
+		}
+
+		// deduplication needs the file's hash before the upload, files announced larger than a chunk go in chunks
+		if (uploadsThroughApi() && !deduplicatesUploads()
+				&& Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_ATTACHMENTS)
+				&& attachment.getSize() <= sessions.getChunkSize()
+				&& store.getFile(attachment.getFileURL()) == null) {
+			try {
+				if (streamUpload(attachment, pmWiki)) {
+					return true;
+				}
+			}
+			catch (IOException e) {
+				Logger.getInstance().log("Streaming " + attachment.getFileName() + " failed, downloading it first: "
+						+ e.getLocalizedMessage());
+			}
 		}
-		attachments.add(attachment.getFileName());			
 
+		return pmWiki.download(attachment) && upload(attachment);
+	}
+
+	/**
+	 * Passes the body of the PmWiki's response on as the file of an API
+	 * upload, through a small buffer.  Records the hash of what was sent.
+	 * 
+	 * @return false if the file is larger than a chunk or of unknown size,
+	 *         it is then uploaded from the store in chunks
+	 */
+	private boolean streamUpload(final Attachment attachment, final PmWiki pmWiki) throws IOException {
+		CloseableHttpResponse response = pmWiki.openAttachment(attachment);
+		try {
+			HttpEntity entity = response.getEntity();
+			if (entity.getContentLength() < 0 || entity.getContentLength() > sessions.getChunkSize()) {
+				return false;
+			}
+			DigestInputStream content = new DigestInputStream(entity.getContent(), AttachmentStore.newDigest());
+			String destName = new File(attachment.getFileName()).getName();
+
+			Logger.getInstance().log("Streaming " + attachment.getFileName() + " into MediaWiki");
+			sessions.upload(destName, MediaWikiApi.streamBody(content, entity.getContentLength(), destName),
+					Pm2Media.CHANGE_SUMMARY);
+
+			String hash = AttachmentStore.toHex(content.getMessageDigest().digest());
+			AttachmentStore.getInstance().recordHash(attachment.getFileURL(), hash);
+			AttachmentStore.getInstance().recordUpload(getUploadTarget(attachment), hash);
+			return true;
+		}
+		finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Uploads an attachment onto a MediaWiki, unless the same file has been
+	 * uploaded under the same name before, in this or an earlier run.
+	 * 
+	 * @param attachment
+	 *            the downloaded attachment to be uploaded
+	 * @return false if the attachment could not be uploaded
+	 */
+	public final boolean upload(final Attachment attachment) {
+		if (attachment.getSha256() != null
+				&& AttachmentStore.getInstance().isUploaded(getUploadTarget(attachment), attachment.getSha256())) {
+			return true; /* image already uploaded */
+		}
+
+		if (deduplicatesUploads() && Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_ATTACHMENTS)
+				&& isInWiki(attachment)) {
+			return true;
+		}
+
+		return reupload(attachment);
+	}
+
+	/**
+	 * Uploads an attachment onto a MediaWiki even if it has been uploaded
+	 * before, replacing the previous version.
+	 * 
+	 * @param attachment
+	 *            the downloaded attachment to be uploaded
+	 * @return false if the attachment could not be uploaded
+	 */
+	public final boolean reupload(final Attachment attachment) {
 		if (! Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_ATTACHMENTS)) {
 			Logger.getInstance().log("Skipping upload of " + attachment.getFileName() + ".");
-			return;
+			return true;
+		}
+
+		File localCopy = attachment.getLocalFile();
+		if (localCopy == null) {
+			Logger.getInstance().logError("Not uploading " + attachment.getFileName() + ", it was not downloaded.");
+			return false;
 		}
 		
-		File localCopy = new File(attachment.getFileName());
+		if (dump != null) {
+			try {
+				// importImages.php takes the file names from the directory
+				FileUtils.copyFile(localCopy, new File(attachment.getFileName()));
+				Logger.getInstance().log("Keeping " + attachment.getFileName() + " for importImages.php.");
+				return true;
+			}
+			catch (IOException e) {
+				Logger.getInstance().logError("Could not copy " + attachment.getFileName() + ": " + e.getLocalizedMessage());
+				return false;
+			}
+		}
+
+		if (sessions != null) {
+			String destName = new File(attachment.getFileName()).getName();
+			try {
+				Logger.getInstance().log("Uploading " + attachment.getFileName());
+				if (localCopy.length() > sessions.getChunkSize()) {
+					sessions.uploadChunked(destName, localCopy, Pm2Media.CHANGE_SUMMARY);
+				} else {
+					sessions.upload(destName, new FileBody(localCopy, ContentType.create(getContentType(attachment)), destName),
+							Pm2Media.CHANGE_SUMMARY);
+				}
+				AttachmentStore.getInstance().recordUpload(getUploadTarget(attachment), attachment.getSha256());
+				return true;
+			}
+			catch (IOException e) {
+				Logger.getInstance().logError("Failed to upload " + attachment.getFileName() + ": " + e.getLocalizedMessage());
+				return false;
+			}
+		}
+
+		if (localCopy.length() > Pm2Media.MAX_FILESIZE) {
+			Logger.getInstance().logError("Not uploading " + attachment.getFileName()
+					+ ", it is too large for the upload form; use mediawiki.backend=api.");
+			return false;
+		}
 
 		try {
 			String uploadURL = wikiParams.getURL() + "/" + this.uploadPage;
@@ -158,13 +835,22 @@ public class MediaWiki {
 
 			Logger.getInstance().log("Uploading " + attachment.getFileName());
 
-			uploadPage.setFileInputValue("wpUploadFile", localCopy); // Source file name
+			uploadPage.setFileInputValue("wpUploadFile", localCopy, getContentType(attachment)); // Source file name
+			// the stored copy is named by its hash
+			uploadPage.setTextInputValue("wpDestFile", new File(attachment.getFileName()).getName());
 			uploadPage.setCheckboxInputValue("wpIgnoreWarning", true);
 
 			// submit form
 			Logger.getInstance().logPage(uploadPage, "image_upload_page.html");
 			HtmlPage submitPage = uploadPage.clickSubmit("wpUpload");
 			Logger.getInstance().logPage(submitPage, "lastImageUpload.html");
+
+			// a refused upload must not be recorded, or no later run would try again
+			if (!isUploadAccepted(submitPage, attachment)) {
+				return false;
+			}
+			AttachmentStore.getInstance().recordUpload(getUploadTarget(attachment), attachment.getSha256());
+			return true;
 		}
 		catch (MalformedURLException e) {
 			e.printStackTrace();
@@ -172,8 +858,100 @@ public class MediaWiki {
 		catch (IOException e) {
 			e.printStackTrace();
 		}
+		return false;
+	}
+
+	/**
+	 * Looks for the content of a downloaded attachment among the files in the
+	 * MediaWiki, for instance from an earlier migration.  If it is there
+	 * under the attachment's name, nothing is left to do.  If it is there
+	 * under another name, a file redirect makes [[File:...]] links to the
+	 * attachment's name show the existing file, so posted articles need not
+	 * change.
+	 * 
+	 * @return true if the attachment need not be uploaded
+	 */
+	private boolean isInWiki(final Attachment attachment) {
+		File localCopy = attachment.getLocalFile();
+		if (localCopy == null || attachment.getSha256() == null) {
+			return false;
+		}
+		String destName = new File(attachment.getFileName()).getName();
+		try {
+			String sha1 = sha1Hex(localCopy);
+			String known = fileSha1s.get(destName);
+			if (known == null) {
+				known = sessions.getApi().getFileSha1s(Collections.singleton("File:" + destName)).get("File:" + destName);
+				known = known == null ? "" : known;
+				fileSha1s.put(destName, known);
+			}
+			if (known.equals(sha1)) {
+				Logger.getInstance().log("Not uploading " + attachment.getFileName() + ", MediaWiki has it already.");
+				AttachmentStore.getInstance().recordUpload(getUploadTarget(attachment), attachment.getSha256());
+				return true;
+			}
+			if (!known.isEmpty()) {
+				// another file has the name, it is replaced
+				return false;
+			}
+
+			String existing = sessions.getApi().findFileBySha1(sha1);
+			if (existing == null) {
+				return false;
+			}
+			Logger.getInstance().log("Not uploading " + attachment.getFileName() + ", redirecting it to the same file "
+					+ existing + ".");
+			sessions.edit("File:" + destName, "#REDIRECT [[File:" + existing + "]]", Pm2Media.CHANGE_SUMMARY);
+			fileSha1s.put(destName, sha1);
+			AttachmentStore.getInstance().recordUpload(getUploadTarget(attachment), attachment.getSha256());
+			return true;
+		}
+		catch (IOException e) {
+			Logger.getInstance().logError("Could not look for " + attachment.getFileName() + " in MediaWiki, uploading it: "
+					+ e.getLocalizedMessage());
+			return false;
+		}
+	}
+
+	private static String sha1Hex(final File file) throws IOException {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		InputStream input = new DigestInputStream(new FileInputStream(file), sha1);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			while (input.read(buffer) != -1) {
+				// digest only
+			}
+		}
 		finally {
-			localCopy.delete();			
+			input.close();
 		}
+		return AttachmentStore.toHex(sha1.digest());
+	}
+
+	/**
+	 * Returns the MIME type the PmWiki announced for an attachment, or one
+	 * guessed from its name.  The stored copy has no extension to guess from.
+	 */
+	private static String getContentType(final Attachment attachment) {
+		if (attachment.getContentType() != null) {
+			// without parameters such as charset
+			return attachment.getContentType().split(";")[0].trim();
+		}
+		String guessed = URLConnection.guessContentTypeFromName(attachment.getFileName());
+		return guessed == null ? ContentType.DEFAULT_BINARY.getMimeType() : guessed;
+	}
+
+	/**
+	 * Returns the MediaWiki and file name an attachment is uploaded to, for
+	 * the AttachmentStore.
+	 */
+	private String getUploadTarget(final Attachment attachment) {
+		return wikiParams.getURL() + "/" + new File(attachment.getFileName()).getName();
 	}
 }
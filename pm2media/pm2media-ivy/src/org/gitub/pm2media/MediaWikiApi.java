@@ -0,0 +1,683 @@
+package org.gitub.pm2media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Client for the MediaWiki Action API (api.php).  Posting through the API
+ * needs one small request per article instead of loading and submitting the
+ * HTML edit form.
+ *
+ * The session cookies can be kept in a file, so that later runs reuse the
+ * login.  The CSRF token is fetched once per session and only fetched again
+ * if the wiki rejects it.
+ *
+ * @author smootp
+ *
+ */
+public class MediaWikiApi {
+	private static final ObjectMapper JSON = new ObjectMapper();
+
+	/** Titles per query the API accepts from users without the apihighlimits right. */
+	public static final int MAX_TITLES_PER_QUERY = 50;
+
+	/** Attempts per chunk of a chunked upload. */
+	private static final int CHUNK_ATTEMPTS = 4;
+
+	/** Times to ask whether an asynchronous upload is published before giving up. */
+	private static final int PUBLISH_POLLS = 900;
+
+	/** URL of api.php. */
+	private final String apiURL;
+
+	/** Seconds of replication lag at which the wiki should refuse our edits. */
+	private int maxLag = 5;
+	public MediaWikiApi withMaxLag(final int maxLag) {
+		this.maxLag = maxLag;
+		return this;
+	}
+
+	/** Bytes per request of a chunked upload. */
+	private int chunkSize = 5 * 1024 * 1024;
+	public MediaWikiApi withChunkSize(final int chunkSize) {
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/** Milliseconds before sending a failed chunk again, times the attempt. */
+	private long chunkRetryDelayMillis = 2000;
+	public MediaWikiApi withChunkRetryDelayMillis(final long chunkRetryDelayMillis) {
+		this.chunkRetryDelayMillis = chunkRetryDelayMillis;
+		return this;
+	}
+
+	/** Milliseconds between asking whether an asynchronous upload is published. */
+	private long publishPollMillis = 2000;
+	public MediaWikiApi withPublishPollMillis(final long publishPollMillis) {
+		this.publishPollMillis = publishPollMillis;
+		return this;
+	}
+
+	/** File to keep the session cookies in between runs, or null. */
+	private File sessionFile;
+	public MediaWikiApi withSessionFile(final File sessionFile) {
+		this.sessionFile = sessionFile;
+		loadSession();
+		return this;
+	}
+
+	private BasicCookieStore cookieStore = new BasicCookieStore();
+
+	private final CloseableHttpClient httpClient;
+
+	private volatile String csrfToken;
+
+	/**
+	 * @param apiURL
+	 *            URL of the wiki's api.php
+	 */
+	public MediaWikiApi(final String apiURL) {
+		this.apiURL = apiURL;
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(64);
+		connectionManager.setDefaultMaxPerRoute(64);
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(30000)
+				.setSocketTimeout(120000)
+				.build();
+
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setDefaultCookieStore(new DelegatingCookieStore())
+				.setUserAgent(Pm2Media.USER_AGENT)
+				.build();
+	}
+
+	/**
+	 * Returns the api.php URL belonging to the index.php URL of a wiki.
+	 */
+	public static String getApiURL(final String wikiURL) {
+		int slash = wikiURL.lastIndexOf('/');
+		if (wikiURL.endsWith(".php") && slash != -1) {
+			return wikiURL.substring(0, slash) + "/api.php";
+		}
+		return wikiURL + (wikiURL.endsWith("/") ? "" : "/") + "api.php";
+	}
+
+	/**
+	 * Logs in unless the session kept from an earlier run still belongs to
+	 * the user.  Tries action=login first, which works for bot passwords, and
+	 * action=clientlogin second.
+	 */
+	public void login(final String username, final String password) throws IOException {
+		// a bot password login "User@bot" gives a session of "User"
+		String user = username.indexOf('@') != -1 ? username.substring(0, username.indexOf('@')) : username;
+		if (user.replace('_', ' ').equalsIgnoreCase(getLoggedInUser())) {
+			Logger.getInstance().log("Reusing MediaWiki session of " + username + ".");
+			return;
+		}
+
+		cookieStore.clear();
+		csrfToken = null;
+
+		String loginToken;
+		try {
+			loginToken = getToken("login");
+		} catch (MediaWikiApiException e) {
+			// MediaWiki before 1.27 has no login tokens in meta=tokens
+			loginToken = "";
+		}
+		JsonNode result = post(params("action", "login",
+				"lgname", username,
+				"lgpassword", password,
+				"lgtoken", loginToken)).path("login");
+
+		if (result.path("result").asText().equals("NeedToken")) {
+			// MediaWiki before 1.27 hands out the token in the first answer
+			result = post(params("action", "login",
+					"lgname", username,
+					"lgpassword", password,
+					"lgtoken", result.path("token").asText())).path("login");
+		}
+
+		if (!result.path("result").asText().equals("Success")) {
+			JsonNode clientLogin = post(params("action", "clientlogin",
+					"username", username,
+					"password", password,
+					"logintoken", getToken("login"),
+					"loginreturnurl", apiURL)).path("clientlogin");
+			if (!clientLogin.path("status").asText().equals("PASS")) {
+				throw new MediaWikiApiException("login-failed",
+						result.has("reason") ? result.path("reason").asText() : clientLogin.path("message").asText(), 0);
+			}
+		}
+
+		saveSession();
+	}
+
+	/**
+	 * Returns the name of the user the session belongs to, or null if the
+	 * session is anonymous.
+	 */
+	public String getLoggedInUser() throws IOException {
+		JsonNode userInfo = post(params("action", "query", "meta", "userinfo")).path("query").path("userinfo");
+		if (userInfo.has("anon")) {
+			return null;
+		}
+		return userInfo.path("name").textValue();
+	}
+
+	/**
+	 * Saves the text of a page.  The edit fails with an error code starting
+	 * with "assert" if the session is no longer logged in.
+	 *
+	 * @throws MediaWikiApiException
+	 *             if the wiki refuses the edit; check isThrottled() to see
+	 *             whether the edit should be repeated later
+	 */
+	public void edit(final String title, final String text, final String summary) throws IOException {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				JsonNode result = post(params("action", "edit",
+						"title", title,
+						"text", text,
+						"summary", summary,
+						"bot", "1",
+						"assert", "user",
+						"maxlag", Integer.toString(maxLag),
+						"token", getCsrfToken())).path("edit");
+				if (!result.path("result").asText().equals("Success")) {
+					throw new MediaWikiApiException("edit-failed", result.toString(), 0);
+				}
+				return;
+			} catch (MediaWikiApiException e) {
+				if (attempt == 0 && e.getCode().equals("badtoken")) {
+					// session expired, the token is stale
+					csrfToken = null;
+					continue;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Uploads a file, replacing an older version of the same name.  The
+	 * content is sent as it is read, so the body of another response can be
+	 * passed through without writing it to disk.  Only a FileBody is sent
+	 * again after a stale token, streams cannot be read twice.
+	 *
+	 * @throws MediaWikiApiException
+	 *             if the wiki refuses the upload
+	 */
+	public void upload(final String filename, final ContentBody file, final String comment) throws IOException {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				ContentType text = ContentType.create("text/plain", Consts.UTF_8);
+				HttpPost request = new HttpPost(apiURL);
+				request.setEntity(MultipartEntityBuilder.create()
+						.setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+						.setCharset(Consts.UTF_8)
+						.addTextBody("action", "upload", text)
+						.addTextBody("format", "json", text)
+						.addTextBody("filename", filename, text)
+						.addTextBody("comment", comment, text)
+						.addTextBody("ignorewarnings", "1", text)
+						.addTextBody("assert", "user", text)
+						.addTextBody("maxlag", Integer.toString(maxLag), text)
+						.addTextBody("token", getCsrfToken(), text)
+						.addPart("file", file)
+						.build());
+				JsonNode result = execute(request).path("upload");
+				if (!result.path("result").asText().equals("Success")) {
+					throw new MediaWikiApiException("upload-failed", result.toString(), 0);
+				}
+				return;
+			} catch (MediaWikiApiException e) {
+				if (e.getCode().equals("fileexists-no-change")) {
+					// the wiki has this very file already
+					return;
+				}
+				if (attempt == 0 && e.getCode().equals("badtoken") && file instanceof FileBody) {
+					csrfToken = null;
+					continue;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Uploads a file in chunks of chunkSize bytes, for files too large for a
+	 * single request.  The chunks are collected in the user's upload stash
+	 * (stash=1, offset, filekey) and published as the named file at the end.
+	 * A chunk which fails is sent again on its own, so a broken connection
+	 * costs one chunk rather than the whole file.  If the stash got a chunk
+	 * whose answer was lost, it names the offset it expects and the upload
+	 * goes on from there.
+	 *
+	 * The file is published with async=1, so the wiki assembles it in its
+	 * job queue instead of within the request, which times out for large
+	 * files; the upload then polls until the file is published.  Wikis
+	 * without asynchronous uploads publish it at once.
+	 *
+	 * @throws MediaWikiApiException
+	 *             if the wiki refuses a chunk or the upload
+	 */
+	public void uploadChunked(final String filename, final File file, final String comment) throws IOException {
+		long size = file.length();
+		String filekey = null;
+		long offset = 0;
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			while (offset < size) {
+				byte[] chunk = new byte[(int) Math.min(chunkSize, size - offset)];
+				input.seek(offset);
+				input.readFully(chunk);
+				JsonNode result = uploadChunk(filename, size, offset, filekey, chunk);
+				filekey = result.path("filekey").asText();
+				offset = result.path("result").asText().equals("Success") ? size : result.path("offset").asLong(offset + chunk.length);
+			}
+		} finally {
+			input.close();
+		}
+
+		for (int attempt = 0; ; attempt++) {
+			try {
+				JsonNode result = post(params("action", "upload",
+						"filename", filename,
+						"filekey", filekey,
+						"comment", comment,
+						"ignorewarnings", "1",
+						"async", "1",
+						"assert", "user",
+						"maxlag", Integer.toString(maxLag),
+						"token", getCsrfToken())).path("upload");
+				for (int poll = 0; result.path("result").asText().equals("Poll"); poll++) {
+					if (poll == PUBLISH_POLLS) {
+						throw new MediaWikiApiException("upload-timeout", filename + " not published in time: " + result, 0);
+					}
+					pause(publishPollMillis);
+					result = post(params("action", "upload",
+							"checkstatus", "1",
+							"filekey", filekey,
+							"assert", "user",
+							"token", getCsrfToken())).path("upload");
+				}
+				if (!result.path("result").asText().equals("Success")) {
+					throw new MediaWikiApiException("upload-failed", result.toString(), 0);
+				}
+				return;
+			} catch (MediaWikiApiException e) {
+				if (e.getCode().equals("fileexists-no-change")) {
+					return;
+				}
+				if (attempt == 0 && e.getCode().equals("badtoken")) {
+					csrfToken = null;
+					continue;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Sends one chunk into the upload stash, repeating it after server errors
+	 * and broken connections.
+	 *
+	 * @return the "upload" part of the answer; after a lost answer its
+	 *         "offset" is the one the stash expects, which may lie past the
+	 *         chunk
+	 */
+	private JsonNode uploadChunk(final String filename, final long size, final long offset, final String filekey,
+			final byte[] chunk) throws IOException {
+		boolean answerLost = false;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				ContentType text = ContentType.create("text/plain", Consts.UTF_8);
+				MultipartEntityBuilder entity = MultipartEntityBuilder.create()
+						.setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+						.setCharset(Consts.UTF_8)
+						.addTextBody("action", "upload", text)
+						.addTextBody("format", "json", text)
+						.addTextBody("filename", filename, text)
+						.addTextBody("stash", "1", text)
+						.addTextBody("filesize", Long.toString(size), text)
+						.addTextBody("offset", Long.toString(offset), text)
+						.addTextBody("ignorewarnings", "1", text)
+						.addTextBody("assert", "user", text)
+						.addTextBody("token", getCsrfToken(), text)
+						.addBinaryBody("chunk", chunk, ContentType.DEFAULT_BINARY, filename);
+				if (filekey != null) {
+					entity.addTextBody("filekey", filekey, text);
+				}
+				HttpPost request = new HttpPost(apiURL);
+				request.setEntity(entity.build());
+				JsonNode result = execute(request).path("upload");
+				String status = result.path("result").asText();
+				if (!status.equals("Continue") && !status.equals("Success")) {
+					throw new MediaWikiApiException("upload-failed", result.toString(), 0);
+				}
+				return result;
+			} catch (MediaWikiApiException e) {
+				// the stash has the chunk whose answer was lost, or more of the file
+				if (answerLost && filekey != null && e.getCode().equals("stashfailed") && e.getError() != null
+						&& e.getError().path("offset").asLong(-1) > offset) {
+					Logger.getInstance().log("Upload stash of " + filename + " expects offset "
+							+ e.getError().path("offset").asLong() + ", going on from there.");
+					return JSON.createObjectNode()
+							.put("result", "Continue")
+							.put("filekey", filekey)
+							.put("offset", e.getError().path("offset").asLong());
+				}
+				if (e.getCode().equals("badtoken")) {
+					csrfToken = null;
+				} else if (!e.getCode().startsWith("http-5") && !e.getCode().equals("maxlag")) {
+					throw e;
+				}
+				if (attempt == CHUNK_ATTEMPTS) {
+					throw e;
+				}
+				Logger.getInstance().log("Chunk at " + offset + " of " + filename + " failed, sending it again: "
+						+ e.getLocalizedMessage());
+				pause(e.getRetryAfter() > 0 ? TimeUnit.SECONDS.toMillis(e.getRetryAfter()) : chunkRetryDelayMillis * attempt);
+			} catch (IOException e) {
+				if (attempt == CHUNK_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				answerLost = true;
+				Logger.getInstance().log("Chunk at " + offset + " of " + filename + " failed, sending it again: "
+						+ e.getLocalizedMessage());
+				pause(chunkRetryDelayMillis * attempt);
+			}
+		}
+	}
+
+	private static void pause(final long millis) throws InterruptedIOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Upload interrupted");
+		}
+	}
+
+	/**
+	 * Returns a multipart body reading a stream of known length, so that the
+	 * upload request is not sent chunked.
+	 *
+	 * @param length
+	 *            the number of bytes in the stream, or -1 if not known
+	 */
+	public static ContentBody streamBody(final InputStream content, final long length, final String filename) {
+		return new InputStreamBody(content, ContentType.DEFAULT_BINARY, filename) {
+			@Override
+			public long getContentLength() {
+				return length;
+			}
+		};
+	}
+
+	/**
+	 * Returns the SHA-1 (hex) of the latest revision of each page, or null for
+	 * pages which do not exist.  At most MAX_TITLES_PER_QUERY titles are asked
+	 * for per request.
+	 */
+	public Map<String, String> getRevisionSha1s(final Collection<String> titles) throws IOException {
+		return getSha1s(titles, false);
+	}
+
+	/**
+	 * Returns the SHA-1 (hex) of the current version of each file, or null
+	 * for files which do not exist.  The titles include the File: prefix.  At
+	 * most MAX_TITLES_PER_QUERY titles are asked for per request.
+	 */
+	public Map<String, String> getFileSha1s(final Collection<String> titles) throws IOException {
+		return getSha1s(titles, true);
+	}
+
+	/**
+	 * Returns the name of a file in the wiki whose content has the given
+	 * SHA-1 (hex), or null if there is none.  The API takes one hash per
+	 * request.
+	 */
+	public String findFileBySha1(final String sha1) throws IOException {
+		JsonNode images = post(params("action", "query",
+				"list", "allimages",
+				"aisha1", sha1,
+				"ailimit", "1")).path("query").path("allimages");
+		return images.size() == 0 ? null : images.path(0).path("name").textValue();
+	}
+
+	private Map<String, String> getSha1s(final Collection<String> titles, final boolean files) throws IOException {
+		Map<String, String> sha1s = new HashMap<String, String>();
+		List<String> batch = new ArrayList<String>(MAX_TITLES_PER_QUERY);
+		for (String title : titles) {
+			batch.add(title);
+			if (batch.size() == MAX_TITLES_PER_QUERY) {
+				querySha1s(batch, sha1s, files);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			querySha1s(batch, sha1s, files);
+		}
+		return sha1s;
+	}
+
+	private void querySha1s(final List<String> titles, final Map<String, String> sha1s, final boolean files)
+			throws IOException {
+		StringBuilder joined = new StringBuilder();
+		for (String title : titles) {
+			if (joined.length() > 0) {
+				joined.append('|');
+			}
+			joined.append(title);
+		}
+		JsonNode query = post(files
+				? params("action", "query", "prop", "imageinfo", "iiprop", "sha1", "titles", joined.toString())
+				: params("action", "query", "prop", "revisions", "rvprop", "sha1", "titles", joined.toString())).path("query");
+
+		// the wiki answers with its own spelling of the titles
+		Map<String, String> normalized = new HashMap<String, String>();
+		for (JsonNode mapping : query.path("normalized")) {
+			normalized.put(mapping.path("from").asText(), mapping.path("to").asText());
+		}
+		Map<String, String> pageSha1s = new HashMap<String, String>();
+		for (JsonNode page : query.path("pages")) {
+			JsonNode version = page.path(files ? "imageinfo" : "revisions").path(0);
+			pageSha1s.put(page.path("title").asText(), version.path("sha1").textValue());
+		}
+
+		for (String title : titles) {
+			String wikiTitle = normalized.containsKey(title) ? normalized.get(title) : title;
+			sha1s.put(title, pageSha1s.get(wikiTitle));
+		}
+	}
+
+	/**
+	 * Returns the CSRF token of the session, fetching it on first use.
+	 */
+	public String getCsrfToken() throws IOException {
+		String token = csrfToken;
+		if (token == null) {
+			token = getToken("csrf");
+			csrfToken = token;
+		}
+		return token;
+	}
+
+	/**
+	 * Writes the session cookies to the session file and releases all
+	 * connections.
+	 */
+	public void close() {
+		saveSession();
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+
+	private String getToken(final String type) throws IOException {
+		JsonNode tokens = post(params("action", "query", "meta", "tokens", "type", type)).path("query").path("tokens");
+		String token = tokens.path(type + "token").textValue();
+		if (token == null) {
+			throw new MediaWikiApiException("notoken", "No " + type + " token in " + tokens, 0);
+		}
+		return token;
+	}
+
+	/**
+	 * Sends a POST request to the API and returns the parsed answer.
+	 */
+	JsonNode post(final List<NameValuePair> params) throws IOException {
+		params.add(new BasicNameValuePair("format", "json"));
+		HttpPost request = new HttpPost(apiURL);
+		request.setEntity(new UrlEncodedFormEntity(params, "UTF-8"));
+		return execute(request);
+	}
+
+	JsonNode execute(final HttpUriRequest request) throws IOException {
+		CloseableHttpResponse response = httpClient.execute(request);
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), "UTF-8");
+			if (status != 200) {
+				throw new MediaWikiApiException("http-" + status, response.getStatusLine().getReasonPhrase(),
+						getRetryAfter(response));
+			}
+
+			JsonNode answer = JSON.readTree(body);
+			JsonNode error = answer.path("error");
+			if (!error.isMissingNode()) {
+				throw new MediaWikiApiException(error.path("code").asText(), error.path("info").asText(),
+						getRetryAfter(response), error);
+			}
+			return answer;
+		} finally {
+			response.close();
+		}
+	}
+
+	private static int getRetryAfter(final CloseableHttpResponse response) {
+		Header retryAfter = response.getFirstHeader("Retry-After");
+		if (retryAfter == null) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(retryAfter.getValue().trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	static List<NameValuePair> params(final String... namesAndValues) {
+		List<NameValuePair> params = new ArrayList<NameValuePair>();
+		for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+			params.add(new BasicNameValuePair(namesAndValues[i], namesAndValues[i + 1]));
+		}
+		return params;
+	}
+
+	private void loadSession() {
+		if (sessionFile == null || !sessionFile.exists()) {
+			return;
+		}
+		try {
+			ObjectInputStream input = new ObjectInputStream(new FileInputStream(sessionFile));
+			try {
+				cookieStore = (BasicCookieStore) input.readObject();
+			} finally {
+				input.close();
+			}
+		} catch (Exception e) {
+			Logger.getInstance().logError("Could not read MediaWiki session " + sessionFile + ", logging in again.");
+		}
+	}
+
+	private void saveSession() {
+		if (sessionFile == null) {
+			return;
+		}
+		try {
+			ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(sessionFile));
+			try {
+				output.writeObject(cookieStore);
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not save MediaWiki session to " + sessionFile + ".");
+		}
+	}
+
+	/**
+	 * Cookie store of the HTTP client, forwarding to cookieStore so that a
+	 * session loaded after the client was built is used.
+	 */
+	private class DelegatingCookieStore implements CookieStore {
+		@Override
+		public void addCookie(final Cookie cookie) {
+			cookieStore.addCookie(cookie);
+		}
+
+		@Override
+		public List<Cookie> getCookies() {
+			return cookieStore.getCookies();
+		}
+
+		@Override
+		public boolean clearExpired(final Date date) {
+			return cookieStore.clearExpired(date);
+		}
+
+		@Override
+		public void clear() {
+			cookieStore.clear();
+		}
+	}
+}
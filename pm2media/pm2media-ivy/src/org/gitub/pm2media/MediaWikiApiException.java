@@ -0,0 +1,61 @@
+package org.gitub.pm2media;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Error reported by the MediaWiki Action API, or an HTTP status telling the
+ * client to slow down.
+ *
+ * @author smootp
+ *
+ */
+public class MediaWikiApiException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/** API error code (e.g. "maxlag", "badtoken") or "http-" followed by the status code. */
+	private final String code;
+
+	/** Seconds the server asked us to wait, 0 if it did not say. */
+	private final int retryAfter;
+
+	/** The "error" part of the answer, with the data beyond code and info, or null. */
+	private final transient JsonNode error;
+
+	public MediaWikiApiException(final String code, final String message, final int retryAfter) {
+		this(code, message, retryAfter, null);
+	}
+
+	public MediaWikiApiException(final String code, final String message, final int retryAfter, final JsonNode error) {
+		super(code + ": " + message);
+		this.code = code;
+		this.retryAfter = retryAfter;
+		this.error = error;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * Returns the "error" part of the API answer, e.g. with the "offset" the
+	 * upload stash expects, or null if the error came from HTTP.
+	 */
+	public JsonNode getError() {
+		return error;
+	}
+
+	/**
+	 * Returns whether the server is overloaded (replication lag, rate limit,
+	 * HTTP 429 or 503) and the request should be repeated later.
+	 */
+	public boolean isThrottled() {
+		return "maxlag".equals(code) || "ratelimited".equals(code)
+				|| "http-429".equals(code) || "http-503".equals(code);
+	}
+}
@@ -0,0 +1,326 @@
+package org.gitub.pm2media;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+
+/**
+ * API sessions of several bot accounts, to get past the edit rate limit
+ * MediaWiki imposes per user.  Each edit goes to the session with the fewest
+ * edits in flight.
+ *
+ * A session whose account hits the rate limit rests for a while and the edit
+ * is repeated on another session.  A session which lost its login is logged
+ * in again; if that fails, it is left out for a few minutes while the others
+ * carry on.  When the login of every session failed, the request fails.
+ *
+ * @author smootp
+ *
+ */
+public class MediaWikiSessionPool {
+	/** Seconds an account rests after hitting the rate limit, MediaWiki does not say. */
+	private static final int RATE_LIMIT_PAUSE = 30;
+
+	/** Seconds before logging in again a session whose login failed. */
+	private static final int LOGIN_RETRY_PAUSE = 300;
+
+	private final String apiURL;
+
+	private int maxLag = 5;
+	public MediaWikiSessionPool withMaxLag(final int maxLag) {
+		this.maxLag = maxLag;
+		return this;
+	}
+
+	/** Bytes per request of chunked uploads. */
+	private int chunkSize = 5 * 1024 * 1024;
+	public MediaWikiSessionPool withChunkSize(final int chunkSize) {
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/** Session file of the accounts, the user name is inserted before the extension. */
+	private File sessionFile;
+	public MediaWikiSessionPool withSessionFile(final File sessionFile) {
+		this.sessionFile = sessionFile;
+		return this;
+	}
+
+	private final List<Session> sessions = new ArrayList<Session>();
+
+	public MediaWikiSessionPool(final String apiURL) {
+		this.apiURL = apiURL;
+	}
+
+	/**
+	 * Adds a bot account.  Accounts added twice are ignored.
+	 */
+	public synchronized MediaWikiSessionPool withAccount(final String username, final String password) {
+		for (Session session : sessions) {
+			if (session.username.equalsIgnoreCase(username)) {
+				return this;
+			}
+		}
+		MediaWikiApi api = new MediaWikiApi(apiURL).withMaxLag(maxLag).withChunkSize(chunkSize);
+		if (sessionFile != null) {
+			api.withSessionFile(getSessionFile(username));
+		}
+		sessions.add(new Session(api, username, password));
+		return this;
+	}
+
+	/**
+	 * Logs all accounts in.
+	 *
+	 * @return the number of sessions logged in
+	 */
+	public int login() {
+		List<Session> all;
+		synchronized (this) {
+			all = new ArrayList<Session>(sessions);
+		}
+		int loggedIn = 0;
+		for (Session session : all) {
+			try {
+				login(session);
+				loggedIn++;
+			} catch (IOException e) {
+				// left out for now, logged in again later
+			}
+		}
+		Logger.getInstance().log(loggedIn + " of " + all.size() + " MediaWiki accounts logged in.");
+		return loggedIn;
+	}
+
+	/**
+	 * Saves the text of a page through one of the sessions.
+	 *
+	 * @throws MediaWikiApiException
+	 *             if the wiki refuses the edit on every session that was tried
+	 */
+	public void edit(final String title, final String text, final String summary) throws IOException {
+		call(new ApiCall() {
+			@Override
+			public void call(final MediaWikiApi api) throws IOException {
+				api.edit(title, text, summary);
+			}
+		}, true);
+	}
+
+	/**
+	 * Uploads a file through one of the sessions.  A stream is sent once, a
+	 * file is repeated on another session like an edit.
+	 *
+	 * @throws MediaWikiApiException
+	 *             if the wiki refuses the upload
+	 */
+	public void upload(final String filename, final ContentBody file, final String comment) throws IOException {
+		call(new ApiCall() {
+			@Override
+			public void call(final MediaWikiApi api) throws IOException {
+				api.upload(filename, file, comment);
+			}
+		}, file instanceof FileBody);
+	}
+
+	/**
+	 * Uploads a large file in chunks through one of the sessions.  The stash
+	 * belongs to the account, so all chunks go through the same session; if
+	 * the account hits the rate limit, the upload starts over on another.
+	 *
+	 * @throws MediaWikiApiException
+	 *             if the wiki refuses the upload
+	 */
+	public void uploadChunked(final String filename, final File file, final String comment) throws IOException {
+		call(new ApiCall() {
+			@Override
+			public void call(final MediaWikiApi api) throws IOException {
+				api.uploadChunked(filename, file, comment);
+			}
+		}, true);
+	}
+
+	/** A request made through one of the sessions. */
+	private interface ApiCall {
+		void call(MediaWikiApi api) throws IOException;
+	}
+
+	/**
+	 * Makes a request through the least busy session, moving on to another
+	 * session if the account hit the rate limit or lost its login.
+	 *
+	 * @param repeatable
+	 *            false if the request must not be sent twice
+	 */
+	private void call(final ApiCall apiCall, final boolean repeatable) throws IOException {
+		MediaWikiApiException lastError = null;
+		int attempts;
+		synchronized (this) {
+			attempts = repeatable ? sessions.size() + 1 : 1;
+		}
+		for (int attempt = 0; attempt < attempts; attempt++) {
+			Session session = acquire();
+			try {
+				apiCall.call(session.api);
+				return;
+			} catch (MediaWikiApiException e) {
+				lastError = e;
+				if (e.getCode().equals("ratelimited")) {
+					Logger.getInstance().log("Account " + session.username + " hit the rate limit, pausing it.");
+					session.pause(Math.max(RATE_LIMIT_PAUSE, e.getRetryAfter()));
+				} else if (e.getCode().startsWith("assert")) {
+					// session expired, log in before its next edit
+					Logger.getInstance().log("Session of " + session.username + " expired.");
+					session.loginNeeded = true;
+				} else {
+					throw e;
+				}
+			} finally {
+				release(session);
+			}
+		}
+		throw lastError;
+	}
+
+	/**
+	 * Returns the API client of a logged in session, for queries.
+	 */
+	public synchronized MediaWikiApi getApi() {
+		for (Session session : sessions) {
+			if (!session.loginNeeded) {
+				return session.api;
+			}
+		}
+		return sessions.get(0).api;
+	}
+
+	public synchronized int size() {
+		return sessions.size();
+	}
+
+	public synchronized void close() {
+		for (Session session : sessions) {
+			session.api.close();
+		}
+	}
+
+	/**
+	 * Returns the session with the fewest edits in flight among those not
+	 * resting, waiting for one to become available if needed.  Logs in
+	 * sessions which need it.
+	 *
+	 * @throws IOException
+	 *             the error of the last login, once the login of every
+	 *             session failed
+	 */
+	private Session acquire() throws IOException {
+		IOException loginError = null;
+		int failedLogins = 0;
+		while (true) {
+			Session chosen = null;
+			long earliest = Long.MAX_VALUE;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				for (Session session : sessions) {
+					if (session.availableAt > now) {
+						earliest = Math.min(earliest, session.availableAt);
+					} else if (chosen == null || session.inFlight < chosen.inFlight) {
+						chosen = session;
+					}
+				}
+				if (chosen != null) {
+					chosen.inFlight++;
+				}
+			}
+
+			if (chosen == null) {
+				try {
+					Thread.sleep(Math.max(1, earliest - System.currentTimeMillis()));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for a MediaWiki session");
+				}
+				continue;
+			}
+
+			try {
+				login(chosen);
+			} catch (IOException e) {
+				release(chosen);
+				loginError = e;
+				synchronized (this) {
+					if (++failedLogins >= sessions.size()) {
+						throw loginError;
+					}
+				}
+				continue;
+			}
+			return chosen;
+		}
+	}
+
+	private synchronized void release(final Session session) {
+		session.inFlight--;
+	}
+
+	/**
+	 * Logs a session in unless it is logged in.  A session whose login
+	 * fails rests for a while.
+	 */
+	private void login(final Session session) throws IOException {
+		synchronized (session) {
+			if (!session.loginNeeded) {
+				return;
+			}
+			try {
+				session.api.login(session.username, session.password);
+				session.loginNeeded = false;
+			} catch (IOException e) {
+				Logger.getInstance().logError("Failed to log " + session.username + " into MediaWiki API: " + e.getLocalizedMessage());
+				session.pause(LOGIN_RETRY_PAUSE);
+				throw e;
+			}
+		}
+	}
+
+	private File getSessionFile(final String username) {
+		String name = sessionFile.getName();
+		String user = username.replaceAll("[^A-Za-z0-9_.-]", "_");
+		int dot = name.lastIndexOf('.');
+		name = dot == -1 ? name + "-" + user : name.substring(0, dot) + "-" + user + name.substring(dot);
+		return new File(sessionFile.getAbsoluteFile().getParentFile(), name);
+	}
+
+	private static class Session {
+		final MediaWikiApi api;
+		final String username;
+		final String password;
+
+		/** Edits in flight, guarded by the pool. */
+		int inFlight = 0;
+
+		/** Time before which the session must not be used. */
+		volatile long availableAt = 0;
+
+		volatile boolean loginNeeded = true;
+
+		Session(final MediaWikiApi api, final String username, final String password) {
+			this.api = api;
+			this.username = username;
+			this.password = password;
+		}
+
+		void pause(final int seconds) {
+			availableAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+		}
+	}
+}
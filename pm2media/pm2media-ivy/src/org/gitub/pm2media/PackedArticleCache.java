@@ -0,0 +1,377 @@
+package org.gitub.pm2media;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Article cache kept in one append-only segment file instead of a file per
+ * article, selected with pm2media.articleCache.format=packed.  Copying the
+ * cache means copying one file, and a lookup is a probe of the index in
+ * memory plus a slice of the memory-mapped segment, without a stat or an
+ * open per article.  The segment is mapped as it is when opened, and again
+ * after compaction; records appended since are read with the channel.
+ *
+ * Each record holds the article name, the body and a CRC-32 of both.  The
+ * index of name to record is built when the cache is opened by reading the
+ * record headers, skipping the bodies.  A record cut short by a crash ends
+ * the segment and is cut off; a record which does not match its CRC is
+ * dropped when read, and the article fetched again.
+ *
+ * Caching an article again leaves its old record behind.  When the space
+ * taken by such records exceeds both the space of the live ones and the
+ * compaction threshold, the live records are copied into a new segment
+ * which replaces the old one.
+ *
+ * One instance per directory may be open at a time; ArticleCache.forName()
+ * shares it between all users in the process.
+ *
+ * @author smootp
+ *
+ */
+public class PackedArticleCache extends ArticleCache {
+	private static final String SEGMENT_FILE = "articles.seg";
+	private static final int MAGIC = 0x504d4143; // "PMAC"
+	private static final int HEADER_SIZE = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Where a record is in the segment. */
+	private static final class Entry {
+		final long offset;
+		final int nameLength;
+		final int bodyLength;
+
+		Entry(final long offset, final int nameLength, final int bodyLength) {
+			this.offset = offset;
+			this.nameLength = nameLength;
+			this.bodyLength = bodyLength;
+		}
+
+		long size() {
+			return HEADER_SIZE + nameLength + bodyLength;
+		}
+	}
+
+	private long compactionThreshold = 64L * 1024 * 1024;
+	public PackedArticleCache withCompactionThreshold(final long compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+		return this;
+	}
+
+	private final File segmentFile;
+
+	private final Map<String, Entry> index = new HashMap<String, Entry>();
+
+	private RandomAccessFile segment;
+	private FileChannel channel;
+
+	/** Mapping of the segment as it was opened; null if none. */
+	private MappedByteBuffer mapped;
+
+	/** Length of the segment. */
+	private long end;
+
+	/** Bytes taken by records which were superseded or damaged. */
+	private long garbage;
+
+	/**
+	 * Opens the cache, reading the index of the segment an earlier run left.
+	 */
+	public PackedArticleCache(final String cacheName) throws IOException {
+		super(cacheName);
+		segmentFile = new File(getCacheDirectoryName(), SEGMENT_FILE);
+		open();
+	}
+
+	@Override
+	public synchronized void cleanCache() {
+		close();
+		super.cleanCache();
+		index.clear();
+		garbage = 0;
+		try {
+			open();
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not open article cache " + segmentFile + ": " + e.getLocalizedMessage());
+		}
+	}
+
+	@Override
+	public synchronized void cacheArticle(final String articleName, final String articleBody) {
+		if (channel == null) {
+			return;
+		}
+		byte[] name = articleName.getBytes(UTF8);
+		byte[] body = articleBody.getBytes(UTF8);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + name.length + body.length);
+		record.putInt(MAGIC).putInt(name.length).putInt(body.length).putInt(crc(name, body)).put(name).put(body);
+		record.flip();
+		try {
+			long position = end;
+			while (record.hasRemaining()) {
+				position += channel.write(record, position);
+			}
+			Entry previous = index.put(articleName, new Entry(end, name.length, body.length));
+			end = position;
+			if (previous != null) {
+				garbage += previous.size();
+				compactIfWorthwhile();
+			}
+		} catch (IOException e) {
+			// Don't worry, it just won't be cached.
+			;
+		}
+	}
+
+	@Override
+	public synchronized boolean isArticleCached(final String articleName) {
+		return index.containsKey(articleName);
+	}
+
+	@Override
+	public synchronized String getCachedArticle(final String articleName) {
+		Entry entry = index.get(articleName);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			ByteBuffer record = read(entry);
+			int storedCrc = record.getInt(12);
+			byte[] name = new byte[entry.nameLength];
+			byte[] body = new byte[entry.bodyLength];
+			record.position(HEADER_SIZE);
+			record.get(name).get(body);
+			if (record.getInt(0) == MAGIC && storedCrc == crc(name, body)) {
+				return new String(body, UTF8);
+			}
+			Logger.getInstance().logError("Cached article " + articleName + " is damaged, fetching it again.");
+		} catch (IOException e) {
+			Logger.getInstance().logError("Failed to read article " + articleName + " from cache.");
+		}
+		index.remove(articleName);
+		garbage += entry.size();
+		return null;
+	}
+
+	/**
+	 * Returns the number of articles in the cache.
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the length of the segment file in bytes.
+	 */
+	public synchronized long getSegmentLength() {
+		return end;
+	}
+
+	/**
+	 * Copies the live records into a new segment, dropping superseded ones.
+	 */
+	public synchronized void compact() throws IOException {
+		List<Map.Entry<String, Entry>> live = new ArrayList<Map.Entry<String, Entry>>(index.entrySet());
+		Collections.sort(live, new Comparator<Map.Entry<String, Entry>>() {
+			@Override
+			public int compare(final Map.Entry<String, Entry> a, final Map.Entry<String, Entry> b) {
+				return Long.compare(a.getValue().offset, b.getValue().offset);
+			}
+		});
+
+		File tmpFile = new File(getCacheDirectoryName(), SEGMENT_FILE + ".tmp");
+		Map<String, Entry> moved = new HashMap<String, Entry>();
+		RandomAccessFile compacted = new RandomAccessFile(tmpFile, "rw");
+		try {
+			compacted.setLength(0);
+			FileChannel target = compacted.getChannel();
+			long position = 0;
+			for (Map.Entry<String, Entry> record : live) {
+				Entry entry = record.getValue();
+				long copied = 0;
+				while (copied < entry.size()) {
+					copied += channel.transferTo(entry.offset + copied, entry.size() - copied, target);
+				}
+				moved.put(record.getKey(), new Entry(position, entry.nameLength, entry.bodyLength));
+				position += entry.size();
+			}
+			target.force(true);
+		} finally {
+			compacted.close();
+		}
+
+		long before = end;
+		// Windows cannot replace the segment while it is open
+		close();
+		try {
+			try {
+				Files.move(tmpFile.toPath(), segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			// go on with the old segment rather than without a cache
+			tmpFile.delete();
+			openSegment();
+			scan();
+			throw e;
+		}
+		// close() forgot the records, the copies are in the new segment
+		index.clear();
+		index.putAll(moved);
+		garbage = 0;
+		openSegment();
+		Logger.getInstance().log("Article cache " + segmentFile + " compacted from " + before + " to " + end + " bytes.");
+	}
+
+	/**
+	 * Closes the segment.  The cache then holds nothing until cleanCache().
+	 */
+	public synchronized void close() {
+		index.clear();
+		garbage = 0;
+		unmap();
+		channel = null;
+		if (segment != null) {
+			try {
+				segment.close();
+			} catch (IOException e) {
+				Logger.getInstance().logError("Could not close article cache " + segmentFile + ": " + e.getLocalizedMessage());
+			}
+			segment = null;
+		}
+	}
+
+	private void open() throws IOException {
+		openSegment();
+		scan();
+		compactIfWorthwhile();
+		Logger.getInstance().log("Article cache " + segmentFile + " holds " + index.size() + " articles.");
+	}
+
+	private void openSegment() throws IOException {
+		segmentFile.getParentFile().mkdirs();
+		segment = new RandomAccessFile(segmentFile, "rw");
+		channel = segment.getChannel();
+		end = channel.size();
+		mapped = end > 0 && end <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, end) : null;
+	}
+
+	/**
+	 * Releases the mapping at once rather than when it is garbage collected;
+	 * Windows cannot replace the segment file while it is mapped.  Where the
+	 * JVM does not allow this, the mapping is left to the garbage collector.
+	 */
+	private void unmap() {
+		if (mapped == null) {
+			return;
+		}
+		try {
+			Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(mapped);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// not a JVM with sun.misc.Cleaner
+			;
+		}
+		mapped = null;
+	}
+
+	/**
+	 * Builds the index from the record headers and cuts off a torn last
+	 * record.
+	 */
+	private void scan() throws IOException {
+		long length = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long position = 0;
+		while (position + HEADER_SIZE <= length) {
+			header.clear();
+			readFully(header, position);
+			int nameLength = header.getInt(4);
+			int bodyLength = header.getInt(8);
+			if (header.getInt(0) != MAGIC || nameLength < 0 || bodyLength < 0
+					|| position + HEADER_SIZE + nameLength + bodyLength > length) {
+				break;
+			}
+			ByteBuffer name = ByteBuffer.allocate(nameLength);
+			readFully(name, position + HEADER_SIZE);
+			Entry entry = new Entry(position, nameLength, bodyLength);
+			Entry previous = index.put(new String(name.array(), UTF8), entry);
+			if (previous != null) {
+				garbage += previous.size();
+			}
+			position += entry.size();
+		}
+		if (position < length) {
+			Logger.getInstance().logError("Article cache " + segmentFile + " ends in a damaged record, cutting it off.");
+			channel.truncate(position);
+		}
+		end = position;
+	}
+
+	private void compactIfWorthwhile() {
+		if (garbage > compactionThreshold && garbage > end - garbage) {
+			try {
+				compact();
+			} catch (IOException e) {
+				Logger.getInstance().logError("Could not compact article cache " + segmentFile + ": " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Returns a record from the mapped segment, or read from the channel if
+	 * it was appended after the segment was mapped.
+	 */
+	private ByteBuffer read(final Entry entry) throws IOException {
+		long recordEnd = entry.offset + entry.size();
+		if (mapped != null && recordEnd <= mapped.capacity()) {
+			ByteBuffer record = mapped.duplicate();
+			record.position((int) entry.offset);
+			record.limit((int) recordEnd);
+			return record.slice();
+		}
+		// appended since, or beyond what one mapping can hold
+		ByteBuffer record = ByteBuffer.allocate((int) entry.size());
+		readFully(record, entry.offset);
+		record.flip();
+		return record;
+	}
+
+	private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+		long offset = position;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, offset);
+			if (read < 0) {
+				throw new IOException(segmentFile + " ends before " + offset);
+			}
+			offset += read;
+		}
+	}
+
+	private static int crc(final byte[] name, final byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+}
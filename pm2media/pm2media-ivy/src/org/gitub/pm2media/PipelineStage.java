@@ -0,0 +1,209 @@
+package org.gitub.pm2media;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a pipeline: a bounded queue of items and a fixed number of
+ * worker threads taking items from it.  put() blocks while the queue is
+ * full, so a slow stage holds up the stages feeding it instead of letting
+ * work pile up in memory.
+ *
+ * Every thread gets its own Worker from the factory, so workers may keep
+ * state which is not thread safe, like a PmWiki and its WebClient.  A
+ * worker throwing an Error is closed and its thread goes on with a new one,
+ * so a stage never runs out of threads.
+ *
+ * @author smootp
+ *
+ */
+public class PipelineStage<T> {
+
+	/**
+	 * Processes the items of a stage on one thread.
+	 */
+	public abstract static class Worker<T> {
+		/**
+		 * Processes one item.  Exceptions are logged and the item dropped,
+		 * so workers should handle their own failures.
+		 */
+		public abstract void process(T item) throws InterruptedException;
+
+		/**
+		 * Called once when the stage stops.
+		 */
+		public void close() {
+		}
+	}
+
+	/**
+	 * Creates the worker of each thread.
+	 */
+	public interface WorkerFactory<T> {
+		Worker<T> newWorker();
+	}
+
+	private final String name;
+
+	private final int threadCount;
+
+	private final BlockingQueue<T> queue;
+
+	private final WorkerFactory<T> workerFactory;
+
+	/** Items taken from the queue and not yet processed. */
+	private final AtomicInteger busy = new AtomicInteger();
+
+	private final AtomicLong processed = new AtomicLong();
+
+	private final List<Worker<T>> workers = new ArrayList<Worker<T>>();
+
+	private ExecutorService threads;
+
+	public PipelineStage(final String name, final int threadCount, final int capacity, final WorkerFactory<T> workerFactory) {
+		this.name = name;
+		this.threadCount = Math.max(1, threadCount);
+		this.queue = new ArrayBlockingQueue<T>(Math.max(1, capacity));
+		this.workerFactory = workerFactory;
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	public void start() {
+		threads = Executors.newFixedThreadPool(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			threads.execute(new Runnable() {
+				@Override
+				public void run() {
+					while (!work(newWorker())) {
+						Logger.getInstance().logError("Pipeline stage " + name + " replaces a failed worker.");
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues an item, waiting while the queue is full.
+	 */
+	public void put(final T item) throws InterruptedException {
+		queue.put(item);
+	}
+
+	/**
+	 * Stops the worker threads and closes the workers.  Items still queued
+	 * are dropped, so call this once the stage is idle.
+	 */
+	public void stop() {
+		if (threads == null) {
+			return;
+		}
+		threads.shutdownNow();
+		try {
+			if (!threads.awaitTermination(1, TimeUnit.MINUTES)) {
+				Logger.getInstance().logError("Pipeline stage " + name + " did not stop.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (workers) {
+			for (Worker<T> worker : workers) {
+				worker.close();
+			}
+			workers.clear();
+		}
+		threads = null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of items waiting in the queue.
+	 */
+	public int getQueued() {
+		return queue.size();
+	}
+
+	public int getCapacity() {
+		return queue.size() + queue.remainingCapacity();
+	}
+
+	/**
+	 * Returns the number of items being processed right now.
+	 */
+	public int getBusy() {
+		return busy.get();
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * Describes the occupancy of the stage, e.g. "fetch 12/32 queued, 4/4 busy".
+	 */
+	@Override
+	public String toString() {
+		return name + " " + getQueued() + "/" + getCapacity() + " queued, " + getBusy() + "/" + threadCount + " busy";
+	}
+
+	private Worker<T> newWorker() {
+		Worker<T> worker = workerFactory.newWorker();
+		synchronized (workers) {
+			workers.add(worker);
+		}
+		return worker;
+	}
+
+	/**
+	 * Processes items until the thread is interrupted.
+	 *
+	 * @return false if the worker threw an Error and was closed, its state
+	 *         can not be trusted any more
+	 */
+	private boolean work(final Worker<T> worker) {
+		while (true) {
+			T item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				return true;
+			}
+
+			busy.incrementAndGet();
+			try {
+				worker.process(item);
+			} catch (InterruptedException e) {
+				return true;
+			} catch (RuntimeException e) {
+				Logger.getInstance().logError("Pipeline stage " + name + " failed on " + item + ": " + e.getLocalizedMessage());
+				e.printStackTrace();
+			} catch (Error e) {
+				Logger.getInstance().logError("Pipeline stage " + name + " failed on " + item + ": " + e);
+				e.printStackTrace();
+				synchronized (workers) {
+					workers.remove(worker);
+				}
+				worker.close();
+				return false;
+			} finally {
+				busy.decrementAndGet();
+				processed.incrementAndGet();
+			}
+		}
+	}
+}
@@ -1,7 +1,20 @@
 package org.gitub.pm2media;
 
-import java.util.HashSet;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.htmlparser.tags.LinkTag;
 import org.htmlparser.util.NodeList;
@@ -36,7 +49,7 @@ public class Pm2Media {
 
 	static final String CHANGE_SUMMARY = "Pm2Media Bot entry";
 
-	/** max filesize in bytes to be uploaded. */
+	/** max filesize in bytes to be uploaded through the upload form. */
 	static final long MAX_FILESIZE = 1024 * 1024 * 20;
 
 	/** gui of the converter. */
@@ -44,6 +57,24 @@ public class Pm2Media {
 
 	private String pmWikiIndexPageName;
 
+	/** Tracks heap use in long run mode, null otherwise. */
+	private HeapMonitor heapMonitor;
+
+	/** Articles converted since the web clients were last replaced. */
+	private int articlesSinceRecycle;
+
+	/** Failed articles to be tried again, null if failures are only logged. */
+	private RetryQueue retryQueue;
+
+	/** Progress of the conversion for resuming it, null outside convert(). */
+	private CheckpointJournal journal;
+
+	/** Runs the stages of convert() side by side, null to convert one article at a time. */
+	private ConversionPipeline pipeline;
+
+	/** Transfers attachments while convert() goes on, null if they are not downloaded. */
+	private AttachmentPool attachmentPool;
+
 	Pm2Media() {
 
 	}
@@ -103,89 +134,172 @@ public class Pm2Media {
 	 */
 	public void convert() {
 		Logger.getInstance().log("Started conversion process");
+		initLongRun();
 
 		// variable saving startTime
 		long startTime = System.currentTimeMillis();
 
+		File journalFile = new File(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.JOURNAL_FILE, "pm2media-journal.tsv"));
+		if (!Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.RESUME)) {
+			journalFile.delete();
+		}
+		try {
+			journal = new CheckpointJournal(journalFile)
+					.withSyncInterval(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.JOURNAL_SYNC_INTERVAL, 100));
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not open journal " + journalFile + ": " + e.getLocalizedMessage());
+			return;
+		}
+		if (journal.getCompleteCount() > 0) {
+			Logger.getInstance().log("Resuming, " + journal.getCompleteCount() + " articles were completed before.");
+		}
+
 		// PmWiki to get content from
 		PmWiki pmWiki = new PmWiki()
 				.withWikiParams(this.pmWikiParams)
 				.withIndexPageName(pmWikiIndexPageName);
 
+		File deadLetterFile = new File(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.RETRY_DEAD_LETTER_FILE, "dead-letter.tsv"));
+		retryQueue = new RetryQueue(deadLetterFile)
+				.withMaxAttempts(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.RETRY_MAX_ATTEMPTS, 5))
+				.withBaseDelayMillis(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.RETRY_BASE_DELAY_SECONDS, 2) * 1000L);
+
 		// MediaWiki to post content in
 		MediaWiki mediaWiki = new MediaWiki()
 				.withWikiParams(mwWiki)
 				.withLoginPage(mWikiLoginPage)
-				.withUploadPage(mWikiUploadPage);
-		if (!mediaWiki.login()) {
-			Logger.getInstance().log("Could not login into MediaWiki. Exiting.");
-			return;
-		}
+				.withUploadPage(mWikiUploadPage)
+				.withPostListener(new MediaWiki.PostListener() {
+					@Override
+					public void postCompleted(final Article article) {
+						checkpoint(article.getPathInWiki("/"), CheckpointJournal.Stage.POSTED);
+					}
 
-		Set<String> articleLinks = pmWiki.getLinksFromIndexPage();
-		Article article = null;
-
-		PmWiki2MediaWikiConverter converter = new PmWiki2MediaWikiConverter()
-			.withImagePrefix(mWikiImagePrefix)
-			.withSourceWikiPrefix(pmWiki.getWikiParams().getURL());
-			
-		// parsing every PmWiki article
-		int i = 1;
-		for (String articleLink : articleLinks) {
-			String articleName, articleNamespace;
-
-			Logger.getInstance().log("Processing " + articleLink + " (" + i + " of " + articleLinks.size() + ").");
-			i += 1;
-			
-			if (articleLink.substring(this.pmWikiParams.getURL().length()).indexOf(".") != -1) {
-				String tmpArticleLink = articleLink.substring(this.pmWikiParams.getURL()
-						.length());
-				String[] tmp = tmpArticleLink.split("\\.");
-				articleNamespace = tmp[0].substring(tmp[0].indexOf('=') + 1);
-				articleName = tmp[1];
-			}
-			else {
-				String[] tmp = articleLink.split("/");
-				articleNamespace = tmp[tmp.length - 2];
-				articleName = tmp[tmp.length - 1];
+					@Override
+					public void postFailed(final Article article) {
+						retryLater(article, "posting failed");
+					}
+				});
+		boolean complete = false;
+		try {
+			if (!mediaWiki.login()) {
+				Logger.getInstance().log("Could not login into MediaWiki. Exiting.");
+				return;
 			}
 
-			// don't parse articles which are PmWiki specific
-			if (!PmWiki.articleIsRelevant(articleName, articleNamespace)) {
-				continue;
+			PmWiki2MediaWikiConverter converter = new PmWiki2MediaWikiConverter()
+				.withImagePrefix(mWikiImagePrefix)
+				.withSourceWikiPrefix(pmWiki.getWikiParams().getURL());
+
+			if (Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.PMWIKI_DOWNLOAD_ATTACHMENTS)) {
+				attachmentPool = new AttachmentPool(pmWikiParams, mediaWiki)
+						.withThreads(Math.max(1, Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.ATTACHMENT_THREADS, 2)))
+						.withQueueCapacity(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.ATTACHMENT_QUEUE_CAPACITY, 10000))
+						.withReleasePages(heapMonitor != null);
+				attachmentPool.start();
 			}
 
-			try {
-				// parsing relevant pages
-				article = pmWiki.getArticle(articleLink, articleNamespace,
-						articleName);
+			if (Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.PIPELINE)) {
+				pipeline = new ConversionPipeline(pmWikiParams, mediaWiki, mWikiImagePrefix)
+						.withFetchThreads(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.PIPELINE_FETCH_THREADS, 4))
+						.withConvertThreads(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.PIPELINE_CONVERT_THREADS, 2))
+						.withAttachmentPool(attachmentPool)
+						.withQueueCapacity(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.PIPELINE_QUEUE_CAPACITY, 32))
+						.withReportSeconds(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.PIPELINE_REPORT_SECONDS, 30))
+						.withJournal(journal)
+						.withRetryQueue(retryQueue)
+						.withHeapMonitor(heapMonitor);
+				pipeline.start();
+			}
 
-				// nothing to post
-				if (article.getBody().isEmpty()) {
-					continue;
+			String discovery = Pm2MediaPrefs.getProperty(Pm2MediaPrefs.PMWIKI_DISCOVERY, "index");
+			if ("deadletter".equalsIgnoreCase(discovery)) {
+				// recovery run, only the articles which failed last time
+				Set<String> articleLinks;
+				try {
+					articleLinks = RetryQueue.readWorkList(deadLetterFile);
+				} catch (IOException e) {
+					Logger.getInstance().logError("Could not read work list " + deadLetterFile + ": " + e.getLocalizedMessage());
+					return;
 				}
+				pmWiki.initializeCredentials();
 
-				article.convertBody(converter);
+				int i = 1;
+				for (String articleLink : articleLinks) {
+					Logger.getInstance().log("Retrying " + articleLink + " (" + i + " of " + articleLinks.size() + ").");
+					i += 1;
+					processArticle(articleLink, pmWiki, mediaWiki, converter, true);
+				}
+			}
+			else if ("crawl".equalsIgnoreCase(discovery)) {
+				// no usable index page, discover articles by following links
+				PmWikiCrawler crawler = new PmWikiCrawler(pmWikiParams)
+						.withSeedPage(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.PMWIKI_CRAWL_SEED, "Main/HomePage"))
+						.withThreadCount(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.PMWIKI_CRAWL_THREADS, 4))
+						.withMaxPages(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.PMWIKI_CRAWL_MAX_PAGES, 10000));
+				pmWiki.initializeCredentials();
+				crawler.start();
 
-				mediaWiki.postArticle(article);
+				int i = 1;
+				String articleLink;
+				while ((articleLink = crawler.nextLink()) != null) {
+					Logger.getInstance().log("Processing " + articleLink + " (" + i + " of " + crawler.getDiscoveredCount() + " discovered).");
+					i += 1;
+					// the crawler read the article already
+					processArticle(articleLink, crawler.takeArticle(articleLink), pmWiki, mediaWiki, converter);
+				}
+			}
+			else {
+				Set<String> articleLinks = pmWiki.getLinksFromIndexPage();
 
-				for (Attachment attachment : article.getAttachments()) {
-					if (Pm2MediaPrefs
-							.getBoolProperty(Pm2MediaPrefs.PMWIKI_DOWNLOAD_ATTACHMENTS)) {
-						pmWiki.download(attachment);
+				// parsing every PmWiki article
+				int i = 1;
+				for (String articleLink : articleLinks) {
+					Logger.getInstance().log("Processing " + articleLink + " (" + i + " of " + articleLinks.size() + ").");
+					i += 1;
+					processArticle(articleLink, pmWiki, mediaWiki, converter, false);
+				}
+			}
 
-						if (Pm2MediaPrefs
-								.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_ATTACHMENTS)) {
-							mediaWiki.upload(attachment);
-						}
-					}
+			if (pipeline != null) {
+				pipeline.finish();
+			} else {
+				convertRemainingRetries(pmWiki, mediaWiki, converter);
+				if (attachmentPool != null) {
+					attachmentPool.finish();
 				}
-			} catch (Exception e) {
-				Logger.getInstance().logError(
-						"Exception while converting article " + articleName
-								+ ": " + e.getLocalizedMessage());
-				e.printStackTrace();
 			}
+			complete = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (pipeline != null) {
+				pipeline.close();
+				pipeline = null;
+			}
+			if (attachmentPool != null) {
+				attachmentPool.close();
+				attachmentPool = null;
+			}
+			pmWiki.close();
+			mediaWiki.close();
+			AttachmentProber.closeInstance();
+			try {
+				if (complete) {
+					// a new run starts from scratch
+					journal.delete();
+				} else {
+					journal.close();
+				}
+			} catch (IOException e) {
+				Logger.getInstance().logError("Could not close journal " + journalFile + ": " + e.getLocalizedMessage());
+			}
+			journal = null;
+			if (retryQueue.getDeadLetterCount() > 0) {
+				Logger.getInstance().logError(retryQueue.getDeadLetterCount() + " articles failed, see " + deadLetterFile
+						+ ". Set " + Pm2MediaPrefs.PMWIKI_DISCOVERY + "=deadletter to convert only those.");
+			}
+			retryQueue = null;
 		}
 
 		// variable saving startTime
@@ -194,8 +308,574 @@ public class Pm2Media {
 		Logger.getInstance().log(
 				"Convertion ended successfully in " + requiredTime
 						+ " seconds.");
+		if (heapMonitor != null) {
+			heapMonitor.report();
+		}
+	}
+
+
+	/**
+	 * Keeps the MediaWiki in sync with the PmWiki.  Only articles changed since
+	 * the last successful run are converted.  Runs every
+	 * pm2media.sync.intervalMinutes minutes, or once if the interval is 0.
+	 */
+	public void sync() {
+		final int interval = Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.SYNC_INTERVAL_MINUTES, 0);
+		if (interval <= 0) {
+			syncOnce();
+			return;
+		}
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		ScheduledFuture<?> syncTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				syncOnce();
+			}
+		}, 0, interval, TimeUnit.MINUTES);
+		Logger.getInstance().log("Synchronizing every " + interval + " minutes.");
+
+		try {
+			syncTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Logger.getInstance().logError("Synchronization stopped: " + e.getCause().getLocalizedMessage());
+			e.printStackTrace();
+		} finally {
+			scheduler.shutdownNow();
+		}
 	}
 
+	/**
+	 * Converts all articles changed since the high-water mark and advances
+	 * the mark if every article was converted.
+	 */
+	public void syncOnce() {
+		long startTime = System.currentTimeMillis();
+		initLongRun();
+		long highWaterMark = readHighWaterMark();
+
+		PmWiki pmWiki = new PmWiki()
+				.withWikiParams(this.pmWikiParams)
+				.withIndexPageName(pmWikiIndexPageName);
+		pmWiki.initializeCredentials();
+
+		try {
+			Set<String> articleLinks;
+			try {
+				if (highWaterMark == 0) {
+					Logger.getInstance().log("No previous synchronization, reading all articles.");
+					articleLinks = pmWiki.getLinksFromIndexPage();
+				}
+				else {
+					String timeZone = Pm2MediaPrefs.getProperty(Pm2MediaPrefs.PMWIKI_TIME_ZONE);
+					RecentChanges recentChanges = new RecentChanges(pmWikiParams)
+							.withWikiDirectory(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.PMWIKI_WIKI_DIRECTORY))
+							.withRecentChangesPage(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.PMWIKI_RECENT_CHANGES_PAGE, "Site/AllRecentChanges"))
+							.withTimeZone(timeZone == null || timeZone.trim().isEmpty() ? TimeZone.getDefault()
+									: TimeZone.getTimeZone(timeZone.trim()));
+					articleLinks = recentChanges.getChangedArticleLinks(pmWiki, highWaterMark);
+				}
+			} catch (IOException e) {
+				Logger.getInstance().logError("Could not read recent changes: " + e.getLocalizedMessage());
+				return;
+			}
+
+			if (articleLinks.isEmpty()) {
+				Logger.getInstance().log("No changes since last synchronization.");
+				writeHighWaterMark(startTime);
+				return;
+			}
+			Logger.getInstance().log(articleLinks.size() + " articles changed since last synchronization.");
+
+			// posts may fail after convertArticle() returned
+			final AtomicBoolean postsComplete = new AtomicBoolean(true);
+			MediaWiki mediaWiki = new MediaWiki()
+					.withWikiParams(mwWiki)
+					.withLoginPage(mWikiLoginPage)
+					.withUploadPage(mWikiUploadPage)
+					.withPostListener(new MediaWiki.PostListener() {
+						@Override
+						public void postCompleted(final Article article) {
+						}
+
+						@Override
+						public void postFailed(final Article article) {
+							postsComplete.set(false);
+						}
+					});
+			try {
+				if (!mediaWiki.login()) {
+					Logger.getInstance().log("Could not login into MediaWiki. Will retry next time.");
+					return;
+				}
+
+				PmWiki2MediaWikiConverter converter = new PmWiki2MediaWikiConverter()
+					.withImagePrefix(mWikiImagePrefix)
+					.withSourceWikiPrefix(pmWiki.getWikiParams().getURL());
+
+				boolean complete = true;
+				for (String articleLink : articleLinks) {
+					Logger.getInstance().log("Synchronizing " + articleLink + ".");
+					complete &= convertArticle(articleLink, pmWiki, mediaWiki, converter, true);
+				}
+				mediaWiki.flush();
+				complete &= postsComplete.get();
+
+				if (complete) {
+					writeHighWaterMark(startTime);
+				}
+				else {
+					Logger.getInstance().logError("Some articles failed, they will be retried next time.");
+				}
+			} finally {
+				mediaWiki.close();
+			}
+			Logger.getInstance().log("Synchronization ended in " + (System.currentTimeMillis() - startTime) / 1000 + " seconds.");
+		} finally {
+			pmWiki.close();
+			// the next synchronization probes changed attachments again
+			AttachmentProber.closeInstance();
+		}
+	}
+
+	/**
+	 * Mirrors edits into the MediaWiki as they happen, by watching the wiki.d
+	 * and uploads directories of the PmWiki.  Runs until the thread is
+	 * interrupted.
+	 */
+	public void mirror() {
+		String wikiDirectory = Pm2MediaPrefs.getProperty(Pm2MediaPrefs.PMWIKI_WIKI_DIRECTORY, "");
+		String uploadsDirectory = Pm2MediaPrefs.getProperty(Pm2MediaPrefs.PMWIKI_UPLOADS_DIRECTORY, "");
+		if (wikiDirectory.isEmpty()) {
+			Logger.getInstance().logError("Mirroring needs " + Pm2MediaPrefs.PMWIKI_WIKI_DIRECTORY + " to be set.");
+			return;
+		}
+
+		initLongRun();
+		final PmWiki pmWiki = new PmWiki()
+				.withWikiParams(this.pmWikiParams)
+				.withIndexPageName(pmWikiIndexPageName);
+		pmWiki.initializeCredentials();
+
+		final MediaWiki mediaWiki = new MediaWiki()
+				.withWikiParams(mwWiki)
+				.withLoginPage(mWikiLoginPage)
+				.withUploadPage(mWikiUploadPage);
+		try {
+			if (!mediaWiki.login()) {
+				Logger.getInstance().log("Could not login into MediaWiki. Exiting.");
+				return;
+			}
+
+			final PmWiki2MediaWikiConverter converter = new PmWiki2MediaWikiConverter()
+				.withImagePrefix(mWikiImagePrefix)
+				.withSourceWikiPrefix(pmWiki.getWikiParams().getURL());
+			final RecentChanges pageFiles = new RecentChanges(pmWikiParams);
+
+			WikiDirectoryWatcher watcher = new WikiDirectoryWatcher(new File(wikiDirectory),
+					uploadsDirectory.isEmpty() ? null : new File(uploadsDirectory),
+					new WikiDirectoryWatcher.Listener() {
+						private long lastLogin = System.currentTimeMillis();
+
+						@Override
+						public void pageChanged(final File pageFile) {
+							String articleLink = pageFiles.getLinkForPageFile(pageFile.getName());
+							String[] page = articleLink == null ? null : PmWiki.splitArticleLink(pmWikiParams.getURL(), articleLink);
+							if (page == null || !PmWiki.articleIsRelevant(page[1], page[0])) {
+								return;
+							}
+
+							stayLoggedIn();
+							Logger.getInstance().log("Mirroring " + page[0] + "/" + page[1] + ".");
+							try {
+								Article article = pmWiki.getArticleFromPageFile(pageFile, page[0], page[1]);
+								if (article == null) {
+									// old page file format, ask the PmWiki
+									convertArticle(articleLink, pmWiki, mediaWiki, converter, true);
+								} else {
+									article.setLink(articleLink);
+									convertAndPost(article, pmWiki, mediaWiki, converter);
+									afterArticle(pmWiki, mediaWiki);
+								}
+								// post right away instead of waiting for a full pre-flight batch
+								mediaWiki.flush();
+							} catch (IOException e) {
+								Logger.getInstance().logError("Could not read " + pageFile + ": " + e.getLocalizedMessage());
+							}
+						}
+
+						@Override
+						public void uploadChanged(final File uploadedFile) {
+							if (!Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_ATTACHMENTS)) {
+								return;
+							}
+
+							stayLoggedIn();
+							Attachment attachment = new Attachment("attachments/" + uploadedFile.getName(), uploadedFile.toURI().toString());
+							try {
+								AttachmentStore store = AttachmentStore.getInstance();
+								InputStream content = new FileInputStream(uploadedFile);
+								File localFile;
+								try {
+									localFile = store.put(attachment.getFileURL(), content);
+								} finally {
+									content.close();
+								}
+								attachment.setLocalFile(localFile, store.getHash(attachment.getFileURL()));
+								mediaWiki.reupload(attachment);
+							} catch (IOException e) {
+								Logger.getInstance().logError("Could not copy " + uploadedFile + ": " + e.getLocalizedMessage());
+							}
+						}
+
+						/** MediaWiki sessions expire, log in again every hour. */
+						private void stayLoggedIn() {
+							if (System.currentTimeMillis() - lastLogin > TimeUnit.HOURS.toMillis(1)) {
+								mediaWiki.login();
+								lastLogin = System.currentTimeMillis();
+							}
+						}
+					})
+					.withDebounceMillis(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.MIRROR_DEBOUNCE_MILLIS, 2000));
+
+			try {
+				watcher.watch();
+			} catch (IOException e) {
+				Logger.getInstance().logError("Mirroring stopped: " + e.getLocalizedMessage());
+				e.printStackTrace();
+			}
+		} finally {
+			pmWiki.close();
+			mediaWiki.close();
+			AttachmentProber.closeInstance();
+		}
+	}
+
+	private long readHighWaterMark() {
+		Properties state = new Properties();
+		File stateFile = new File(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.SYNC_STATE_FILE, "sync-state.properties"));
+		if (!stateFile.exists()) {
+			return 0;
+		}
+
+		try {
+			InputStream input = new FileInputStream(stateFile);
+			try {
+				state.load(input);
+			} finally {
+				input.close();
+			}
+			return Long.parseLong(state.getProperty("highWaterMark", "0"));
+		} catch (Exception e) {
+			Logger.getInstance().logError("Could not read synchronization state " + stateFile + ": " + e.getLocalizedMessage());
+			return 0;
+		}
+	}
+
+	private void writeHighWaterMark(final long highWaterMark) {
+		Properties state = new Properties();
+		state.setProperty("highWaterMark", Long.toString(highWaterMark));
+		File stateFile = new File(Pm2MediaPrefs.getProperty(Pm2MediaPrefs.SYNC_STATE_FILE, "sync-state.properties"));
+		File tmpFile = new File(stateFile.getPath() + ".tmp");
+
+		try {
+			OutputStream output = new FileOutputStream(tmpFile);
+			try {
+				state.store(output, "Pm2Media synchronization state");
+			} finally {
+				output.close();
+			}
+			if (!tmpFile.renameTo(stateFile)) {
+				// renameTo does not replace existing files on all platforms
+				stateFile.delete();
+				if (!tmpFile.renameTo(stateFile)) {
+					throw new IOException("Cannot rename " + tmpFile + " to " + stateFile);
+				}
+			}
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not write synchronization state " + stateFile + ": " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Fetches a single PmWiki article, converts it and posts it into the
+	 * MediaWiki together with its attachments.
+	 * 
+	 * @param articleLink
+	 *            the link to the PmWiki article
+	 * @param refresh
+	 *            true to bypass the PmWiki article cache
+	 * @return false if the article could not be converted
+	 */
+	private boolean convertArticle(final String articleLink, final PmWiki pmWiki, final MediaWiki mediaWiki,
+			final PmWiki2MediaWikiConverter converter, final boolean refresh) {
+		return convertArticle(articleLink, null, pmWiki, mediaWiki, converter, refresh);
+	}
+
+	/**
+	 * Converts an article and posts it, fetching it unless it is given.
+	 * 
+	 * @param fetched
+	 *            the article if it was read from the PmWiki already, or null
+	 */
+	private boolean convertArticle(final String articleLink, final Article fetched, final PmWiki pmWiki,
+			final MediaWiki mediaWiki, final PmWiki2MediaWikiConverter converter, final boolean refresh) {
+		String[] page = PmWiki.splitArticleLink(this.pmWikiParams.getURL(), articleLink);
+		if (page == null) {
+			Logger.getInstance().logError("Not a link to an article: " + articleLink);
+			return false;
+		}
+		String articleNamespace = page[0];
+		String articleName = page[1];
+
+		// don't parse articles which are PmWiki specific
+		if (!PmWiki.articleIsRelevant(articleName, articleNamespace)) {
+			return true;
+		}
+
+		String pathInWiki = articleNamespace + "/" + articleName;
+		if (journal != null && journal.isComplete(pathInWiki)) {
+			Logger.getInstance().log("Skipping " + pathInWiki + ", completed before.");
+			return true;
+		}
+
+		try {
+			// parsing relevant pages
+			Article article = fetched != null ? fetched : pmWiki.getArticle(articleLink, articleNamespace,
+					articleName, refresh);
+			checkpoint(pathInWiki, CheckpointJournal.Stage.FETCHED);
+
+			if (!convertAndPost(article, pmWiki, mediaWiki, converter)) {
+				return false;
+			}
+		} catch (Exception e) {
+			Logger.getInstance().logError(
+					"Exception while converting article " + articleName
+							+ ": " + e.getLocalizedMessage());
+			e.printStackTrace();
+			if (retryQueue != null) {
+				retryQueue.failed(articleLink, String.valueOf(e.getLocalizedMessage()));
+			}
+			return false;
+		} finally {
+			afterArticle(pmWiki, mediaWiki);
+		}
+		return true;
+	}
+
+	/**
+	 * Hands an article to the pipeline, or converts it right away together
+	 * with the failed articles due for a retry.
+	 */
+	private void processArticle(final String articleLink, final PmWiki pmWiki, final MediaWiki mediaWiki,
+			final PmWiki2MediaWikiConverter converter, final boolean refresh) {
+		if (pipeline != null) {
+			pipeline.submit(articleLink, refresh);
+			return;
+		}
+		convertArticle(articleLink, pmWiki, mediaWiki, converter, refresh);
+		convertDueRetries(pmWiki, mediaWiki, converter);
+	}
+
+	/**
+	 * Like processArticle(), for an article which was read from the PmWiki
+	 * already.  Without the article, it is fetched as usual.
+	 */
+	private void processArticle(final String articleLink, final Article article, final PmWiki pmWiki,
+			final MediaWiki mediaWiki, final PmWiki2MediaWikiConverter converter) {
+		if (article == null) {
+			processArticle(articleLink, pmWiki, mediaWiki, converter, false);
+			return;
+		}
+		if (pipeline != null) {
+			pipeline.submit(articleLink, article);
+			return;
+		}
+		convertArticle(articleLink, article, pmWiki, mediaWiki, converter, false);
+		convertDueRetries(pmWiki, mediaWiki, converter);
+	}
+
+	/**
+	 * Converts the failed articles whose retry delay has passed.
+	 */
+	private void convertDueRetries(final PmWiki pmWiki, final MediaWiki mediaWiki,
+			final PmWiki2MediaWikiConverter converter) {
+		String articleLink;
+		while ((articleLink = retryQueue.poll()) != null) {
+			Logger.getInstance().log("Retrying " + articleLink + ".");
+			convertArticle(articleLink, pmWiki, mediaWiki, converter, true);
+		}
+	}
+
+	/**
+	 * Converts the failed articles left at the end of the run, waiting for
+	 * their retry delays, until each was converted or given up on.
+	 */
+	private void convertRemainingRetries(final PmWiki pmWiki, final MediaWiki mediaWiki,
+			final PmWiki2MediaWikiConverter converter) {
+		// failures of the posts still in flight are reported when they complete
+		synchronized (mediaWiki) {
+			mediaWiki.flush();
+		}
+		try {
+			String articleLink;
+			while ((articleLink = retryQueue.take()) != null) {
+				Logger.getInstance().log("Retrying " + articleLink + ".");
+				convertArticle(articleLink, pmWiki, mediaWiki, converter, true);
+				synchronized (mediaWiki) {
+					mediaWiki.flush();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Called after every article.  In long run mode, drops the pages held by
+	 * the web clients, replaces the clients every
+	 * pm2media.longRun.recycleInterval articles and samples the heap.
+	 */
+	private void afterArticle(final PmWiki pmWiki, final MediaWiki mediaWiki) {
+		if (heapMonitor == null) {
+			return;
+		}
+
+		pmWiki.releasePages();
+		articlesSinceRecycle++;
+		synchronized (mediaWiki) {
+			mediaWiki.releasePages();
+			if (articlesSinceRecycle >= Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.LONG_RUN_RECYCLE_INTERVAL, 200)) {
+				pmWiki.recycleWebClient();
+				mediaWiki.recycleWebClient();
+				articlesSinceRecycle = 0;
+			}
+		}
+
+		heapMonitor.sample();
+	}
+
+	/**
+	 * Prepares long run mode if pm2media.longRun is set: no page dumps, and
+	 * heap high-water marks reported every pm2media.longRun.reportInterval
+	 * articles.
+	 */
+	private void initLongRun() {
+		if (Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.LONG_RUN)) {
+			Logger.getInstance().setPageLogging(false);
+			heapMonitor = new HeapMonitor(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.LONG_RUN_REPORT_INTERVAL, 100));
+			articlesSinceRecycle = 0;
+		}
+	}
+
+	/**
+	 * Converts an article fetched from the PmWiki and posts it into the
+	 * MediaWiki together with its attachments.  An article whose attachments
+	 * could not all be transferred is queued for a retry.
+	 * 
+	 * @return false if attachments could not be transferred; true if they
+	 *         were, or were handed to the attachment pool
+	 */
+	private boolean convertAndPost(final Article article, final PmWiki pmWiki, final MediaWiki mediaWiki,
+			final PmWiki2MediaWikiConverter converter) {
+		String pathInWiki = article.getPathInWiki("/");
+
+		// nothing to post
+		if (article.getBody().isEmpty()) {
+			checkpoint(pathInWiki, CheckpointJournal.Stage.POSTED);
+			checkpoint(pathInWiki, CheckpointJournal.Stage.ATTACHMENTS_DONE);
+			return true;
+		}
+
+		article.convertBody(converter);
+		checkpoint(pathInWiki, CheckpointJournal.Stage.CONVERTED);
+
+		// posted by the run which died, only the attachments are missing
+		if (journal == null || !journal.isDone(pathInWiki, CheckpointJournal.Stage.POSTED)) {
+			// the attachment pool may be uploading through the WebClient
+			synchronized (mediaWiki) {
+				mediaWiki.postArticle(article);
+			}
+		}
+
+		if (attachmentPool != null) {
+			submitAttachments(article);
+			return true;
+		}
+
+		boolean transferred = true;
+		for (Attachment attachment : article.getAttachments()) {
+			if (Pm2MediaPrefs
+					.getBoolProperty(Pm2MediaPrefs.PMWIKI_DOWNLOAD_ATTACHMENTS)) {
+				if (Pm2MediaPrefs
+						.getBoolProperty(Pm2MediaPrefs.MEDIAWIKI_UPLOAD_ATTACHMENTS)) {
+					transferred &= mediaWiki.transfer(attachment, pmWiki);
+				} else {
+					transferred &= pmWiki.download(attachment);
+				}
+			}
+		}
+		if (!transferred) {
+			retryLater(article, "attachments not transferred");
+			return false;
+		}
+		checkpoint(pathInWiki, CheckpointJournal.Stage.ATTACHMENTS_DONE);
+		return true;
+	}
+
+	/**
+	 * Hands the attachments of an article to the attachment pool.  Once they
+	 * are through, the article is recorded in the journal, or queued for a
+	 * retry if any failed.
+	 */
+	private void submitAttachments(final Article article) {
+		final String pathInWiki = article.getPathInWiki("/");
+		try {
+			attachmentPool.submit(article.getAttachments(), new AttachmentPool.Listener() {
+				@Override
+				public void attachmentsDone(final boolean transferred) {
+					if (transferred) {
+						checkpoint(pathInWiki, CheckpointJournal.Stage.ATTACHMENTS_DONE);
+					} else {
+						retryLater(article, "attachments not transferred");
+					}
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queues an article for another attempt, through the link it was read
+	 * from, in whichever form the PmWiki uses.
+	 */
+	private void retryLater(final Article article, final String reason) {
+		RetryQueue currentRetryQueue = retryQueue;
+		if (currentRetryQueue == null) {
+			return;
+		}
+		String articleLink = article.getLink() != null ? article.getLink()
+				: pmWikiParams.getURL() + "/" + article.getPathInWiki("/");
+		currentRetryQueue.failed(articleLink, reason);
+	}
+
+	/**
+	 * Records in the journal that an article reached a stage.
+	 */
+	private void checkpoint(final String pathInWiki, final CheckpointJournal.Stage stage) {
+		CheckpointJournal currentJournal = journal;
+		if (currentJournal == null) {
+			return;
+		}
+		try {
+			currentJournal.record(pathInWiki, stage);
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not record " + pathInWiki + " in journal: " + e.getLocalizedMessage());
+		}
+	}
 
 	/**
 	 * Returns the URL to the PmWiki.
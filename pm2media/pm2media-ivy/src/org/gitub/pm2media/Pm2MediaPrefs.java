@@ -6,11 +6,68 @@ import java.util.Properties;
 public class Pm2MediaPrefs {
 
 	public static final String CACHE_NAME_FORMAT = "pm2media.%s.cacheDirectory";
+	public static final String ARTICLE_CACHE_FORMAT = "pm2media.articleCache.format";
+	public static final String ATTACHMENT_STORE_DIRECTORY = "pm2media.attachmentStore.directory";
+	public static final String ATTACHMENT_STORE_EXPECTED_UPLOADS = "pm2media.attachmentStore.expectedUploads";
+	public static final String RETRY_DEAD_LETTER_FILE = "pm2media.retry.deadLetterFile";
+	public static final String RETRY_MAX_ATTEMPTS = "pm2media.retry.maxAttempts";
+	public static final String RETRY_BASE_DELAY_SECONDS = "pm2media.retry.baseDelaySeconds";
+	public static final String RESUME = "pm2media.resume";
+	public static final String JOURNAL_FILE = "pm2media.journal.file";
+	public static final String JOURNAL_SYNC_INTERVAL = "pm2media.journal.syncInterval";
+	public static final String RUN_MODE = "pm2media.mode";
+	public static final String LONG_RUN = "pm2media.longRun";
+	public static final String LONG_RUN_RECYCLE_INTERVAL = "pm2media.longRun.recycleInterval";
+	public static final String LONG_RUN_REPORT_INTERVAL = "pm2media.longRun.reportInterval";
+	public static final String PIPELINE = "pm2media.pipeline";
+	public static final String PIPELINE_FETCH_THREADS = "pm2media.pipeline.fetchThreads";
+	public static final String PIPELINE_CONVERT_THREADS = "pm2media.pipeline.convertThreads";
+	public static final String PIPELINE_QUEUE_CAPACITY = "pm2media.pipeline.queueCapacity";
+	public static final String PIPELINE_REPORT_SECONDS = "pm2media.pipeline.reportSeconds";
+	public static final String ATTACHMENT_THREADS = "pm2media.attachments.threads";
+	public static final String ATTACHMENT_QUEUE_CAPACITY = "pm2media.attachments.queueCapacity";
+	public static final String HTMLUNIT_LEAN_PROFILE = "htmlunit.leanProfile";
+	public static final String HTMLUNIT_POOL_SIZE = "htmlunit.poolSize";
+	public static final String SYNC_INTERVAL_MINUTES = "pm2media.sync.intervalMinutes";
+	public static final String SYNC_STATE_FILE = "pm2media.sync.stateFile";
+	public static final String MIRROR_DEBOUNCE_MILLIS = "pm2media.mirror.debounceMillis";
 	
 	public static final String PMWIKI_USE_CACHE = "pmwiki.useCache";
 	public static final String PMWIKI_DOWNLOAD_ATTACHMENTS = "pmwiki.downloadAttachments";
+	public static final String PMWIKI_DOWNLOAD_MAX_ATTEMPTS = "pmwiki.download.maxAttempts";
+	public static final String PMWIKI_PROBE_THREADS = "pmwiki.probe.threads";
+	public static final String PMWIKI_ATTACHMENTS_MAX_SIZE_MB = "pmwiki.attachments.maxSizeMB";
+	public static final String PMWIKI_ATTACHMENTS_EXCLUDED_TYPES = "pmwiki.attachments.excludedTypes";
+	public static final String PMWIKI_DISCOVERY = "pmwiki.discovery";
+	public static final String PMWIKI_CRAWL_SEED = "pmwiki.crawl.seed";
+	public static final String PMWIKI_CRAWL_THREADS = "pmwiki.crawl.threads";
+	public static final String PMWIKI_CRAWL_MAX_PAGES = "pmwiki.crawl.maxPages";
+	public static final String PMWIKI_WIKI_DIRECTORY = "pmwiki.wikiDirectory";
+	public static final String PMWIKI_UPLOADS_DIRECTORY = "pmwiki.uploadsDirectory";
+	public static final String PMWIKI_RECENT_CHANGES_PAGE = "pmwiki.recentChangesPage";
+	public static final String PMWIKI_TIME_ZONE = "pmwiki.timeZone";
 	
 	public static final String MEDIAWIKI_USE_CACHE = "mediawiki.useCache";
+	public static final String MEDIAWIKI_BACKEND = "mediawiki.backend";
+	public static final String MEDIAWIKI_API_URL = "mediawiki.apiURL";
+	public static final String MEDIAWIKI_MAX_LAG = "mediawiki.maxLag";
+	public static final String MEDIAWIKI_SESSION_FILE = "mediawiki.sessionFile";
+	public static final String MEDIAWIKI_MAX_PARALLEL_POSTS = "mediawiki.maxParallelPosts";
+	public static final String MEDIAWIKI_UPLOAD_CHUNK_SIZE_KB = "mediawiki.upload.chunkSizeKB";
+	public static final String MEDIAWIKI_UPLOAD_DEDUPLICATE = "mediawiki.upload.deduplicate";
+	public static final String MEDIAWIKI_ACCOUNT_USERNAME_FORMAT = "mediawiki.account.%d.username";
+	public static final String MEDIAWIKI_ACCOUNT_PASSWORD_FORMAT = "mediawiki.account.%d.password";
+	public static final String MEDIAWIKI_PREFLIGHT = "mediawiki.preflight";
+	public static final String MEDIAWIKI_MANIFEST_FILE = "mediawiki.manifestFile";
+	public static final String MEDIAWIKI_OUTPUT = "mediawiki.output";
+	public static final String MEDIAWIKI_DUMP_FILE = "mediawiki.dump.file";
+	public static final String MEDIAWIKI_DUMP_GZIP = "mediawiki.dump.gzip";
+	public static final String MEDIAWIKI_DUMP_MAX_FILE_SIZE_MB = "mediawiki.dump.maxFileSizeMB";
+	public static final String MEDIAWIKI_DUMP_FIRST_ID = "mediawiki.dump.firstId";
+	public static final String MEDIAWIKI_DUMP_BATCH_SIZE = "mediawiki.dump.batchSize";
+	public static final String MEDIAWIKI_DUMP_TABLE_PREFIX = "mediawiki.dump.tablePrefix";
+	public static final String MEDIAWIKI_DUMP_ACTOR_ID = "mediawiki.dump.actorId";
+	public static final String MEDIAWIKI_DUMP_COMMENT_ID = "mediawiki.dump.commentId";
 	public static final String MEDIAWIKI_UPLOAD_ARTICLES = "mediawiki.uploadArticles";
 	public static final String MEDIAWIKI_UPLOAD_ATTACHMENTS = "mediawiki.uploadAttachemnts";
 	
@@ -40,6 +97,18 @@ public class Pm2MediaPrefs {
 		return getInstance().props.getProperty(key);
 	}
 	
+	public static int getIntProperty(final String key, final int defaultValue) {
+		String value = getInstance().props.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
 	public static boolean getBoolProperty(final String key) {
 		String value = "";
 		try {
@@ -1,20 +1,19 @@
 package org.gitub.pm2media;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.htmlparser.NodeFilter;
 import org.htmlparser.Parser;
 import org.htmlparser.Tag;
@@ -27,8 +26,8 @@ import org.htmlparser.util.ParserException;
 import org.htmlparser.visitors.NodeVisitor;
 
 import com.gargoylesoftware.htmlunit.DefaultCredentialsProvider;
+import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.WebClient;
-import com.gargoylesoftware.htmlunit.WebRequest;
 import com.gargoylesoftware.htmlunit.html.DomElement;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
@@ -44,6 +43,7 @@ public class PmWiki {
 	private WikiParams wikiParams;
 	public PmWiki withWikiParams(WikiParams wikiParams) {
 		this.wikiParams = wikiParams;
+		WebClientPool.getInstance().allowHost(wikiParams.getURL());
 		return this;
 	}
 	public WikiParams getWikiParams() {
@@ -56,9 +56,12 @@ public class PmWiki {
 		return this;
 	}
 
-	private final WebClient webClient = new WebClient();
+	private WebClient webClient = WebClientPool.getInstance().borrow();
 
 	private ArticleCache pmwikiCache;
+
+	/** Downloads attachments, created on first use. */
+	private AttachmentDownloader downloader;
 	
 	/** sequence marking start of content of PmWiki */
 	static String contentStart = "<!--PageText-->";
@@ -66,12 +69,41 @@ public class PmWiki {
 	/** sequence marking end of content of PmWiki */
 	static String contentEnd = "<!--PageFooterFmt-->";
 
+	/** a link in PmWiki markup, [[...]] */
+	private static final Pattern MARKUP_LINK = Pattern.compile("\\[\\[(.*?)\\]\\]");
+
 	/**
 	 * Class constructor specifying URL and local path to PmWiki.
 	 */
 	public PmWiki() {
 		Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.PMWIKI_USE_CACHE);
-		pmwikiCache = new ArticleCache("pmwiki");
+		pmwikiCache = ArticleCache.forName("pmwiki");
+	}
+
+	/**
+	 * Returns the WebClient to the pool.  The PmWiki must not be used
+	 * afterwards.
+	 */
+	public void close() {
+		if (downloader != null) {
+			downloader.close();
+		}
+		WebClientPool.getInstance().release(webClient);
+	}
+
+	/**
+	 * Closes all pages and their window history, keeping the session.
+	 */
+	public void releasePages() {
+		webClient.closeAllWindows();
+	}
+
+	/**
+	 * Replaces the WebClient by a new one with the same session, to drop
+	 * whatever state the old one has accumulated.
+	 */
+	public void recycleWebClient() {
+		webClient = WebClientPool.getInstance().recycle(webClient);
 	}
 
 	public void initializeCredentials() {
@@ -86,46 +118,67 @@ public class PmWiki {
 	 * @return all links to articles parsed form the index page of PmWiki
 	 */
 	public Set<String> getLinksFromIndexPage() {
-		String page = "", input = "";
-		String pmWikiIndexURL = "";
-
 		initializeCredentials();
-		
-		// NodeList for the <a> tags
-		NodeList linkTags = new NodeList();
+
+		Set<String> links = getWikiLinks(wikiParams.getURL() + "/" + indexPageName, "pmwiki-index-page.html");
+		if (links == null) {
+			return new TreeSet<String>();
+		}
+
+		// number of link tags found
+		Logger.getInstance().log("Found " + links.size() + " <a> tags.");
+
+		return links;
+	}
+
+	/**
+	 * Returns all wiki links found in the content area of a PmWiki page.
+	 * 
+	 * @param pageURL
+	 *            the URL of the page to read
+	 * @param logFileName
+	 *            file to log the retrieved page to, or null to skip logging
+	 * @return the links to other articles, null if the page could not be read
+	 */
+	public Set<String> getWikiLinks(final String pageURL, final String logFileName) {
+		String page = "";
 		final SortedSet<String> links = new TreeSet<String>();
-		
+
 		try {
-			pmWikiIndexURL = wikiParams.getURL() + "/" + indexPageName;
-			Logger.getInstance().log(pmWikiIndexURL, Logger.Mode.OPEN);
-			HtmlPage allPagesPage = webClient.getPage(pmWikiIndexURL);
-			page = allPagesPage.asXml().toString();
-			Logger.getInstance().log("Retrieved index page.");
-			Logger.getInstance().logPage(allPagesPage, "pmwiki-index-page.html");
+			Logger.getInstance().log(pageURL, Logger.Mode.OPEN);
+			HtmlPage wikiPage = webClient.getPage(pageURL);
+			page = wikiPage.asXml().toString();
+			if (logFileName != null) {
+				Logger.getInstance().logPage(wikiPage, logFileName);
+			}
 		}
 		catch (MalformedURLException e) {
-			Logger.getInstance().logError("Failed to open index page, malformed URL " + pmWikiIndexURL);
+			Logger.getInstance().logError("Failed to open page, malformed URL " + pageURL);
 			e.printStackTrace();
-			return links;
+			return null;
 		}
 		catch (IOException e) {
-			Logger.getInstance().logError("Failed to open index page, exception " + e.getMessage());
+			Logger.getInstance().logError("Failed to open page " + pageURL + ", exception " + e.getMessage());
 			e.printStackTrace();
-			return links;
+			return null;
 		}
 
 		// trimming the PmWiki page to the content
-		input = page.substring(
-				page.indexOf(contentStart) + contentStart.length(),
-				page.indexOf(contentEnd));
+		int start = page.indexOf(contentStart);
+		int end = page.indexOf(contentEnd);
+		if (start == -1 || end < start) {
+			Logger.getInstance().logError("No page content found in " + pageURL);
+			return links;
+		}
+		String input = page.substring(start + contentStart.length(), end);
 
-		// Find all a tags on the index page
+		// Find all a tags in the page content
 		try {
 			Parser parser = new Parser();
 			parser.setInputHTML(input);
-			Logger.getInstance().log(pmWikiIndexURL, Logger.Mode.PARSE);
+			Logger.getInstance().log(pageURL, Logger.Mode.PARSE);
 			NodeFilter filter = new AndFilter(new TagNameFilter("a"), new HasAttributeFilter("class", "wikilink"));
-			linkTags = parser.extractAllNodesThatMatch(filter);
+			NodeList linkTags = parser.extractAllNodesThatMatch(filter);
 
 			linkTags.visitAllNodesWith(new NodeVisitor() {
 				@Override
@@ -136,16 +189,155 @@ public class PmWiki {
 			});
 		}
 		catch (ParserException e) {
-			Logger.getInstance().logError("Failed to open index page, parser exception " + e.getMessage());
+			Logger.getInstance().logError("Failed to parse page " + pageURL + ", parser exception " + e.getMessage());
 			e.printStackTrace();
 		}
 
-		// number of link tags found
-		Logger.getInstance().log("Found " + links.size() + " <a> tags.");
+		return links;
+	}
+
+	/**
+	 * Returns the links to other articles in the markup of an article:
+	 * [[Target]], [[Target|text]] and [[text->Target]], with the target
+	 * given as "Name", "Group.Name" or "Group/Name".  Links to other sites,
+	 * attachments and categories are left out, as are links produced by
+	 * directives such as (:include:) or (:pagelist:).
+	 *
+	 * @param wikiURL
+	 *            the URL of the PmWiki
+	 * @return the links in the "pmwiki.php/Group/Name" form
+	 */
+	public static Set<String> getMarkupLinks(final String wikiURL, final Article article) {
+		Set<String> links = new TreeSet<String>();
+		Matcher matcher = MARKUP_LINK.matcher(article.getBody());
+		while (matcher.find()) {
+			String target = matcher.group(1);
+			int arrow = target.indexOf("->");
+			if (arrow != -1) {
+				target = target.substring(arrow + 2);
+			} else if (target.indexOf('|') != -1) {
+				target = target.substring(0, target.indexOf('|'));
+			}
+			// parentheses only hide part of the link text
+			target = target.replace("(", "").replace(")", "");
+			int end = target.length();
+			for (char c : new char[] { '#', '?' }) {
+				if (target.indexOf(c) != -1) {
+					end = Math.min(end, target.indexOf(c));
+				}
+			}
+			target = target.substring(0, end).trim();
+			if (target.isEmpty() || target.startsWith("!") || target.matches("[\\w-]+:.*")) {
+				continue;
+			}
 
+			String[] parts = target.split("[./]", 2);
+			String articleNamespace = parts.length == 2 ? makePageName(parts[0]) : article.getNamespace();
+			String articleName = makePageName(parts[parts.length - 1]);
+			if (articleNamespace.isEmpty()) {
+				continue;
+			}
+			if (articleName.isEmpty()) {
+				articleName = "HomePage";
+			}
+			links.add(wikiURL + "/" + articleNamespace + "/" + articleName);
+		}
 		return links;
 	}
 
+	/**
+	 * Turns link text into a page name the way PmWiki does: apostrophes are
+	 * dropped, every other character which is not a letter, digit, '_' or
+	 * '-' separates words, and the words are capitalized and joined.
+	 */
+	static String makePageName(final String text) {
+		StringBuilder name = new StringBuilder();
+		boolean wordStart = true;
+		for (char c : text.replace("'", "").toCharArray()) {
+			if (Character.isLetterOrDigit(c) || c == '_' || c == '-') {
+				name.append(wordStart ? Character.toUpperCase(c) : c);
+				wordStart = false;
+			} else {
+				wordStart = true;
+			}
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Splits a link to a PmWiki article into namespace (group) and name.  Both
+	 * the "pmwiki.php?n=Group.Name" and the "pmwiki.php/Group/Name" link forms
+	 * are understood.  Anchors and additional query parameters are ignored.
+	 * 
+	 * @param wikiURL
+	 *            the URL of the PmWiki
+	 * @param articleLink
+	 *            the link to the article
+	 * @return array of namespace and name, or null if the link does not point
+	 *         to an article
+	 */
+	public static String[] splitArticleLink(final String wikiURL, final String articleLink) {
+		if (!articleLink.startsWith(wikiURL)) {
+			return null;
+		}
+
+		String path = articleLink.substring(wikiURL.length());
+		int anchor = path.indexOf('#');
+		if (anchor != -1) {
+			path = path.substring(0, anchor);
+		}
+
+		String articleNamespace, articleName;
+		if (path.indexOf(".") != -1) {
+			String[] tmp = path.split("\\.");
+			articleNamespace = tmp[0].substring(tmp[0].indexOf('=') + 1);
+			articleName = tmp[1];
+			int param = articleName.indexOf('&');
+			if (param != -1) {
+				articleName = articleName.substring(0, param);
+			}
+		}
+		else {
+			int query = path.indexOf('?');
+			if (query != -1) {
+				path = path.substring(0, query);
+			}
+			String[] tmp = path.split("/");
+			if (tmp.length < 2) {
+				return null;
+			}
+			articleNamespace = tmp[tmp.length - 2];
+			articleName = tmp[tmp.length - 1];
+		}
+
+		if (articleNamespace.isEmpty() || articleName.isEmpty()) {
+			return null;
+		}
+		return new String[] { articleNamespace, articleName };
+	}
+
+	/**
+	 * Returns the normalized "Group.Name" key of an article.  PmWiki page names
+	 * are case insensitive, so the key is lower case.
+	 */
+	public static String normalizePageName(final String articleNamespace, final String articleName) {
+		return (articleNamespace + "." + articleName).toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Returns the raw markup of a PmWiki page (action=source).
+	 * 
+	 * @param pageName
+	 *            the page, e.g. "Site/AllRecentChanges"
+	 * @return the markup of the page
+	 */
+	public String getPageSource(final String pageName) throws IOException {
+		String sourceURL = wikiParams.getURL() + "/" + pageName + "?action=source";
+		Logger.getInstance().log(sourceURL, Logger.Mode.READ);
+		Page page = webClient.getPage(sourceURL);
+		return page.getWebResponse().getContentAsString();
+	}
+
 	/**
 	 * Returns whether a link has to be parsed and converted into MediaWiki
 	 * syntax (returns false for PmWiki specific pages).
@@ -178,97 +370,181 @@ public class PmWiki {
 
 	/**
 	 * Gets an article from a PmWiki.
+	 * 
+	 * @throws IOException
+	 *             if the article could not be read
 	 */
-	public Article getArticle(String articleLink, String articleNamespace, String articleName) {
+	public Article getArticle(String articleLink, String articleNamespace, String articleName) throws IOException {
+		return getArticle(articleLink, articleNamespace, articleName, false);
+	}
+
+	/**
+	 * Gets an article from a PmWiki.
+	 * 
+	 * @param refresh
+	 *            true to bypass the article cache, e.g. for articles known to
+	 *            have changed
+	 * @throws IOException
+	 *             if the article could not be read
+	 */
+	public Article getArticle(String articleLink, String articleNamespace, String articleName, boolean refresh)
+			throws IOException {
 		Article article = new Article(articleNamespace, articleName, "");
+		article.setLink(articleLink);
 
-		if (getArticleFromCache(article)) {
+		if (!refresh && getArticleFromCache(article)) {
+			// a resumed run transfers the attachments of a cached article too
+			addAttachments(article);
 			return article;
 		}
 		
-		try {
-			String articleURL;
-			if (articleLink.indexOf('?') != -1) {
-				articleURL = articleLink + "&";
-			} else {
-				articleURL = articleLink + "?";
-			}
+		String articleURL;
+		if (articleLink.indexOf('?') != -1) {
+			articleURL = articleLink + "&";
+		} else {
+			articleURL = articleLink + "?";
+		}
+
+		articleURL += "action=edit";
+		Logger.getInstance().log(articleURL, Logger.Mode.READ);
+		HtmlPage page = webClient.getPage(articleURL);
+		DomElement textEditElement = page.getElementByName("text");
+		String text = textEditElement.asText();
+		HtmlElement cancelButton = (HtmlElement) page.getElementByName("cancel");
+		cancelButton.click();
+		
+		article.setBody(text);
 
-			articleURL += "action=edit";
-			Logger.getInstance().log(articleURL, Logger.Mode.READ);
-			HtmlPage page = webClient.getPage(articleURL);
-			DomElement textEditElement = page.getElementByName("text");
-			String text = textEditElement.asText();
-			HtmlElement cancelButton = (HtmlElement) page.getElementByName("cancel");
-			cancelButton.click();
-			
-			article.setBody(text);
-
-			if (Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.PMWIKI_USE_CACHE)) {
-				pmwikiCache.cacheArticle(article.getPathInWiki("/"),  article.getBody());
+		if (Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.PMWIKI_USE_CACHE)) {
+			pmwikiCache.cacheArticle(article.getPathInWiki("/"),  article.getBody());
+		}
+		
+		addAttachments(article);
+
+		return article;
+	}
+	
+	/**
+	 * Reads an article directly from its page file in PmWiki's wiki.d
+	 * directory.
+	 * 
+	 * @param pageFile
+	 *            the page file, named "Group.Name"
+	 * @return the article, or null if the file is not in the url encoded
+	 *         format of PmWiki 2.2 and later
+	 */
+	public Article getArticleFromPageFile(final File pageFile, final String articleNamespace, final String articleName)
+			throws IOException {
+		String text = null;
+		boolean urlEncoded = false;
+
+		for (String line : FileUtils.readLines(pageFile, "UTF-8")) {
+			if (line.startsWith("version=")) {
+				urlEncoded = line.indexOf("urlencoded=1") != -1;
 			}
-			
-			// pattern matching all attachments
-			Pattern detectAttachments = Pattern.compile("Attach:(.*?)\\.([\\w]{3,4})");
-			Matcher matcher = detectAttachments.matcher(text);
-
-			while (matcher.find()) {
-				String fileName = "attachments/" + matcher.group(1).trim() + "."
-						+ matcher.group(2);
-				String baseURL = wikiParams.getURL().substring(0, wikiParams.getURL().lastIndexOf('/'));
-				String fileURL = baseURL + "/uploads/" + article.getPathInWiki(".") + "/" + fileName;
-				File file = new File(fileURL);
-				
-				if (file.length() < Pm2Media.MAX_FILESIZE) {
-					article.addAttachment(new Attachment(fileName, fileURL));
-				} else {
-					Logger.getInstance().log(
-							"File " + fileName + " exceeding max filesize",
-							Logger.Mode.ERROR);
-				}
+			else if (line.startsWith("text=")) {
+				text = line.substring("text=".length());
 			}
 		}
-		catch (MalformedURLException e) {
-			Logger.getInstance().log(e.getMessage(), Logger.Mode.ERROR);
-		}
-		catch (IOException e) {
-			Logger.getInstance().log(e.getMessage(), Logger.Mode.ERROR);
+
+		if (!urlEncoded || text == null) {
+			return null;
 		}
 
+		text = text.replace("%0a", "\n").replace("%3c", "<").replace("%25", "%");
+		Article article = new Article(articleNamespace, articleName, text);
+		if (Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.PMWIKI_USE_CACHE)) {
+			pmwikiCache.cacheArticle(article.getPathInWiki("/"),  article.getBody());
+		}
+		addAttachments(article);
 		return article;
 	}
+
+	/**
+	 * Adds the attachments referenced in the body of an article.  If they
+	 * are to be downloaded, they are probed first and those the
+	 * AttachmentProber rejects are left out.
+	 */
+	private void addAttachments(final Article article) {
+		String text = article.getBody();
+
+		// pattern matching all attachments
+		Pattern detectAttachments = Pattern.compile("Attach:(.*?)\\.([\\w]{3,4})");
+		Matcher matcher = detectAttachments.matcher(text);
+
+		List<Attachment> attachments = new ArrayList<Attachment>();
+		while (matcher.find()) {
+			String fileName = "attachments/" + matcher.group(1).trim() + "."
+					+ matcher.group(2);
+			String baseURL = wikiParams.getURL().substring(0, wikiParams.getURL().lastIndexOf('/'));
+			String fileURL = baseURL + "/uploads/" + article.getPathInWiki(".") + "/" + fileName;
+			attachments.add(new Attachment(fileName, fileURL));
+		}
+
+		if (attachments.isEmpty() || !Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.PMWIKI_DOWNLOAD_ATTACHMENTS)) {
+			for (Attachment attachment : attachments) {
+				article.addAttachment(attachment);
+			}
+			return;
+		}
+
+		AttachmentProber prober = AttachmentProber.getInstance(wikiParams);
+		prober.probe(attachments);
+		for (Attachment attachment : attachments) {
+			String rejection = prober.getRejection(attachment);
+			if (rejection == null) {
+				article.addAttachment(attachment);
+			} else {
+				Logger.getInstance().log("Leaving out " + attachment.getFileName() + ", " + rejection + ".",
+						Logger.Mode.ERROR);
+			}
+		}
+	}
 	
 	private boolean getArticleFromCache(Article article) {
-		final String articlePath = article.getPathInWiki("/");
-		if (pmwikiCache.isArticleCached(articlePath)) {
-			article.setBody(pmwikiCache.getCachedArticle(articlePath));
+		final String body = pmwikiCache.getCachedArticle(article.getPathInWiki("/"));
+		if (body != null) {
+			article.setBody(body);
 			return true;
 		} else {
 			return false;
 		}
 	}
 	
-	public void download(final Attachment attachment) {
+	/**
+	 * Downloads an attachment into the AttachmentStore, unless the store
+	 * already has the file from this URL.  Sets the local file of the
+	 * attachment.
+	 * 
+	 * @param attachment
+	 *            the attachment to be downloaded
+	 * @return false if the attachment could not be downloaded
+	 */
+	public boolean download(final Attachment attachment) {
 		try {
-			WebRequest request = new WebRequest(new URL(attachment.getFileURL()));
-			InputStream is = webClient.loadWebResponse(request).getContentAsStream();
-			
-			File localFile = new File(attachment.getFileName());
-			OutputStream os = new FileOutputStream(localFile);
-			
-			byte[] bytes = new byte[1024 * 10];
-			int bytesRead = is.read(bytes);
-			while (bytesRead > 0) {
-				os.write(bytes, 0, bytesRead);
-				bytesRead = is.read(bytes);
-			}
-			os.close();
-		} catch (MalformedURLException e) {
-			Logger.getInstance().logError("Malformed URL: " + e.getMessage());
-		} catch (FileNotFoundException e) {
-			Logger.getInstance().logError("Could not open source file: " + e.getMessage());
+			File localFile = getDownloader().download(attachment.getFileURL(), attachment.getETag());
+			attachment.setLocalFile(localFile, AttachmentStore.getInstance().getHash(attachment.getFileURL()));
+			return true;
 		} catch (IOException e) {
-			Logger.getInstance().logError("Error writing downloaded file: " + e.getMessage());
+			Logger.getInstance().logError("Could not download " + attachment.getFileName() + ": " + e.getLocalizedMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Requests an attachment for reading it once, without storing it.  The
+	 * caller must close the response.
+	 */
+	public CloseableHttpResponse openAttachment(final Attachment attachment) throws IOException {
+		return getDownloader().open(attachment.getFileURL());
+	}
+
+	private AttachmentDownloader getDownloader() {
+		if (downloader == null) {
+			downloader = new AttachmentDownloader(AttachmentStore.getInstance())
+					.withCredentials(wikiParams.getUsername(), wikiParams.getPassword())
+					.withMaxAttempts(Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.PMWIKI_DOWNLOAD_MAX_ATTEMPTS, 5));
 		}
+		return downloader;
 	}
 }
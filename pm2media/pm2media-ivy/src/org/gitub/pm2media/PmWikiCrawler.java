@@ -0,0 +1,306 @@
+package org.gitub.pm2media;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Discovers PmWiki articles by following wiki links breadth first, starting
+ * at a seed page.  Used for wikis which have no usable index page.
+ *
+ * Pages are fetched by a fixed number of worker threads, each with its own
+ * PmWiki (and thus its own WebClient).  Every page is queued at most once;
+ * visited pages are remembered by the fingerprint of their normalized
+ * "Group.Name".  Discovered links are handed out through nextLink() while
+ * the crawl is still running.
+ *
+ * Each page is read once, as an article, and its links are taken from the
+ * markup.  The article is kept for takeArticle(), so the migration does not
+ * fetch the page a second time.
+ *
+ * @author smootp
+ *
+ */
+public class PmWikiCrawler {
+	/** Marks the end of the discovered links. */
+	private static final String END_OF_CRAWL = new String("<end of crawl>");
+
+	private final WikiParams wikiParams;
+
+	private String seedPage = "Main/HomePage";
+	public PmWikiCrawler withSeedPage(final String seedPage) {
+		this.seedPage = seedPage;
+		return this;
+	}
+
+	private int threadCount = 4;
+	public PmWikiCrawler withThreadCount(final int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+		return this;
+	}
+
+	private int maxPages = 10000;
+	public PmWikiCrawler withMaxPages(final int maxPages) {
+		this.maxPages = Math.max(1, maxPages);
+		return this;
+	}
+
+	/** Pages waiting to be fetched.  Bounded by maxPages, since every page is queued once. */
+	private BlockingQueue<String> frontier;
+
+	/** Pages fetched successfully, waiting to be migrated. */
+	private final BlockingQueue<String> discoveredLinks = new LinkedBlockingQueue<String>();
+
+	/** Articles of the discovered links, until taken by takeArticle(). */
+	private final ConcurrentMap<String, Article> articles = new ConcurrentHashMap<String, Article>();
+
+	/** Fingerprints of all pages ever queued. */
+	private final FingerprintSet visited = new FingerprintSet();
+
+	/** Number of pages queued or being fetched. The crawl is over when it drops to zero. */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private volatile boolean finished = false;
+
+	private ExecutorService workers;
+
+	public PmWikiCrawler(final WikiParams wikiParams) {
+		this.wikiParams = wikiParams;
+	}
+
+	/**
+	 * Starts crawling in the background.
+	 */
+	public void start() {
+		frontier = new LinkedBlockingQueue<String>(maxPages);
+		workers = Executors.newFixedThreadPool(threadCount);
+
+		String[] seed = PmWiki.splitArticleLink(wikiParams.getURL(), wikiParams.getURL() + "/" + seedPage);
+		if (seed == null || !enqueue(seed[0], seed[1])) {
+			Logger.getInstance().logError("Invalid crawl seed page " + seedPage + ".");
+			finish();
+			return;
+		}
+
+		Logger.getInstance().log("Crawling from " + seedPage + " with " + threadCount + " threads.");
+		for (int i = 0; i < threadCount; i++) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					crawl();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the next discovered article link, waiting for the crawler if
+	 * necessary.
+	 *
+	 * @return the link, or null when the crawl is over
+	 */
+	public String nextLink() {
+		try {
+			String link = discoveredLinks.take();
+			if (link == END_OF_CRAWL) {
+				discoveredLinks.offer(END_OF_CRAWL);
+				return null;
+			}
+			return link;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stop();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the article the crawler read for a link returned by nextLink(),
+	 * and forgets it.
+	 *
+	 * @return the article, or null if it was taken before
+	 */
+	public Article takeArticle(final String link) {
+		return articles.remove(link);
+	}
+
+	/**
+	 * Returns the number of pages queued so far.
+	 */
+	public int getDiscoveredCount() {
+		return visited.size();
+	}
+
+	/**
+	 * Stops crawling.  Links already discovered are still returned by
+	 * nextLink().
+	 */
+	public void stop() {
+		finish();
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+	}
+
+	private void crawl() {
+		PmWiki pmWiki = new PmWiki().withWikiParams(wikiParams);
+		pmWiki.initializeCredentials();
+		try {
+			crawl(pmWiki);
+		} finally {
+			pmWiki.close();
+		}
+	}
+
+	private void crawl(final PmWiki pmWiki) {
+		while (!finished) {
+			String link;
+			try {
+				link = frontier.poll(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (link == null) {
+				continue;
+			}
+
+			try {
+				String[] name = PmWiki.splitArticleLink(wikiParams.getURL(), link);
+				Article article = pmWiki.getArticle(link, name[0], name[1]);
+				// the article has all that is needed, don't keep the page around
+				pmWiki.releasePages();
+				articles.put(link, article);
+				discoveredLinks.offer(link);
+				for (String wikiLink : PmWiki.getMarkupLinks(wikiParams.getURL(), article)) {
+					String[] page = PmWiki.splitArticleLink(wikiParams.getURL(), wikiLink);
+					if (page != null) {
+						enqueue(page[0], page[1]);
+					}
+				}
+			} catch (Exception e) {
+				Logger.getInstance().logError("Failed to crawl " + link + ": " + e.getLocalizedMessage());
+			} finally {
+				if (pending.decrementAndGet() == 0) {
+					finish();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues a page unless it has been seen before, is not relevant or the
+	 * page limit has been reached.
+	 *
+	 * @return true if the page was queued
+	 */
+	private boolean enqueue(final String articleNamespace, final String articleName) {
+		if (!PmWiki.articleIsRelevant(articleName, articleNamespace)) {
+			return false;
+		}
+		if (!visited.add(PmWiki.normalizePageName(articleNamespace, articleName), maxPages)) {
+			return false;
+		}
+
+		pending.incrementAndGet();
+		if (!frontier.offer(wikiParams.getURL() + "/" + articleNamespace + "/" + articleName)) {
+			pending.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized void finish() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		discoveredLinks.offer(END_OF_CRAWL);
+		if (workers != null) {
+			workers.shutdown();
+		}
+		Logger.getInstance().log("Crawl finished, " + visited.size() + " pages discovered.");
+	}
+
+	/**
+	 * Compact set of 64 bit string fingerprints (open addressing, linear
+	 * probing).  Uses 8 bytes per entry instead of a String per entry; two
+	 * names sharing a fingerprint is astronomically unlikely at wiki sizes.
+	 */
+	public static final class FingerprintSet {
+		private long[] table = new long[1024];
+		private int size = 0;
+
+		/**
+		 * Adds a key unless it is in the set already.
+		 *
+		 * @return false if the key was in the set
+		 */
+		public synchronized boolean add(final String key) {
+			return add(key, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Adds a key unless it is in the set already or the set holds limit
+		 * keys.  Checking and adding are one step, so threads sharing the set
+		 * cannot add more than limit keys between them.
+		 *
+		 * @return false if the key was in the set or the set was full
+		 */
+		public synchronized boolean add(final String key, final int limit) {
+			if (size >= limit) {
+				return false;
+			}
+			long fingerprint = fingerprint(key);
+			if ((size + 1) * 2 > table.length) {
+				grow();
+			}
+			if (insert(table, fingerprint)) {
+				size++;
+				return true;
+			}
+			return false;
+		}
+
+		public synchronized int size() {
+			return size;
+		}
+
+		private static boolean insert(final long[] table, final long fingerprint) {
+			int mask = table.length - 1;
+			int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+			while (table[slot] != 0) {
+				if (table[slot] == fingerprint) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = fingerprint;
+			return true;
+		}
+
+		private void grow() {
+			long[] newTable = new long[table.length * 2];
+			for (long fingerprint : table) {
+				if (fingerprint != 0) {
+					insert(newTable, fingerprint);
+				}
+			}
+			table = newTable;
+		}
+
+		/** 64 bit FNV-1a hash; 0 is reserved for empty slots. */
+		private static long fingerprint(final String key) {
+			long hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < key.length(); i++) {
+				hash ^= key.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+			return hash == 0 ? 1 : hash;
+		}
+	}
+}
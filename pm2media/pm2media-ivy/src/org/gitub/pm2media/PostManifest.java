@@ -0,0 +1,169 @@
+package org.gitub.pm2media;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Record of the articles posted into the MediaWiki, kept between runs: title,
+ * SHA-1 of the posted body, time and result.  An article whose converted body
+ * has the same SHA-1 as the one posted last time need not be posted again.
+ *
+ * The file is a log of tab-separated lines, one line appended and flushed per
+ * post, so that an interrupted run loses at most the line being written.  A
+ * truncated last line is ignored when reading and ended before the next
+ * line is appended.  Lines superseded by later ones
+ * are dropped when the file is opened and more than half of it is stale.
+ *
+ * @author smootp
+ *
+ */
+public class PostManifest {
+	public static final String POSTED = "posted";
+	public static final String UNCHANGED = "unchanged";
+	public static final String FAILED = "failed";
+
+	private final File file;
+
+	/** Latest entry per title. */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private Writer writer;
+
+	/** Lines in the file that a later line replaces. */
+	private int staleLines = 0;
+
+	public PostManifest(final File file) {
+		this.file = file;
+		load();
+		if (staleLines > entries.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Returns whether the article was posted (or found unchanged) with the
+	 * given body before.
+	 */
+	public synchronized boolean isUpToDate(final String title, final String sha1) {
+		Entry entry = entries.get(title);
+		return entry != null && !entry.result.equals(FAILED) && entry.sha1.equals(sha1);
+	}
+
+	/**
+	 * Records the result of posting an article.
+	 */
+	public synchronized void record(final String title, final String sha1, final String result) throws IOException {
+		Entry entry = new Entry(sha1, System.currentTimeMillis(), result);
+		if (entries.put(title, entry) != null) {
+			staleLines++;
+		}
+
+		if (writer == null) {
+			boolean torn = CheckpointJournal.endsTorn(file);
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+			if (torn) {
+				// keep the next line from being glued to the torn one
+				writer.write("\n");
+			}
+		}
+		writer.write(title + "\t" + entry.sha1 + "\t" + entry.time + "\t" + entry.result + "\n");
+		writer.flush();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void close() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not close post manifest " + file + ": " + e.getLocalizedMessage());
+		}
+		writer = null;
+	}
+
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if (fields.length != 4) {
+						// torn write of an interrupted run
+						staleLines++;
+						continue;
+					}
+					try {
+						if (entries.put(fields[0], new Entry(fields[1], Long.parseLong(fields[2]), fields[3])) != null) {
+							staleLines++;
+						}
+					} catch (NumberFormatException e) {
+						staleLines++;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			Logger.getInstance().log("Post manifest " + file + " lists " + entries.size() + " articles.");
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not read post manifest " + file + ", posting all articles: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Rewrites the file with the latest entry per title only.
+	 */
+	private void compact() {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			Writer compacted = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+			try {
+				for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+					Entry value = entry.getValue();
+					compacted.write(entry.getKey() + "\t" + value.sha1 + "\t" + value.time + "\t" + value.result + "\n");
+				}
+			} finally {
+				compacted.close();
+			}
+			if (!tmpFile.renameTo(file)) {
+				// renameTo does not replace existing files on all platforms
+				file.delete();
+				if (!tmpFile.renameTo(file)) {
+					throw new IOException("Cannot rename " + tmpFile + " to " + file);
+				}
+			}
+			staleLines = 0;
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not compact post manifest " + file + ": " + e.getLocalizedMessage());
+		}
+	}
+
+	private static class Entry {
+		final String sha1;
+		final long time;
+		final String result;
+
+		Entry(final String sha1, final long time, final String result) {
+			this.sha1 = sha1;
+			this.time = time;
+			this.result = result;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.gitub.pm2media;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the PmWiki articles changed since a point in time.
+ *
+ * If the wiki.d directory of the PmWiki is accessible, the modification times
+ * of its page files are used.  Otherwise the recent changes page (by default
+ * Site/AllRecentChanges) is read and the time stamps of its entries are
+ * parsed.
+ *
+ * @author smootp
+ *
+ */
+public class RecentChanges {
+	/**
+	 * Recent changes entries only have minute precision, so changes up to a
+	 * minute before the requested time are reported as well.
+	 */
+	private static final long OVERLAP_MILLIS = 60 * 1000;
+
+	/** Matches "* [[Group.Name]] . . . time" entries of the recent changes page. */
+	private static final Pattern CHANGE_ENTRY = Pattern.compile("^\\*\\s*\\[\\[([^\\]|]+?)\\]\\]\\s*\\.\\s*\\.\\s*\\.\\s*(.*)$");
+
+	private final WikiParams wikiParams;
+
+	/** Local path to the wiki.d directory, or null to use the recent changes page. */
+	private String wikiDirectory;
+	public RecentChanges withWikiDirectory(final String wikiDirectory) {
+		this.wikiDirectory = (wikiDirectory == null || wikiDirectory.isEmpty()) ? null : wikiDirectory;
+		return this;
+	}
+
+	private String recentChangesPage = "Site/AllRecentChanges";
+	public RecentChanges withRecentChangesPage(final String recentChangesPage) {
+		this.recentChangesPage = recentChangesPage;
+		return this;
+	}
+
+	/** Format of the time stamps on the recent changes page (PmWiki's $TimeFmt). */
+	private String timeFormat = "MMMM dd, yyyy, 'at' hh:mm a";
+	public RecentChanges withTimeFormat(final String timeFormat) {
+		this.timeFormat = timeFormat;
+		return this;
+	}
+
+	private TimeZone timeZone = TimeZone.getDefault();
+	public RecentChanges withTimeZone(final TimeZone timeZone) {
+		this.timeZone = timeZone;
+		return this;
+	}
+
+	public RecentChanges(final WikiParams wikiParams) {
+		this.wikiParams = wikiParams;
+	}
+
+	/**
+	 * Returns the links to all articles changed since the given time.
+	 *
+	 * @param pmWiki
+	 *            the PmWiki to read the recent changes page from
+	 * @param since
+	 *            time in milliseconds since the epoch
+	 * @return the article links, newest changes first
+	 */
+	public Set<String> getChangedArticleLinks(final PmWiki pmWiki, final long since) throws IOException {
+		if (wikiDirectory != null) {
+			return getChangedFiles(since - OVERLAP_MILLIS);
+		}
+		return parseRecentChanges(pmWiki.getPageSource(recentChangesPage), since - OVERLAP_MILLIS);
+	}
+
+	private Set<String> getChangedFiles(final long since) throws IOException {
+		Set<String> links = new LinkedHashSet<String>();
+		File[] files = new File(wikiDirectory).listFiles();
+		if (files == null) {
+			throw new IOException("Cannot read wiki directory " + wikiDirectory);
+		}
+
+		for (File file : files) {
+			if (file.isFile() && file.lastModified() >= since) {
+				String link = getLinkForPageFile(file.getName());
+				if (link != null) {
+					links.add(link);
+				}
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Returns the article link for a file in wiki.d, or null if the file is
+	 * not a page (lock files, deleted page backups, ...).
+	 */
+	public String getLinkForPageFile(final String fileName) {
+		if (fileName.startsWith(".") || fileName.indexOf(',') != -1) {
+			return null;
+		}
+		int dot = fileName.indexOf('.');
+		if (dot <= 0 || dot == fileName.length() - 1 || fileName.indexOf('.', dot + 1) != -1) {
+			return null;
+		}
+		return wikiParams.getURL() + "/" + fileName.substring(0, dot) + "/" + fileName.substring(dot + 1);
+	}
+
+	/**
+	 * Parses the markup of a recent changes page.  Entries are ordered newest
+	 * first, so parsing stops at the first entry older than since.
+	 */
+	public Set<String> parseRecentChanges(final String source, final long since) {
+		Set<String> links = new LinkedHashSet<String>();
+		SimpleDateFormat dateFormat = new SimpleDateFormat(timeFormat, Locale.ENGLISH);
+		dateFormat.setTimeZone(timeZone);
+
+		for (String line : source.split("\r?\n")) {
+			Matcher matcher = CHANGE_ENTRY.matcher(line.trim());
+			if (!matcher.matches()) {
+				continue;
+			}
+
+			Date changed = dateFormat.parse(matcher.group(2), new ParsePosition(0));
+			if (changed == null) {
+				Logger.getInstance().logError("Cannot parse time of recent change: " + line);
+				continue;
+			}
+			if (changed.getTime() < since) {
+				break;
+			}
+
+			String pageName = matcher.group(1).trim().replace('/', '.');
+			int dot = pageName.indexOf('.');
+			if (dot > 0) {
+				links.add(wikiParams.getURL() + "/" + pageName.substring(0, dot) + "/" + pageName.substring(dot + 1));
+			}
+		}
+		return links;
+	}
+}
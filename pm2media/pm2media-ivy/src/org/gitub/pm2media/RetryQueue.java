@@ -0,0 +1,199 @@
+package org.gitub.pm2media;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Articles whose conversion failed, to be tried again later.  The delay
+ * doubles with every attempt, with some jitter so that articles failing
+ * together are not retried together.  Articles failing maxAttempts times go
+ * to the dead-letter file, one "link TAB reason" line each, which a later
+ * run can read as its work list.
+ *
+ * @author smootp
+ *
+ */
+public class RetryQueue {
+	private final File deadLetterFile;
+
+	private int maxAttempts = 5;
+	public RetryQueue withMaxAttempts(final int maxAttempts) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		return this;
+	}
+
+	private long baseDelayMillis = 2000;
+	public RetryQueue withBaseDelayMillis(final long baseDelayMillis) {
+		this.baseDelayMillis = baseDelayMillis;
+		return this;
+	}
+
+	private long maxDelayMillis = TimeUnit.MINUTES.toMillis(5);
+	public RetryQueue withMaxDelayMillis(final long maxDelayMillis) {
+		this.maxDelayMillis = maxDelayMillis;
+		return this;
+	}
+
+	private final DelayQueue<Retry> retries = new DelayQueue<Retry>();
+
+	/** Failed attempts per link. */
+	private final ConcurrentHashMap<String, Integer> attempts = new ConcurrentHashMap<String, Integer>();
+
+	private final Random random = new Random();
+
+	private int deadLetterCount = 0;
+
+	public RetryQueue(final File deadLetterFile) {
+		this.deadLetterFile = deadLetterFile;
+	}
+
+	/**
+	 * Records a failed attempt on an article.  The article is queued again,
+	 * or written to the dead-letter file if it has failed too often.
+	 */
+	public void failed(final String link, final String reason) {
+		int attempt = 1;
+		Integer previous = attempts.putIfAbsent(link, attempt);
+		while (previous != null) {
+			attempt = previous + 1;
+			if (attempts.replace(link, previous, attempt)) {
+				break;
+			}
+			previous = attempts.get(link);
+		}
+
+		if (attempt >= maxAttempts) {
+			Logger.getInstance().logError("Giving up on " + link + " after " + attempt + " attempts: " + reason);
+			writeDeadLetter(link, reason);
+			return;
+		}
+
+		long delay = getDelay(attempt);
+		Logger.getInstance().log("Retrying " + link + " in " + delay / 1000 + " seconds (attempt " + (attempt + 1) + ").");
+		retries.add(new Retry(link, System.currentTimeMillis() + delay));
+	}
+
+	/**
+	 * Returns the next article whose delay has passed, or null if there is
+	 * none yet.
+	 */
+	public String poll() {
+		Retry retry = retries.poll();
+		return retry == null ? null : retry.link;
+	}
+
+	/**
+	 * Waits for the next article whose delay has passed.
+	 *
+	 * @return the link of the article, or null if the queue is empty
+	 */
+	public String take() throws InterruptedException {
+		while (!retries.isEmpty()) {
+			Retry retry = retries.poll(1, TimeUnit.SECONDS);
+			if (retry != null) {
+				return retry.link;
+			}
+		}
+		return null;
+	}
+
+	public boolean isEmpty() {
+		return retries.isEmpty();
+	}
+
+	public synchronized int getDeadLetterCount() {
+		return deadLetterCount;
+	}
+
+	/**
+	 * Returns the delay before the given attempt: baseDelayMillis doubled
+	 * per attempt so far, capped at maxDelayMillis, times a random factor
+	 * between 0.5 and 1.5.
+	 */
+	long getDelay(final int attempt) {
+		long delay = baseDelayMillis << Math.min(attempt - 1, 30);
+		delay = Math.min(maxDelayMillis, delay);
+		double jitter;
+		synchronized (random) {
+			jitter = 0.5 + random.nextDouble();
+		}
+		return (long) (delay * jitter);
+	}
+
+	private synchronized void writeDeadLetter(final String link, final String reason) {
+		deadLetterCount++;
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(deadLetterFile, true), "UTF-8");
+			try {
+				writer.write(link + "\t" + String.valueOf(reason).replaceAll("[\t\r\n]+", " ") + "\n");
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			Logger.getInstance().logError("Could not write " + link + " to " + deadLetterFile + ": " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Reads the links of a dead-letter file to be used as work list.  The
+	 * file is renamed to .old, so that the articles failing again start a new
+	 * one.
+	 */
+	public static Set<String> readWorkList(final File deadLetterFile) throws IOException {
+		Set<String> links = new LinkedHashSet<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(deadLetterFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				String link = (tab == -1 ? line : line.substring(0, tab)).trim();
+				if (!link.isEmpty()) {
+					links.add(link);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		File oldFile = new File(deadLetterFile.getPath() + ".old");
+		oldFile.delete();
+		if (!deadLetterFile.renameTo(oldFile)) {
+			throw new IOException("Cannot rename " + deadLetterFile + " to " + oldFile);
+		}
+		return links;
+	}
+
+	private static class Retry implements Delayed {
+		final String link;
+		final long dueTime;
+
+		Retry(final String link, final long dueTime) {
+			this.link = link;
+			this.dueTime = dueTime;
+		}
+
+		@Override
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(dueTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(final Delayed other) {
+			long difference = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+			return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+		}
+	}
+}
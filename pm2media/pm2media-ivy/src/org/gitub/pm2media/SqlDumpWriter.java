@@ -0,0 +1,291 @@
+package org.gitub.pm2media;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Writes articles as rows of MediaWiki's page, revision, slots, content and
+ * text tables (MediaWiki 1.35 schema), for loading them straight into the
+ * database.  This skips the parser and all hooks, so it is much faster than
+ * importDump.php; run rebuildall.php and initSiteStats.php afterwards.
+ *
+ * Two formats are available: a file of multi-row INSERT statements, or one
+ * tab-separated file per table plus load.sql with the matching LOAD DATA
+ * statements.
+ *
+ * Page, revision, content and text ids are counted up from firstId, which
+ * must be above the highest id already used in any of the tables.  The actor
+ * and comment the revisions are attributed to must exist.
+ *
+ * @author smootp
+ *
+ */
+public class SqlDumpWriter implements ArticleDump {
+	private static final String[] TABLES = { "text", "content", "page", "revision", "slots" };
+
+	private static final String[] COLUMNS = {
+		"old_id, old_text, old_flags",
+		"content_id, content_size, content_sha1, content_model, content_address",
+		"page_id, page_namespace, page_title, page_is_redirect, page_is_new, page_random, page_touched, page_latest, page_len, page_content_model",
+		"rev_id, rev_page, rev_comment_id, rev_actor, rev_timestamp, rev_minor_edit, rev_deleted, rev_len, rev_parent_id, rev_sha1",
+		"slot_revision_id, slot_role_id, slot_content_id, slot_origin" };
+
+	/** SQL file, or directory for the tab-separated files. */
+	private final File file;
+
+	private final boolean tabSeparated;
+
+	private long nextId = 1;
+	public SqlDumpWriter withFirstId(final long firstId) {
+		this.nextId = firstId;
+		return this;
+	}
+
+	/** Rows per INSERT statement. */
+	private int batchSize = 500;
+	public SqlDumpWriter withBatchSize(final int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+
+	/** Bytes of text after which an INSERT is written even if the batch is not full, to stay below max_allowed_packet. */
+	private int maxStatementSize = 4 * 1024 * 1024;
+	public SqlDumpWriter withMaxStatementSize(final int maxStatementSize) {
+		this.maxStatementSize = maxStatementSize;
+		return this;
+	}
+
+	private String tablePrefix = "";
+	public SqlDumpWriter withTablePrefix(final String tablePrefix) {
+		this.tablePrefix = tablePrefix;
+		return this;
+	}
+
+	private long actorId = 1;
+	public SqlDumpWriter withActorId(final long actorId) {
+		this.actorId = actorId;
+		return this;
+	}
+
+	private long commentId = 1;
+	public SqlDumpWriter withCommentId(final long commentId) {
+		this.commentId = commentId;
+		return this;
+	}
+
+	/** Ids of the wikitext content model and the main slot role, 1 on a fresh wiki. */
+	private int contentModelId = 1;
+	private int mainSlotRoleId = 1;
+	public SqlDumpWriter withModelAndRoleIds(final int contentModelId, final int mainSlotRoleId) {
+		this.contentModelId = contentModelId;
+		this.mainSlotRoleId = mainSlotRoleId;
+		return this;
+	}
+
+	private final String timestamp;
+	private final Random random = new Random();
+
+	/** Pending rows per table, or the open files in tab separated format. */
+	private final StringBuilder[] rows = new StringBuilder[TABLES.length];
+	private final Writer[] writers = new Writer[TABLES.length];
+	private int pendingRows = 0;
+
+	private Writer sql;
+	private int pageCount = 0;
+
+	/**
+	 * @param file
+	 *            the SQL file, or the directory for the tab-separated files
+	 * @param tabSeparated
+	 *            true for LOAD DATA files, false for INSERT statements
+	 */
+	public SqlDumpWriter(final File file, final boolean tabSeparated) {
+		this.file = file;
+		this.tabSeparated = tabSeparated;
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss", Locale.ROOT);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		timestamp = format.format(new Date());
+	}
+
+	@Override
+	public void write(final Article article) throws IOException {
+		if (sql == null) {
+			open();
+		}
+
+		String text = article.getBody();
+		long pageId = nextId++;
+		long revisionId = nextId++;
+		long textId = nextId++;
+		long contentId = nextId++;
+		int length = text.getBytes("UTF-8").length;
+		String sha1 = XmlDumpWriter.sha1Base36(text);
+
+		addRow(0, textId, text, "utf-8");
+		addRow(1, contentId, length, sha1, contentModelId, "tt:" + textId);
+		addRow(2, pageId, 0, getDbKey(article.getPathInWiki("/")), 0, 1, random.nextDouble(), timestamp,
+				revisionId, length, null);
+		addRow(3, revisionId, pageId, commentId, actorId, timestamp, 0, 0, length, 0, sha1);
+		addRow(4, revisionId, mainSlotRoleId, contentId, revisionId);
+		pageCount++;
+
+		if (!tabSeparated) {
+			pendingRows++;
+			if (pendingRows >= batchSize || rows[0].length() >= maxStatementSize) {
+				flushInserts();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (sql == null) {
+			open();
+		}
+		try {
+			if (tabSeparated) {
+				for (int table = 0; table < TABLES.length; table++) {
+					writers[table].close();
+				}
+			} else {
+				flushInserts();
+			}
+			sql.write("COMMIT;\n");
+			Logger.getInstance().log("Dumped " + pageCount + " articles, next free id " + nextId + ".");
+		} finally {
+			sql.close();
+		}
+	}
+
+	private void open() throws IOException {
+		File sqlFile;
+		if (tabSeparated) {
+			file.mkdirs();
+			sqlFile = new File(file, "load.sql");
+		} else {
+			sqlFile = file;
+		}
+		Logger.getInstance().log("Writing dump " + sqlFile + ".");
+
+		sql = openWriter(sqlFile);
+		sql.write("-- MediaWiki tables written by Pm2Media\n");
+		sql.write("SET NAMES utf8mb4;\n");
+		sql.write("SET autocommit = 0, unique_checks = 0, foreign_key_checks = 0;\n");
+
+		for (int table = 0; table < TABLES.length; table++) {
+			if (tabSeparated) {
+				File tableFile = new File(file, TABLES[table] + ".tsv");
+				writers[table] = openWriter(tableFile);
+				sql.write("LOAD DATA LOCAL INFILE '" + escape(tableFile.getName()) + "' INTO TABLE "
+						+ tablePrefix + TABLES[table] + " CHARACTER SET utf8mb4 (" + COLUMNS[table] + ");\n");
+			} else {
+				rows[table] = new StringBuilder();
+			}
+		}
+	}
+
+	private static Writer openWriter(final File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 65536);
+	}
+
+	private void addRow(final int table, final Object... values) throws IOException {
+		if (tabSeparated) {
+			Writer writer = writers[table];
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					writer.write('\t');
+				}
+				writer.write(values[i] == null ? "\\N" : escape(values[i].toString()));
+			}
+			writer.write('\n');
+			return;
+		}
+
+		StringBuilder row = rows[table];
+		row.append(row.length() == 0 ? "(" : ",\n(");
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				row.append(',');
+			}
+			if (values[i] == null) {
+				row.append("NULL");
+			} else if (values[i] instanceof String) {
+				row.append('\'').append(escape((String) values[i])).append('\'');
+			} else {
+				row.append(values[i]);
+			}
+		}
+		row.append(')');
+	}
+
+	private void flushInserts() throws IOException {
+		if (pendingRows == 0) {
+			return;
+		}
+		for (int table = 0; table < TABLES.length; table++) {
+			sql.write("INSERT INTO " + tablePrefix + TABLES[table] + " (" + COLUMNS[table] + ") VALUES\n");
+			sql.append(rows[table]).write(";\n");
+			rows[table].setLength(0);
+		}
+		pendingRows = 0;
+	}
+
+	/**
+	 * Returns the title the way MediaWiki stores it in page_title: underscores
+	 * for blanks and an upper case first letter.
+	 */
+	static String getDbKey(final String title) {
+		String key = title.trim().replace(' ', '_');
+		if (key.isEmpty()) {
+			return key;
+		}
+		return key.substring(0, 1).toUpperCase(Locale.ROOT) + key.substring(1);
+	}
+
+	/**
+	 * Escapes a value for a MySQL string literal.  The same escapes are
+	 * understood by LOAD DATA, with tab added as the field separator.
+	 */
+	static String escape(final String value) {
+		StringBuilder escaped = new StringBuilder(value.length() + 16);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				escaped.append("\\\\");
+				break;
+			case '\'':
+				escaped.append("\\'");
+				break;
+			case '\0':
+				escaped.append("\\0");
+				break;
+			case '\n':
+				escaped.append("\\n");
+				break;
+			case '\r':
+				escaped.append("\\r");
+				break;
+			case '\t':
+				escaped.append("\\t");
+				break;
+			case '\u001a':
+				escaped.append("\\Z");
+				break;
+			default:
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+}
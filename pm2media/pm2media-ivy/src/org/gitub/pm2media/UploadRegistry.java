@@ -0,0 +1,411 @@
+package org.gitub.pm2media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Set of the uploaded files, kept on disk and shared between runs and
+ * between converters running side by side on the same attachment store.
+ *
+ * The file is a hash table with open addressing: a header and slots of 32
+ * bytes, each empty or holding the SHA-256 of a key.  A lookup reads one
+ * slot or a few neighbouring ones, however many keys there are.  The table
+ * doubles when it is half full.  Processes take a file lock for every
+ * lookup and insertion, so they see each other's keys at once.
+ *
+ * A Bloom filter in memory answers most lookups of keys which are not in
+ * the set without touching the disk.  It is sized for the expected number
+ * of keys and does not grow; beyond that it merely answers "maybe" more
+ * often.  Keys added by another process are not in the filter, so while the
+ * table holds more keys than this instance has seen, lookups go to disk.
+ *
+ * The table grows into a file next to it (uploads.db.grow), which is
+ * complete once its header is written; only then is it copied over the
+ * table, under the exclusive lock.  If a process dies while copying, the
+ * next one to take the lock finds the grown table and copies it again; a
+ * grown table without header is deleted, the table itself being untouched.
+ * So no key is lost, and other processes keep the file they have open.
+ *
+ * Instances on the same file within one JVM must not be used from
+ * different threads at the same time; file locks are held per JVM.
+ *
+ * @author smootp
+ *
+ */
+public class UploadRegistry {
+	private static final int MAGIC = 0x504d5552; // "PMUR"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 32;
+	private static final int MIN_SLOTS = 1024;
+	private static final int BLOOM_HASHES = 7;
+
+	/** Bytes read at a time when scanning the table. */
+	private static final int SCAN_BUFFER = 1024 * SLOT_SIZE;
+
+	private final File file;
+	/** The grown table while it is written and copied. */
+	private final File growFile;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+
+	private final BitSet bloom;
+	private final int bloomBits;
+
+	/** Number of keys in the table when this instance last saw all of them. */
+	private long knownCount;
+
+	/**
+	 * Opens the registry, creating the file if it does not exist.
+	 *
+	 * @param expectedKeys
+	 *            number of keys the Bloom filter and the first table are
+	 *            sized for
+	 */
+	public UploadRegistry(final File file, final int expectedKeys) throws IOException {
+		this.file = file;
+		this.growFile = new File(file.getPath() + ".grow");
+		int expected = Math.max(expectedKeys, MIN_SLOTS / 2);
+		// about ten bits per key keep false positives near one percent
+		bloomBits = expected * 10;
+		bloom = new BitSet(bloomBits);
+
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		FileLock lock = lock(false);
+		try {
+			if (channel.size() < HEADER_SIZE) {
+				long slots = Long.highestOneBit(expected * 2L - 1) << 1;
+				writeHeader(slots, 0);
+				raf.setLength(HEADER_SIZE + slots * SLOT_SIZE);
+			} else if (readInt(0) != MAGIC || readInt(4) != VERSION) {
+				throw new IOException(file + " is not an upload registry");
+			}
+			loadBloom();
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Returns whether a key is in the set.
+	 */
+	public synchronized boolean contains(final String key) throws IOException {
+		byte[] digest = digest(key);
+		if (!mightContain(digest) && readLong(16) == knownCount) {
+			return false;
+		}
+		FileLock lock = lock(true);
+		try {
+			boolean found = find(digest, readLong(8)) < 0;
+			if (found) {
+				addToBloom(digest);
+			}
+			return found;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Adds a key to the set.
+	 *
+	 * @return false if the key was in the set already
+	 */
+	public synchronized boolean add(final String key) throws IOException {
+		byte[] digest = digest(key);
+		FileLock lock = lock(false);
+		try {
+			long slots = readLong(8);
+			long count = readLong(16);
+			if ((count + 1) * 2 > slots) {
+				slots = grow(slots * 2);
+			}
+			long slot = find(digest, slots);
+			addToBloom(digest);
+			if (slot < 0) {
+				return false;
+			}
+			channel.write(ByteBuffer.wrap(digest), HEADER_SIZE + slot * SLOT_SIZE);
+			// only a count this instance has seen entirely lets the filter answer alone
+			if (knownCount == count) {
+				knownCount = count + 1;
+			}
+			writeLong(16, count + 1);
+			return true;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Returns the number of keys in the set.
+	 */
+	public synchronized long size() throws IOException {
+		return readLong(16);
+	}
+
+	public synchronized void close() throws IOException {
+		raf.close();
+	}
+
+	@Override
+	public String toString() {
+		return "upload registry " + file;
+	}
+
+	/**
+	 * Looks for a key by linear probing.
+	 *
+	 * @return the empty slot the key belongs in, or -1 if the key is there
+	 */
+	private long find(final byte[] digest, final long slots) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+		long slot = ByteBuffer.wrap(digest).getLong(16) & (slots - 1);
+		while (true) {
+			buffer.clear();
+			readFully(buffer, HEADER_SIZE + slot * SLOT_SIZE);
+			if (isEmpty(buffer.array())) {
+				return slot;
+			}
+			if (Arrays.equals(buffer.array(), digest)) {
+				return -1;
+			}
+			slot = (slot + 1) & (slots - 1);
+		}
+	}
+
+	/**
+	 * Takes a lock on the table, first completing a growth which a process
+	 * died in.
+	 */
+	private FileLock lock(final boolean shared) throws IOException {
+		FileLock lock = channel.lock(0, Long.MAX_VALUE, shared);
+		// only written under the exclusive lock, so whoever wrote it is gone
+		if (!growFile.exists()) {
+			return lock;
+		}
+		if (shared) {
+			lock.release();
+			lock = channel.lock();
+		}
+		try {
+			recover();
+		} catch (IOException e) {
+			lock.release();
+			throw e;
+		}
+		if (shared) {
+			lock.release();
+			lock = channel.lock(0, Long.MAX_VALUE, true);
+		}
+		return lock;
+	}
+
+	/**
+	 * Rehashes the table into the given number of slots.  Called with the
+	 * exclusive lock held.
+	 *
+	 * @return the new number of slots
+	 */
+	private long grow(final long slots) throws IOException {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		scan(keys);
+
+		RandomAccessFile grown = new RandomAccessFile(growFile, "rw");
+		try {
+			FileChannel output = grown.getChannel();
+			output.truncate(0);
+			grown.setLength(HEADER_SIZE + slots * SLOT_SIZE);
+			// the new table is empty, so probing needs no reads
+			BitSet used = new BitSet((int) slots);
+			for (byte[] key : keys) {
+				int slot = (int) (ByteBuffer.wrap(key).getLong(16) & (slots - 1));
+				while (used.get(slot)) {
+					slot = (int) ((slot + 1) & (slots - 1));
+				}
+				used.set(slot);
+				output.write(ByteBuffer.wrap(key), HEADER_SIZE + (long) slot * SLOT_SIZE);
+			}
+			// the header last, it marks the grown table complete
+			output.write(header(slots, keys.size()), 0);
+			output.force(true);
+		} finally {
+			grown.close();
+		}
+
+		copyGrownTable();
+		Logger.getInstance().log("Upload registry " + file + " grown to " + slots + " slots.");
+		return slots;
+	}
+
+	/**
+	 * Completes or discards the growth of a process which died.  Called with
+	 * the exclusive lock held.
+	 */
+	private void recover() throws IOException {
+		boolean complete = false;
+		RandomAccessFile grown = new RandomAccessFile(growFile, "r");
+		try {
+			if (grown.length() >= HEADER_SIZE) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				grown.getChannel().read(header, 0);
+				complete = header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+						&& grown.length() == HEADER_SIZE + header.getLong(8) * SLOT_SIZE;
+			}
+		} finally {
+			grown.close();
+		}
+
+		if (complete) {
+			Logger.getInstance().log("Completing the growth of upload registry " + file + ".");
+			copyGrownTable();
+		} else if (!growFile.delete()) {
+			throw new IOException("Cannot delete " + growFile);
+		}
+	}
+
+	/**
+	 * Copies the complete grown table over the table and deletes it.
+	 */
+	private void copyGrownTable() throws IOException {
+		FileChannel grown = new FileInputStream(growFile).getChannel();
+		try {
+			long size = grown.size();
+			raf.setLength(size);
+			long position = 0;
+			while (position < size) {
+				position += channel.transferFrom(grown, position, size - position);
+			}
+			channel.force(true);
+		} finally {
+			grown.close();
+		}
+		if (!growFile.delete()) {
+			throw new IOException("Cannot delete " + growFile);
+		}
+	}
+
+	private void loadBloom() throws IOException {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		long count = scan(keys);
+		for (byte[] key : keys) {
+			addToBloom(key);
+		}
+		knownCount = count;
+	}
+
+	/**
+	 * Reads all keys in the table.
+	 *
+	 * @return the number of keys recorded in the header
+	 */
+	private long scan(final List<byte[]> keys) throws IOException {
+		long slots = readLong(8);
+		long end = HEADER_SIZE + slots * SLOT_SIZE;
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER);
+		for (long position = HEADER_SIZE; position < end; position += SCAN_BUFFER) {
+			buffer.clear();
+			buffer.limit((int) Math.min(SCAN_BUFFER, end - position));
+			readFully(buffer, position);
+			buffer.flip();
+			while (buffer.remaining() >= SLOT_SIZE) {
+				byte[] key = new byte[SLOT_SIZE];
+				buffer.get(key);
+				if (!isEmpty(key)) {
+					keys.add(key);
+				}
+			}
+		}
+		return readLong(16);
+	}
+
+	private boolean mightContain(final byte[] digest) {
+		ByteBuffer hashes = ByteBuffer.wrap(digest);
+		long h1 = hashes.getLong(0);
+		long h2 = hashes.getLong(8);
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			if (!bloom.get(bloomIndex(h1, h2, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void addToBloom(final byte[] digest) {
+		ByteBuffer hashes = ByteBuffer.wrap(digest);
+		long h1 = hashes.getLong(0);
+		long h2 = hashes.getLong(8);
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			bloom.set(bloomIndex(h1, h2, i));
+		}
+	}
+
+	private int bloomIndex(final long h1, final long h2, final int i) {
+		return (int) (((h1 + i * h2) & Long.MAX_VALUE) % bloomBits);
+	}
+
+	private static boolean isEmpty(final byte[] slot) {
+		for (byte b : slot) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] digest(final String key) throws IOException {
+		MessageDigest digest = AttachmentStore.newDigest();
+		return digest.digest(key.getBytes("UTF-8"));
+	}
+
+	private void writeHeader(final long slots, final long count) throws IOException {
+		channel.write(header(slots, count), 0);
+	}
+
+	private static ByteBuffer header(final long slots, final long count) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(slots).putLong(count);
+		header.clear();
+		return header;
+	}
+
+	private int readInt(final long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		readFully(buffer, position);
+		return buffer.getInt(0);
+	}
+
+	private long readLong(final long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		readFully(buffer, position);
+		return buffer.getLong(0);
+	}
+
+	private void writeLong(final long position, final long value) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(0, value);
+		channel.write(buffer, position);
+	}
+
+	private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+		long offset = position;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, offset);
+			if (read < 0) {
+				throw new IOException(file + " ends before " + offset);
+			}
+			offset += read;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package org.gitub.pm2media;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.client.CredentialsProvider;
+
+import com.gargoylesoftware.htmlunit.DefaultCredentialsProvider;
+import com.gargoylesoftware.htmlunit.StringWebResponse;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebClientOptions;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * Singleton pool of HtmlUnit WebClients shared by the PmWiki and MediaWiki
+ * classes, so that clients are not built again for every wiki object.
+ *
+ * If htmlunit.leanProfile is set, clients are created without JavaScript,
+ * CSS, applets and popups, and requests to hosts other than the wikis are
+ * not sent.  The forms pm2media drives work without any of these.
+ *
+ * @author smootp
+ *
+ */
+public final class WebClientPool {
+	/** Singleton instance of the pool. */
+	private static final WebClientPool INSTANCE = new WebClientPool();
+
+	/** Clients not in use. */
+	private final BlockingQueue<WebClient> idleClients;
+
+	/** Hosts lean clients may talk to. */
+	private final Set<String> allowedHosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final boolean leanProfile;
+
+	private WebClientPool() {
+		idleClients = new ArrayBlockingQueue<WebClient>(Math.max(1, Pm2MediaPrefs.getIntProperty(Pm2MediaPrefs.HTMLUNIT_POOL_SIZE, 8)));
+		leanProfile = Pm2MediaPrefs.getBoolProperty(Pm2MediaPrefs.HTMLUNIT_LEAN_PROFILE);
+	}
+
+	/**
+	 * Return singleton instance of the pool.
+	 * @return The WebClientPool singleton.
+	 */
+	public static WebClientPool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Allows lean clients to send requests to the host of a wiki.
+	 *
+	 * @param wikiURL
+	 *            URL of the wiki
+	 */
+	public void allowHost(final String wikiURL) {
+		try {
+			allowedHosts.add(new URL(wikiURL).getHost().toLowerCase(Locale.ENGLISH));
+		} catch (MalformedURLException e) {
+			Logger.getInstance().logError("Malformed wiki URL " + wikiURL);
+		}
+	}
+
+	/**
+	 * Returns an idle client, or a new one if none is idle.
+	 */
+	public WebClient borrow() {
+		WebClient webClient = idleClients.poll();
+		return webClient != null ? webClient : createClient();
+	}
+
+	/**
+	 * Returns a client to the pool.  Its windows, cookies and credentials are
+	 * cleared so that the next user starts with a fresh session.
+	 */
+	public void release(final WebClient webClient) {
+		webClient.closeAllWindows();
+		webClient.getCookieManager().clearCookies();
+		webClient.setCredentialsProvider(new DefaultCredentialsProvider());
+
+		// if the pool is full, the client is simply dropped
+		idleClients.offer(webClient);
+	}
+
+	/**
+	 * Replaces a client which has been in use for a long time by a new one,
+	 * carrying over the session cookies and credentials.  The old client is
+	 * closed and not returned to the pool.
+	 *
+	 * @return the new client
+	 */
+	public WebClient recycle(final WebClient webClient) {
+		CredentialsProvider credentials = webClient.getCredentialsProvider();
+		Set<Cookie> cookies = webClient.getCookieManager().getCookies();
+		webClient.closeAllWindows();
+
+		WebClient newClient = createClient();
+		newClient.setCredentialsProvider(credentials);
+		for (Cookie cookie : cookies) {
+			newClient.getCookieManager().addCookie(cookie);
+		}
+		return newClient;
+	}
+
+	private WebClient createClient() {
+		WebClient webClient = new WebClient();
+		if (!leanProfile) {
+			return webClient;
+		}
+
+		WebClientOptions options = webClient.getOptions();
+		options.setJavaScriptEnabled(false);
+		options.setCssEnabled(false);
+		options.setAppletEnabled(false);
+		options.setPopupBlockerEnabled(true);
+		options.setThrowExceptionOnScriptError(false);
+		options.setPrintContentOnFailingStatusCode(false);
+
+		// without JavaScript images are not loaded, this keeps out frames and
+		// other resources from third party hosts
+		new WebConnectionWrapper(webClient) {
+			@Override
+			public WebResponse getResponse(final WebRequest request) throws IOException {
+				String host = request.getUrl().getHost().toLowerCase(Locale.ENGLISH);
+				if (!allowedHosts.isEmpty() && !allowedHosts.contains(host)) {
+					return new StringWebResponse("", request.getUrl());
+				}
+				return super.getResponse(request);
+			}
+		};
+
+		return webClient;
+	}
+}
@@ -0,0 +1,167 @@
+package org.gitub.pm2media;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches PmWiki's wiki.d and uploads directories and reports changed files
+ * once they have been quiet for the debounce interval, so that a burst of
+ * saves results in a single notification.
+ *
+ * Only the files changed within the debounce interval are remembered, so
+ * memory use does not grow with the time the watcher runs.
+ *
+ * @author smootp
+ *
+ */
+public class WikiDirectoryWatcher {
+	/**
+	 * Receives the changed files.  Called on the thread running watch().
+	 */
+	public interface Listener {
+		void pageChanged(File pageFile);
+
+		void uploadChanged(File uploadedFile);
+	}
+
+	private final Path wikiDirectory;
+	private final Path uploadsDirectory;
+	private final Listener listener;
+
+	private long debounceMillis = 2000;
+	public WikiDirectoryWatcher withDebounceMillis(final long debounceMillis) {
+		this.debounceMillis = debounceMillis;
+		return this;
+	}
+
+	/** Changed files waiting for the debounce interval, with the time of their last event. */
+	private final Map<Path, Long> pending = new LinkedHashMap<Path, Long>();
+
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param wikiDirectory
+	 *            PmWiki's wiki.d directory
+	 * @param uploadsDirectory
+	 *            PmWiki's uploads directory, or null to ignore attachments
+	 */
+	public WikiDirectoryWatcher(final File wikiDirectory, final File uploadsDirectory, final Listener listener) {
+		this.wikiDirectory = wikiDirectory.toPath().toAbsolutePath();
+		this.uploadsDirectory = uploadsDirectory == null ? null : uploadsDirectory.toPath().toAbsolutePath();
+		this.listener = listener;
+	}
+
+	/**
+	 * Watches the directories until stop() is called or the thread is
+	 * interrupted.
+	 */
+	public void watch() throws IOException {
+		WatchService watchService = FileSystems.getDefault().newWatchService();
+		try {
+			wikiDirectory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+			if (uploadsDirectory != null) {
+				registerTree(watchService, uploadsDirectory);
+			}
+			Logger.getInstance().log("Watching " + wikiDirectory + (uploadsDirectory == null ? "" : " and " + uploadsDirectory) + ".");
+
+			while (!stopped) {
+				WatchKey key = watchService.poll(Math.max(100, debounceMillis / 4), TimeUnit.MILLISECONDS);
+				if (key != null) {
+					collectEvents(watchService, key);
+				}
+				dispatchQuietFiles();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			watchService.close();
+		}
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	private void collectEvents(final WatchService watchService, final WatchKey key) throws IOException {
+		Path directory = (Path) key.watchable();
+		long now = System.currentTimeMillis();
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				Logger.getInstance().logError("Too many changes in " + directory + ", some edits may have been missed.");
+				continue;
+			}
+
+			Path changed = directory.resolve((Path) event.context());
+			if (Files.isDirectory(changed)) {
+				// new group or page directory in uploads
+				if (event.kind() == ENTRY_CREATE && !directory.equals(wikiDirectory)) {
+					registerTree(watchService, changed);
+				}
+				continue;
+			}
+
+			// re-insert to keep the map ordered by last event
+			pending.remove(changed);
+			pending.put(changed, now);
+		}
+		key.reset();
+	}
+
+	private void dispatchQuietFiles() {
+		long quietSince = System.currentTimeMillis() - debounceMillis;
+		List<Path> quietFiles = new ArrayList<Path>();
+
+		Iterator<Map.Entry<Path, Long>> entries = pending.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Path, Long> entry = entries.next();
+			if (entry.getValue() > quietSince) {
+				break;
+			}
+			quietFiles.add(entry.getKey());
+			entries.remove();
+		}
+
+		for (Path file : quietFiles) {
+			try {
+				if (file.getParent().equals(wikiDirectory)) {
+					listener.pageChanged(file.toFile());
+				} else {
+					listener.uploadChanged(file.toFile());
+				}
+			} catch (Exception e) {
+				Logger.getInstance().logError("Failed to process " + file + ": " + e.getLocalizedMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void registerTree(final WatchService watchService, final Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+				dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
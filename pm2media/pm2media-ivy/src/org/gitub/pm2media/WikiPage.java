@@ -2,7 +2,6 @@ package org.gitub.pm2media;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
 
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.html.HtmlCheckBoxInput;
@@ -42,7 +41,7 @@ public class WikiPage {
 	public void setCheckboxInputValue(String inputControlName, boolean newValue) throws IOException  {
 		final HtmlCheckBoxInput control = form.getInputByName(inputControlName);
 		
-		control.click();
+		control.setChecked(newValue);
 	}
 
 	public void setTextAreaValue(String textAreaName, String text)  {
@@ -50,15 +49,20 @@ public class WikiPage {
 		textArea.setText(text);
 	}
 
-	public void setFileInputValue(String fileInputName, File inputFile) throws MalformedURLException, IOException  {
+	/**
+	 * Chooses the file of a file input.  The content type is passed in, the
+	 * probed one or a guess, rather than found out by opening the file.
+	 */
+	public void setFileInputValue(String fileInputName, File inputFile, String contentType) {
 		HtmlFileInput fileInputElement = form.getInputByName(fileInputName);
 		fileInputElement.setValueAttribute(inputFile.getAbsolutePath());
-		fileInputElement.setContentType(inputFile.toURI().toURL().openConnection().getContentType());
+		fileInputElement.setContentType(contentType);
 	}
 
 	public void setTextInputValue(String inputControlName, String newValue) throws IOException  {
 		final HtmlInput control = form.getInputByName(inputControlName);
-		control.type(newValue);
+		// set the value directly, type() simulates a keystroke per character
+		control.setValueAttribute(newValue);
 	}
 
 	public HtmlPage clickSubmit(String submitControlName) throws IOException  {
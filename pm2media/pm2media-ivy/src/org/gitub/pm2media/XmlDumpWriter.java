@@ -0,0 +1,244 @@
+package org.gitub.pm2media;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Writes articles in the MediaWiki export format, to be loaded with
+ * importDump.php or Special:Import.
+ *
+ * Every page is written out as soon as it arrives, so memory use does not
+ * grow with the size of the wiki.  The dump can be gzip compressed and split
+ * into files of about maxFileSize bytes each: pm2media-dump-0001.xml,
+ * pm2media-dump-0002.xml and so on.
+ *
+ * @author smootp
+ *
+ */
+public class XmlDumpWriter implements ArticleDump {
+	private static final String EXPORT_NAMESPACE = "http://www.mediawiki.org/xml/export-0.10/";
+	private static final String EXPORT_VERSION = "0.10";
+
+	/** File name of the dump, numbered if the dump is split. */
+	private final File file;
+
+	/** Bytes after which a new file is started, 0 to write a single file. */
+	private long maxFileSize = 0;
+	public XmlDumpWriter withMaxFileSize(final long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+		return this;
+	}
+
+	private boolean gzip = false;
+	public XmlDumpWriter withGzip(final boolean gzip) {
+		this.gzip = gzip;
+		return this;
+	}
+
+	/** Name of the user the revisions are attributed to. */
+	private String contributor = "Pm2Media";
+	public XmlDumpWriter withContributor(final String contributor) {
+		this.contributor = contributor;
+		return this;
+	}
+
+	private final String timestamp;
+
+	private int fileCount = 0;
+	private CountingOutputStream counter;
+	private OutputStream output;
+	private XMLStreamWriter xml;
+
+	public XmlDumpWriter(final File file) {
+		this.file = file;
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		timestamp = format.format(new Date());
+	}
+
+	/**
+	 * Returns the files written so far.
+	 */
+	public File[] getFiles() {
+		File[] files = new File[fileCount];
+		for (int i = 0; i < fileCount; i++) {
+			files[i] = getFile(i + 1);
+		}
+		return files;
+	}
+
+	@Override
+	public void write(final Article article) throws IOException {
+		if (xml == null) {
+			open();
+		}
+
+		String text = stripInvalidCharacters(article.getBody());
+		try {
+			xml.writeCharacters("\n  ");
+			xml.writeStartElement("page");
+			writeElement("title", article.getPathInWiki("/"), 4);
+			writeElement("ns", "0", 4);
+			xml.writeCharacters("\n    ");
+			xml.writeStartElement("revision");
+			writeElement("timestamp", timestamp, 6);
+			xml.writeCharacters("\n      ");
+			xml.writeStartElement("contributor");
+			writeElement("username", contributor, 8);
+			xml.writeCharacters("\n      ");
+			xml.writeEndElement();
+			writeElement("comment", Pm2Media.CHANGE_SUMMARY, 6);
+			writeElement("model", "wikitext", 6);
+			writeElement("format", "text/x-wiki", 6);
+			xml.writeCharacters("\n      ");
+			xml.writeStartElement("text");
+			xml.writeAttribute("xml:space", "preserve");
+			xml.writeAttribute("bytes", Integer.toString(text.getBytes("UTF-8").length));
+			xml.writeCharacters(text);
+			xml.writeEndElement();
+			writeElement("sha1", sha1Base36(text), 6);
+			xml.writeCharacters("\n    ");
+			xml.writeEndElement();
+			xml.writeCharacters("\n  ");
+			xml.writeEndElement();
+			xml.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not write " + article.getPathInWiki("/") + " to dump", e);
+		}
+
+		if (maxFileSize > 0 && counter.getByteCount() >= maxFileSize) {
+			finish();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (xml == null && fileCount == 0) {
+			// an empty dump is still a valid dump
+			open();
+		}
+		finish();
+	}
+
+	private void open() throws IOException {
+		fileCount++;
+		File nextFile = getFile(fileCount);
+		Logger.getInstance().log("Writing dump " + nextFile + ".");
+
+		counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(nextFile)));
+		output = gzip ? new GZIPOutputStream(counter, 65536) : counter;
+		try {
+			xml = XMLOutputFactory.newInstance().createXMLStreamWriter(output, "UTF-8");
+			xml.writeStartDocument("UTF-8", "1.0");
+			xml.writeCharacters("\n");
+			xml.writeStartElement("mediawiki");
+			xml.writeDefaultNamespace(EXPORT_NAMESPACE);
+			xml.writeAttribute("version", EXPORT_VERSION);
+			xml.writeAttribute("xml:lang", "en");
+		} catch (XMLStreamException e) {
+			output.close();
+			throw new IOException("Could not start dump " + nextFile, e);
+		}
+	}
+
+	private void finish() throws IOException {
+		if (xml == null) {
+			return;
+		}
+		try {
+			xml.writeCharacters("\n");
+			xml.writeEndElement();
+			xml.writeCharacters("\n");
+			xml.writeEndDocument();
+			xml.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not complete dump " + getFile(fileCount), e);
+		} finally {
+			xml = null;
+			// XMLStreamWriter.close() leaves the stream open
+			output.close();
+		}
+	}
+
+	private void writeElement(final String name, final String value, final int indent) throws XMLStreamException {
+		xml.writeCharacters("\n");
+		for (int i = 0; i < indent; i++) {
+			xml.writeCharacters(" ");
+		}
+		xml.writeStartElement(name);
+		xml.writeCharacters(value);
+		xml.writeEndElement();
+	}
+
+	private File getFile(final int number) {
+		String name = file.getName();
+		if (maxFileSize > 0) {
+			int dot = name.lastIndexOf('.');
+			String numbered = String.format("-%04d", number);
+			name = dot == -1 ? name + numbered : name.substring(0, dot) + numbered + name.substring(dot);
+		}
+		if (gzip) {
+			name += ".gz";
+		}
+		return new File(file.getAbsoluteFile().getParentFile(), name);
+	}
+
+	/**
+	 * Removes characters XML 1.0 does not allow, such as form feeds left in
+	 * old PmWiki pages.  The writer would pass them through unescaped and
+	 * importDump.php would reject the file.
+	 */
+	static String stripInvalidCharacters(final String text) {
+		StringBuilder valid = null;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			boolean invalid = (c < 0x20 && c != '\t' && c != '\n' && c != '\r') || c == 0xFFFE || c == 0xFFFF;
+			if (invalid && valid == null) {
+				valid = new StringBuilder(text.length());
+				valid.append(text, 0, i);
+			} else if (!invalid && valid != null) {
+				valid.append(c);
+			}
+		}
+		return valid == null ? text : valid.toString();
+	}
+
+	/**
+	 * Returns the SHA-1 of the text the way MediaWiki stores it: base 36,
+	 * padded to 31 digits.
+	 */
+	static String sha1Base36(final String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+			String base36 = new BigInteger(1, digest).toString(36);
+			StringBuilder padded = new StringBuilder(31);
+			for (int i = base36.length(); i < 31; i++) {
+				padded.append('0');
+			}
+			return padded.append(base36).toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -2,6 +2,9 @@ package org.github.pm2media;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -117,6 +120,36 @@ public class ArticleCacheTest {
 		assertTrue(ac.getCachedArticle(articleName).equals(articleBody));
 	}
 	
+	@Test
+	public void testEntriesAreSpreadOverDirectories() {
+		File cacheFile = ac.getCacheFile("Main/HomePage");
+		String hash = cacheFile.getName();
+
+		assertEquals(64, hash.length());
+		assertEquals(hash.substring(2, 4), cacheFile.getParentFile().getName());
+		assertEquals(hash.substring(0, 2), cacheFile.getParentFile().getParentFile().getName());
+	}
+
+	@Test
+	public void testNotCachedIsNull() {
+		assertNull(ac.getCachedArticle("Main/Missing"));
+	}
+
+	@Test
+	public void testTruncatedEntryIsDropped() throws Exception {
+		final String articleName = "Main/HomePage";
+		ac.cacheArticle(articleName, "Test article body with some length.");
+		RandomAccessFile entry = new RandomAccessFile(ac.getCacheFile(articleName), "rw");
+		entry.setLength(entry.length() - 7);
+		entry.close();
+
+		assertNull(ac.getCachedArticle(articleName));
+		assertFalse(ac.isArticleCached(articleName));
+
+		ac.cacheArticle(articleName, "Fetched again.");
+		assertEquals("Fetched again.", ac.getCachedArticle(articleName));
+	}
+
 	@Test
 	public void testMultipleArticles() {
 		String articleName = "test article %d";
@@ -0,0 +1,213 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.client.HttpResponseException;
+import org.gitub.pm2media.AttachmentDownloader;
+import org.gitub.pm2media.AttachmentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests resuming and checking attachment downloads against a local server
+ * which supports Range requests and can break connections.
+ *
+ * @author smootp
+ *
+ */
+public class AttachmentDownloaderTest {
+
+	HttpServer server;
+	File directory;
+	AttachmentStore store;
+	AttachmentDownloader downloader;
+
+	byte[] content = new byte[300 * 1024];
+	volatile String etag = "\"v1\"";
+	volatile String digest;
+
+	/** Bytes to send before breaking the connection, 0 to send everything. */
+	volatile int cutAfter = 0;
+
+	/** Range header of each request, "" for none. */
+	final List<String> ranges = new CopyOnWriteArrayList<String>();
+
+	@Before
+	public void setUp() throws Exception {
+		new Random(42).nextBytes(content);
+		directory = File.createTempFile("attachment-store", "");
+		directory.delete();
+		store = new AttachmentStore(directory);
+		downloader = new AttachmentDownloader(store).withRetryDelayMillis(0);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/uploads/", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				try {
+					answer(exchange);
+				} catch (IOException e) {
+					// connection broken on purpose
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		downloader.close();
+		store.close();
+		server.stop(0);
+		FileUtils.deleteQuietly(directory);
+	}
+
+	private String getURL(final String name) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/uploads/" + name;
+	}
+
+	private void answer(final HttpExchange exchange) throws IOException {
+		if (exchange.getRequestURI().getPath().endsWith("missing.png")) {
+			ranges.add("");
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+		ranges.add(range == null ? "" : range);
+
+		int start = 0;
+		if (range != null && etag.equals(ifRange)) {
+			start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+		}
+		exchange.getResponseHeaders().add("ETag", etag);
+		if (digest != null) {
+			exchange.getResponseHeaders().add("Digest", "SHA-256=" + digest);
+		}
+		exchange.sendResponseHeaders(start > 0 ? 206 : 200, content.length - start);
+
+		int end = content.length;
+		if (cutAfter > 0) {
+			end = Math.min(end, start + cutAfter);
+			cutAfter = 0;
+		}
+		OutputStream body = exchange.getResponseBody();
+		body.write(content, start, end - start);
+		body.flush();
+		if (end < content.length) {
+			throw new IOException("connection broken");
+		}
+		body.close();
+	}
+
+	@Test
+	public void testInterruptedDownloadIsResumed() throws Exception {
+		cutAfter = 100 * 1024;
+		File file = downloader.download(getURL("drawing.dwg"));
+
+		assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(file)));
+		assertEquals(2, ranges.size());
+		assertEquals("", ranges.get(0));
+		assertTrue(ranges.get(1).startsWith("bytes="));
+		assertEquals(0, new File(directory, "tmp").list().length);
+	}
+
+	@Test
+	public void testPartOfEarlierRunIsContinued() throws Exception {
+		File partFile = store.getPartialFile(getURL("drawing.dwg"));
+		FileUtils.writeByteArrayToFile(partFile, Arrays.copyOf(content, 5000));
+		FileUtils.writeStringToFile(new File(partFile.getPath() + ".validator"), etag, "UTF-8");
+
+		File file = downloader.download(getURL("drawing.dwg"));
+
+		assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(file)));
+		assertEquals(Arrays.asList("bytes=5000-"), ranges);
+	}
+
+	@Test
+	public void testChangedFileIsFetchedWhole() throws Exception {
+		File partFile = store.getPartialFile(getURL("drawing.dwg"));
+		FileUtils.writeByteArrayToFile(partFile, new byte[5000]);
+		FileUtils.writeStringToFile(new File(partFile.getPath() + ".validator"), "\"v0\"", "UTF-8");
+
+		File file = downloader.download(getURL("drawing.dwg"));
+
+		assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(file)));
+		assertEquals(1, ranges.size());
+	}
+
+	@Test
+	public void testPartWithOtherETagThanAnnouncedIsNotResumed() throws Exception {
+		File partFile = store.getPartialFile(getURL("drawing.dwg"));
+		FileUtils.writeByteArrayToFile(partFile, new byte[5000]);
+		FileUtils.writeStringToFile(new File(partFile.getPath() + ".validator"), "\"v0\"", "UTF-8");
+
+		File file = downloader.download(getURL("drawing.dwg"), etag);
+
+		assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(file)));
+		assertEquals(Arrays.asList(""), ranges);
+	}
+
+	@Test
+	public void testPartWithAnnouncedETagIsResumed() throws Exception {
+		File partFile = store.getPartialFile(getURL("drawing.dwg"));
+		FileUtils.writeByteArrayToFile(partFile, Arrays.copyOf(content, 5000));
+		FileUtils.writeStringToFile(new File(partFile.getPath() + ".validator"), etag, "UTF-8");
+
+		File file = downloader.download(getURL("drawing.dwg"), etag);
+
+		assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(file)));
+		assertEquals(Arrays.asList("bytes=5000-"), ranges);
+	}
+
+	@Test
+	public void testStoredFileIsNotDownloadedAgain() throws Exception {
+		downloader.download(getURL("drawing.dwg"));
+		downloader.download(getURL("drawing.dwg"));
+		assertEquals(1, ranges.size());
+	}
+
+	@Test
+	public void testDigestMismatchIsRejected() throws Exception {
+		digest = Base64.encodeBase64String(new byte[32]);
+		downloader.withMaxAttempts(2);
+		try {
+			downloader.download(getURL("drawing.dwg"));
+			fail("digest mismatch expected");
+		} catch (IOException e) {
+			assertNull(store.getFile(getURL("drawing.dwg")));
+		}
+		assertEquals(2, ranges.size());
+	}
+
+	@Test
+	public void testMissingFileIsNotRetried() throws Exception {
+		try {
+			downloader.download(getURL("missing.png"));
+			fail("404 expected");
+		} catch (HttpResponseException e) {
+			assertEquals(404, e.getStatusCode());
+		}
+		assertEquals(1, ranges.size());
+	}
+}
@@ -0,0 +1,171 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gitub.pm2media.Attachment;
+import org.gitub.pm2media.AttachmentPool;
+import org.gitub.pm2media.PmWiki;
+import org.gitub.pm2media.WikiParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the attachment pool takes each URL once and reports every
+ * article when its attachments are through, and whether they all were.
+ *
+ * @author smootp
+ *
+ */
+public class AttachmentPoolTest {
+
+	final List<String> transferred = new CopyOnWriteArrayList<String>();
+
+	/** URLs whose transfer fails. */
+	final Set<String> failing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** Held by transfer() until released. */
+	volatile CountDownLatch gate = new CountDownLatch(0);
+
+	AttachmentPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		WikiParams pmWikiParams = new WikiParams().withURL("http://pmwiki.example.com/pmwiki.php").withUsername("reader")
+				.withPassword("secret");
+		pool = new AttachmentPool(pmWikiParams, null) {
+			@Override
+			protected boolean transfer(final Attachment attachment, final PmWiki pmWiki) {
+				try {
+					gate.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				transferred.add(attachment.getFileURL());
+				return !failing.contains(attachment.getFileURL());
+			}
+		}.withThreads(2);
+		pool.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.close();
+	}
+
+	private static Attachment attachment(final String name) {
+		return new Attachment("attachments/" + name, "http://pmwiki.example.com/uploads/Main/" + name);
+	}
+
+	@Test
+	public void testEachURLIsTransferredOnce() throws Exception {
+		final AtomicInteger articlesDone = new AtomicInteger();
+		AttachmentPool.Listener whenDone = new AttachmentPool.Listener() {
+			@Override
+			public void attachmentsDone(final boolean transferred) {
+				if (transferred) {
+					articlesDone.incrementAndGet();
+				}
+			}
+		};
+
+		pool.submit(Arrays.asList(attachment("logo.png"), attachment("a.pdf")), whenDone);
+		pool.submit(Arrays.asList(attachment("logo.png"), attachment("b.pdf")), whenDone);
+		pool.submit(Arrays.asList(attachment("logo.png")), whenDone);
+		pool.finish();
+
+		assertEquals(3, transferred.size());
+		assertEquals(1, Collections.frequency(transferred, "http://pmwiki.example.com/uploads/Main/logo.png"));
+		assertEquals(3, articlesDone.get());
+		assertEquals(0, pool.getPending());
+	}
+
+	@Test
+	public void testArticleIsReportedAfterItsAttachments() throws Exception {
+		gate = new CountDownLatch(1);
+		final CountDownLatch articleDone = new CountDownLatch(1);
+
+		// returns at once, the posting thread does not wait for the transfer
+		pool.submit(Arrays.asList(attachment("drawing.dwg"), attachment("photo.jpg")), new AttachmentPool.Listener() {
+			@Override
+			public void attachmentsDone(final boolean transferred) {
+				articleDone.countDown();
+			}
+		});
+		assertEquals(2, pool.getPending());
+		assertFalse(articleDone.await(200, TimeUnit.MILLISECONDS));
+
+		gate.countDown();
+		assertTrue(articleDone.await(10, TimeUnit.SECONDS));
+		pool.finish();
+		assertEquals(2, transferred.size());
+	}
+
+	@Test
+	public void testArticleWaitsForTransferQueuedByAnother() throws Exception {
+		gate = new CountDownLatch(1);
+		failing.add("http://pmwiki.example.com/uploads/Main/logo.png");
+		final AtomicBoolean firstTransferred = new AtomicBoolean(true);
+		final AtomicBoolean secondTransferred = new AtomicBoolean(true);
+		final CountDownLatch articlesDone = new CountDownLatch(2);
+
+		pool.submit(Arrays.asList(attachment("logo.png")), new AttachmentPool.Listener() {
+			@Override
+			public void attachmentsDone(final boolean transferred) {
+				firstTransferred.set(transferred);
+				articlesDone.countDown();
+			}
+		});
+		// the logo is under way, the second article waits for it too
+		pool.submit(Arrays.asList(attachment("logo.png"), attachment("b.pdf")), new AttachmentPool.Listener() {
+			@Override
+			public void attachmentsDone(final boolean transferred) {
+				secondTransferred.set(transferred);
+				articlesDone.countDown();
+			}
+		});
+		assertFalse(articlesDone.await(200, TimeUnit.MILLISECONDS));
+
+		gate.countDown();
+		assertTrue(articlesDone.await(10, TimeUnit.SECONDS));
+		assertFalse(firstTransferred.get());
+		assertFalse(secondTransferred.get());
+		assertEquals(1, Collections.frequency(transferred, "http://pmwiki.example.com/uploads/Main/logo.png"));
+	}
+
+	@Test
+	public void testFailedURLIsQueuedAgain() throws Exception {
+		final List<Boolean> results = new CopyOnWriteArrayList<Boolean>();
+		AttachmentPool.Listener whenDone = new AttachmentPool.Listener() {
+			@Override
+			public void attachmentsDone(final boolean transferred) {
+				results.add(transferred);
+			}
+		};
+		failing.add("http://pmwiki.example.com/uploads/Main/photo.jpg");
+		pool.submit(Arrays.asList(attachment("photo.jpg")), whenDone);
+		pool.finish();
+
+		// the retry of the article
+		failing.clear();
+		pool.submit(Arrays.asList(attachment("photo.jpg")), whenDone);
+		pool.finish();
+		// transferred now, not queued a third time
+		pool.submit(Arrays.asList(attachment("photo.jpg")), whenDone);
+		pool.finish();
+
+		assertEquals(Arrays.asList(false, true, true), results);
+		assertEquals(2, transferred.size());
+	}
+}
@@ -0,0 +1,122 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.gitub.pm2media.Attachment;
+import org.gitub.pm2media.AttachmentProber;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests probing attachments with HEAD requests and the size and type policy.
+ *
+ * @author smootp
+ *
+ */
+public class AttachmentProberTest {
+
+	HttpServer server;
+	AttachmentProber prober;
+
+	/** Method and path of each request. */
+	final List<String> requests = new CopyOnWriteArrayList<String>();
+
+	@Before
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/uploads/", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				try {
+					answer(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		prober = new AttachmentProber(4).withMaxSize(1024 * 1024).withExcludedTypes("text/html, application/x-msdownload");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		prober.close();
+		server.stop(0);
+	}
+
+	private void answer(final HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		requests.add(exchange.getRequestMethod() + " " + path);
+		if (path.endsWith("missing.png")) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		if (path.endsWith(".png")) {
+			exchange.getResponseHeaders().add("Content-Type", "image/png");
+			exchange.getResponseHeaders().add("Content-Length", "2048");
+			exchange.getResponseHeaders().add("ETag", "\"logo-1\"");
+		} else if (path.endsWith(".iso")) {
+			exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+			exchange.getResponseHeaders().add("Content-Length", Long.toString(4L * 1024 * 1024 * 1024));
+		} else {
+			// PmWiki's upload form for a file which is not there
+			exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+		}
+		exchange.sendResponseHeaders(200, -1);
+	}
+
+	private Attachment attachment(final String name) {
+		return new Attachment("attachments/" + name,
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/uploads/Main/" + name);
+	}
+
+	@Test
+	public void testSizeTypeAndETagAreFilledIn() throws Exception {
+		Attachment logo = attachment("logo.png");
+		prober.probe(Arrays.asList(logo));
+
+		assertEquals(2048, logo.getSize());
+		assertEquals("image/png", logo.getContentType());
+		assertEquals("\"logo-1\"", logo.getETag());
+		assertNull(prober.getRejection(logo));
+		assertEquals(Arrays.asList("HEAD /uploads/Main/logo.png"), requests);
+	}
+
+	@Test
+	public void testEachURLIsProbedOnce() throws Exception {
+		prober.probe(Arrays.asList(attachment("logo.png"), attachment("logo.png"), attachment("photo.png")));
+		Attachment again = attachment("logo.png");
+		prober.probe(Arrays.asList(again));
+
+		assertEquals(2048, again.getSize());
+		assertEquals(2, requests.size());
+		assertEquals(2, prober.getProbedCount());
+	}
+
+	@Test
+	public void testPolicyRejectsBeforeDownloading() throws Exception {
+		Attachment missing = attachment("missing.png");
+		Attachment large = attachment("disk.iso");
+		Attachment page = attachment("report.pdf");
+		prober.probe(Arrays.asList(missing, large, page));
+
+		assertNotNull(prober.getRejection(missing));
+		assertNotNull(prober.getRejection(large));
+		assertEquals(4L * 1024 * 1024 * 1024, large.getSize());
+		assertNotNull(prober.getRejection(page));
+		for (String request : requests) {
+			assertTrue(request.startsWith("HEAD "));
+		}
+	}
+}
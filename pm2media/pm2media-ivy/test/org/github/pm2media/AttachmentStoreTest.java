@@ -0,0 +1,103 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.gitub.pm2media.AttachmentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the content-addressed attachment store and its index.
+ *
+ * @author smootp
+ *
+ */
+public class AttachmentStoreTest {
+
+	File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("attachment-store", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Test
+	public void testSameContentIsStoredOnce() throws Exception {
+		AttachmentStore store = new AttachmentStore(directory);
+		File first = store.put("http://pmwiki/uploads/Main.A/logo.png", new ByteArrayInputStream("logo".getBytes("UTF-8")));
+		File second = store.put("http://pmwiki/uploads/Main.B/logo.png", new ByteArrayInputStream("logo".getBytes("UTF-8")));
+		store.close();
+
+		assertEquals(first, second);
+		assertEquals("logo", FileUtils.readFileToString(first, "UTF-8"));
+		String hash = store.getHash("http://pmwiki/uploads/Main.A/logo.png");
+		assertEquals(64, hash.length());
+		assertEquals(new File(new File(new File(directory, hash.substring(0, 2)), hash.substring(2, 4)), hash), first);
+		assertEquals(0, new File(directory, "tmp").list().length);
+	}
+
+	@Test
+	public void testIndexIsKeptBetweenRuns() throws Exception {
+		AttachmentStore store = new AttachmentStore(directory);
+		store.put("http://pmwiki/a.png", new ByteArrayInputStream("a".getBytes("UTF-8")));
+		String hash = store.getHash("http://pmwiki/a.png");
+		store.recordUpload("http://mediawiki/index.php/a.png", hash);
+		store.close();
+
+		AttachmentStore nextRun = new AttachmentStore(directory);
+		assertEquals(hash, nextRun.getHash("http://pmwiki/a.png"));
+		assertNotNull(nextRun.getFile("http://pmwiki/a.png"));
+		assertNull(nextRun.getFile("http://pmwiki/b.png"));
+		assertTrue(nextRun.isUploaded("http://mediawiki/index.php/a.png", hash));
+		assertFalse(nextRun.isUploaded("http://mediawiki/index.php/b.png", hash));
+		nextRun.close();
+	}
+
+	@Test
+	public void testChangedContentReplacesHash() throws Exception {
+		AttachmentStore store = new AttachmentStore(directory);
+		store.put("http://pmwiki/a.png", new ByteArrayInputStream("old".getBytes("UTF-8")));
+		String oldHash = store.getHash("http://pmwiki/a.png");
+		store.put("http://pmwiki/a.png", new ByteArrayInputStream("new".getBytes("UTF-8")));
+		store.close();
+
+		AttachmentStore nextRun = new AttachmentStore(directory);
+		assertFalse(oldHash.equals(nextRun.getHash("http://pmwiki/a.png")));
+		assertEquals("new", FileUtils.readFileToString(nextRun.getFile("http://pmwiki/a.png"), "UTF-8"));
+		nextRun.close();
+	}
+
+	@Test
+	public void testTornIndexLineIsIgnored() throws Exception {
+		AttachmentStore store = new AttachmentStore(directory);
+		store.put("http://pmwiki/a.png", new ByteArrayInputStream("a".getBytes("UTF-8")));
+		store.close();
+
+		OutputStream index = new FileOutputStream(new File(directory, "index.tsv"), true);
+		index.write(("url\thttp://pmwiki/b.png\t7a2e7ee0e5b32b1c2a1f").getBytes("UTF-8"));
+		index.close();
+
+		AttachmentStore nextRun = new AttachmentStore(directory);
+		assertNull(nextRun.getHash("http://pmwiki/b.png"));
+		nextRun.put("http://pmwiki/c.png", new ByteArrayInputStream("c".getBytes("UTF-8")));
+		nextRun.close();
+
+		AttachmentStore third = new AttachmentStore(directory);
+		assertNotNull(third.getHash("http://pmwiki/a.png"));
+		assertNotNull(third.getHash("http://pmwiki/c.png"));
+		third.close();
+	}
+}
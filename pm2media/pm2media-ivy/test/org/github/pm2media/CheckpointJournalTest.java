@@ -0,0 +1,86 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.gitub.pm2media.CheckpointJournal;
+import org.gitub.pm2media.CheckpointJournal.Stage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests replaying the journal of a conversion that died.
+ *
+ * @author smootp
+ *
+ */
+public class CheckpointJournalTest {
+
+	File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("pm2media-journal", ".tsv");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		CheckpointJournal journal = new CheckpointJournal(file).withSyncInterval(2);
+		journal.record("Main/Done", Stage.FETCHED);
+		journal.record("Main/Done", Stage.CONVERTED);
+		journal.record("Main/Done", Stage.ATTACHMENTS_DONE);
+		journal.record("Main/Done", Stage.POSTED);
+		journal.record("Main/Half", Stage.FETCHED);
+		journal.record("Main/Half", Stage.POSTED);
+		// the run dies without closing the journal
+		journal.sync();
+
+		CheckpointJournal resumed = new CheckpointJournal(file);
+		assertTrue(resumed.isComplete("Main/Done"));
+		assertFalse(resumed.isComplete("Main/Half"));
+		assertTrue(resumed.isDone("Main/Half", Stage.POSTED));
+		assertFalse(resumed.isDone("Main/Half", Stage.CONVERTED));
+		assertFalse(resumed.isDone("Main/Other", Stage.FETCHED));
+		assertEquals(1, resumed.getCompleteCount());
+
+		resumed.record("Main/Half", Stage.ATTACHMENTS_DONE);
+		resumed.delete();
+		assertFalse(file.exists());
+		journal.close();
+	}
+
+	@Test
+	public void testTornLineIgnored() throws Exception {
+		FileUtils.writeStringToFile(file, "Main/Page\tPOSTED\nMain/Page\tATTACH\nMain/Pa", "UTF-8");
+
+		CheckpointJournal journal = new CheckpointJournal(file);
+		assertTrue(journal.isDone("Main/Page", Stage.POSTED));
+		assertFalse(journal.isDone("Main/Page", Stage.ATTACHMENTS_DONE));
+		assertFalse(journal.isDone("Main/Pa", Stage.FETCHED));
+		journal.record("Main/Next", Stage.POSTED);
+		journal.close();
+
+		CheckpointJournal resumed = new CheckpointJournal(file);
+		assertTrue(resumed.isDone("Main/Next", Stage.POSTED));
+		resumed.close();
+	}
+
+	@Test
+	public void testStagesRecordedOnce() throws Exception {
+		CheckpointJournal journal = new CheckpointJournal(file);
+		journal.record("Main/Page", Stage.POSTED);
+		journal.record("Main/Page", Stage.POSTED);
+		journal.close();
+
+		assertEquals(1, FileUtils.readLines(file, "UTF-8").size());
+	}
+}
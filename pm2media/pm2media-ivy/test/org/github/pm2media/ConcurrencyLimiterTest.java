@@ -0,0 +1,80 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import org.gitub.pm2media.ConcurrencyLimiter;
+import org.junit.Test;
+
+/**
+ * Tests how ConcurrencyLimiter adapts its limit.
+ *
+ * @author smootp
+ *
+ */
+public class ConcurrencyLimiterTest {
+
+	@Test
+	public void testIncreasesWhileFast() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 8);
+		for (int i = 0; i < 100; i++) {
+			limiter.acquire();
+			limiter.release(100, false);
+		}
+		assertEquals(8, limiter.getLimit());
+	}
+
+	@Test
+	public void testHalvesOnceWhenOverloaded() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8);
+		for (int i = 0; i < 8; i++) {
+			limiter.acquire();
+		}
+		// all eight answers of the overloaded round are errors
+		for (int i = 0; i < 8; i++) {
+			limiter.release(100, true);
+		}
+		assertEquals(4, limiter.getLimit());
+
+		limiter.acquire();
+		limiter.release(100, true);
+		assertEquals(2, limiter.getLimit());
+	}
+
+	@Test
+	public void testDecreasesWhenLatencyRises() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8);
+		for (int i = 0; i < 10; i++) {
+			limiter.acquire();
+			limiter.release(100, false);
+		}
+		for (int i = 0; i < 10; i++) {
+			limiter.acquire();
+			limiter.release(1000, false);
+		}
+		assertTrue(limiter.getLimit() < 8);
+	}
+
+	@Test
+	public void testAcquireWaitsForLimit() throws Exception {
+		final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+		limiter.acquire();
+
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				try {
+					limiter.acquire();
+				} catch (InterruptedException e) {
+					// test ends
+				}
+			}
+		};
+		second.start();
+		second.join(200);
+		assertTrue(second.isAlive());
+
+		limiter.release(10, false);
+		second.join(2000);
+		assertFalse(second.isAlive());
+	}
+}
@@ -0,0 +1,174 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gitub.pm2media.Article;
+import org.gitub.pm2media.ArticleCache;
+import org.gitub.pm2media.Attachment;
+import org.gitub.pm2media.AttachmentPool;
+import org.gitub.pm2media.CheckpointJournal;
+import org.gitub.pm2media.ConversionPipeline;
+import org.gitub.pm2media.MediaWiki;
+import org.gitub.pm2media.MediaWikiApi;
+import org.gitub.pm2media.PmWiki;
+import org.gitub.pm2media.RetryQueue;
+import org.gitub.pm2media.WikiParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the pipeline from a PmWiki stand-in to a MediaWiki stand-in: failed
+ * articles are retried, and finish() returns once all are through.
+ *
+ * @author smootp
+ *
+ */
+public class ConversionPipelineTest {
+
+	PmWikiStandIn pmWiki;
+	MediaWikiStandIn wiki;
+	MediaWikiApi api;
+	File journalFile;
+	File deadLetterFile;
+	CheckpointJournal journal;
+	RetryQueue retryQueue;
+	WikiParams pmWikiParams;
+
+	/** Number of posts still to fail with an Error, which kills the worker. */
+	final AtomicInteger brokenPosts = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		ArticleCache.forName("pmwiki").cleanCache();
+		pmWiki = new PmWikiStandIn();
+		pmWiki.putPage("Main/HomePage", "Welcome to the '''wiki'''.");
+		pmWiki.putPage("Main/Guide", "Read the guide.");
+		pmWikiParams = new WikiParams().withURL(pmWiki.getURL()).withUsername("reader").withPassword("secret");
+
+		wiki = new MediaWikiStandIn();
+		wiki.addUser("Bot", "secret");
+		api = new MediaWikiApi(wiki.getApiURL());
+		api.login("Bot", "secret");
+
+		journalFile = File.createTempFile("pipeline", ".journal");
+		journal = new CheckpointJournal(journalFile);
+		deadLetterFile = File.createTempFile("pipeline", ".dead");
+		deadLetterFile.delete();
+		retryQueue = new RetryQueue(deadLetterFile).withBaseDelayMillis(10).withMaxDelayMillis(50);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		api.close();
+		wiki.stop();
+		pmWiki.stop();
+		journal.delete();
+		deadLetterFile.delete();
+		ArticleCache.forName("pmwiki").cleanCache();
+	}
+
+	/**
+	 * Posts through the api, without the properties of a real MediaWiki, and
+	 * records the post like the PostListener of Pm2Media.
+	 */
+	private MediaWiki newMediaWiki() {
+		return new MediaWiki() {
+			@Override
+			public void postArticle(final Article article) {
+				if (brokenPosts.getAndDecrement() > 0) {
+					throw new Error("post worker broken");
+				}
+				try {
+					api.edit(article.getPathInWiki("/"), article.getBody(), "test");
+					journal.record(article.getPathInWiki("/"), CheckpointJournal.Stage.POSTED);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	private void run() {
+		run(null);
+	}
+
+	private void run(final List<String> transferred) {
+		MediaWiki mediaWiki = newMediaWiki();
+		AttachmentPool attachmentPool = null;
+		if (transferred != null) {
+			attachmentPool = new AttachmentPool(pmWikiParams, mediaWiki) {
+				@Override
+				protected boolean transfer(final Attachment attachment, final PmWiki pmWiki) {
+					transferred.add(attachment.getFileName());
+					return true;
+				}
+			}.withThreads(1);
+			attachmentPool.start();
+		}
+		ConversionPipeline pipeline = new ConversionPipeline(pmWikiParams, mediaWiki, "")
+				.withFetchThreads(2)
+				.withReportSeconds(0)
+				.withJournal(journal)
+				.withRetryQueue(retryQueue)
+				.withAttachmentPool(attachmentPool);
+		pipeline.start();
+		try {
+			pipeline.submit(pmWiki.getURL() + "/Main/HomePage", false);
+			pipeline.submit(pmWiki.getURL() + "/Main/Guide", false);
+			pipeline.finish();
+			assertEquals(0, pipeline.getInFlight());
+		} finally {
+			pipeline.close();
+			if (attachmentPool != null) {
+				attachmentPool.close();
+			}
+			mediaWiki.close();
+		}
+	}
+
+	@Test
+	public void testFailedFetchIsRetried() {
+		pmWiki.failNextEdits("Main/Guide", 1);
+		run();
+
+		assertEquals(2, pmWiki.getEditCount("Main/Guide"));
+		assertEquals("Read the guide.", wiki.getPage("Main/Guide"));
+		assertTrue(journal.isComplete("Main/Guide"));
+		assertTrue(journal.isComplete("Main/HomePage"));
+		assertEquals(0, retryQueue.getDeadLetterCount());
+	}
+
+	@Test
+	public void testErrorInPostStageDoesNotHangTheRun() {
+		brokenPosts.set(1);
+		run();
+
+		assertNotNull(wiki.getPage("Main/Guide"));
+		assertNotNull(wiki.getPage("Main/HomePage"));
+		assertTrue(journal.isComplete("Main/Guide"));
+		assertTrue(journal.isComplete("Main/HomePage"));
+	}
+
+	@Test
+	public void testResumedArticleFromCacheTransfersItsAttachments() throws Exception {
+		// the run which died had posted the guide and cached its body, but not transferred its attachments
+		ArticleCache.forName("pmwiki").cacheArticle("Main/Guide", "See Attach:diagram.png for the steps.");
+		journal.record("Main/Guide", CheckpointJournal.Stage.FETCHED);
+		journal.record("Main/Guide", CheckpointJournal.Stage.POSTED);
+
+		List<String> transferred = new CopyOnWriteArrayList<String>();
+		run(transferred);
+
+		assertEquals(0, pmWiki.getEditCount("Main/Guide"));
+		assertNull(wiki.getPage("Main/Guide"));
+		assertTrue(transferred.contains("attachments/diagram.png"));
+		assertTrue(journal.isComplete("Main/Guide"));
+	}
+}
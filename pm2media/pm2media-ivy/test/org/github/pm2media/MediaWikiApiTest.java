@@ -0,0 +1,337 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.FileBody;
+
+import org.gitub.pm2media.Article;
+import org.gitub.pm2media.MediaWikiApi;
+import org.gitub.pm2media.MediaWikiApiException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the Action API client against a local stand-in for api.php.
+ *
+ * @author smootp
+ *
+ */
+public class MediaWikiApiTest {
+
+	MediaWikiStandIn wiki;
+	File sessionFile;
+
+	@Before
+	public void setUp() throws Exception {
+		wiki = new MediaWikiStandIn();
+		wiki.addUser("Bot", "secret");
+		sessionFile = File.createTempFile("mediawiki-session", ".ser");
+		sessionFile.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		wiki.stop();
+		sessionFile.delete();
+	}
+
+	@Test
+	public void testGetApiURL() {
+		assertEquals("http://example.com/w/api.php", MediaWikiApi.getApiURL("http://example.com/w/index.php"));
+		assertEquals("http://example.com/w/api.php", MediaWikiApi.getApiURL("http://example.com/w/"));
+	}
+
+	@Test
+	public void testLoginAndEdit() throws Exception {
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		api.login("Bot", "secret");
+		assertEquals("Bot", api.getLoggedInUser());
+
+		api.edit("Main/Page", "Some text", "summary");
+		assertEquals("Some text", wiki.getPage("Main/Page"));
+		api.close();
+	}
+
+	@Test(expected = MediaWikiApiException.class)
+	public void testLoginFailure() throws Exception {
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		try {
+			api.login("Bot", "wrong");
+		} finally {
+			api.close();
+		}
+	}
+
+	@Test
+	public void testCsrfTokenIsCached() throws Exception {
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		api.login("Bot", "secret");
+		int tokenRequests = wiki.getRequestCount("tokens");
+
+		for (int i = 0; i < 5; i++) {
+			api.edit("Page " + i, "Text " + i, "summary");
+		}
+		assertEquals(tokenRequests + 1, wiki.getRequestCount("tokens"));
+		assertEquals(5, wiki.getRequestCount("edit"));
+		api.close();
+	}
+
+	@Test
+	public void testBadTokenIsRefreshed() throws Exception {
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		api.login("Bot", "secret");
+		api.edit("Page", "First", "summary");
+
+		wiki.failNextEdit("badtoken");
+		api.edit("Page", "Second", "summary");
+		assertEquals("Second", wiki.getPage("Page"));
+		api.close();
+	}
+
+	@Test
+	public void testMaxLagIsThrottled() throws Exception {
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		api.login("Bot", "secret");
+
+		wiki.failNextEdit("maxlag");
+		try {
+			api.edit("Page", "Text", "summary");
+			fail("maxlag error expected");
+		} catch (MediaWikiApiException e) {
+			assertTrue(e.isThrottled());
+			assertEquals(5, e.getRetryAfter());
+		}
+
+		wiki.failNextEdit("http-503");
+		try {
+			api.edit("Page", "Text", "summary");
+			fail("HTTP 503 expected");
+		} catch (MediaWikiApiException e) {
+			assertTrue(e.isThrottled());
+		}
+		api.close();
+	}
+
+	@Test
+	public void testSessionIsReused() throws Exception {
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL()).withSessionFile(sessionFile);
+		api.login("Bot", "secret");
+		api.close();
+		assertEquals(1, wiki.getRequestCount("login"));
+
+		MediaWikiApi nextRun = new MediaWikiApi(wiki.getApiURL()).withSessionFile(sessionFile);
+		nextRun.login("Bot", "secret");
+		nextRun.edit("Page", "Text", "summary");
+		nextRun.close();
+		assertEquals(1, wiki.getRequestCount("login"));
+		assertEquals("Text", wiki.getPage("Page"));
+	}
+
+	@Test
+	public void testBotPasswordSessionIsReused() throws Exception {
+		wiki.addUser("Bot@importer", "bot-secret");
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL()).withSessionFile(sessionFile);
+		api.login("Bot@importer", "bot-secret");
+		api.close();
+
+		MediaWikiApi nextRun = new MediaWikiApi(wiki.getApiURL()).withSessionFile(sessionFile);
+		nextRun.login("Bot@importer", "bot-secret");
+		nextRun.close();
+		assertEquals(1, wiki.getRequestCount("login"));
+	}
+
+	@Test
+	public void testStreamedUpload() throws Exception {
+		byte[] content = new byte[200 * 1024];
+		new Random(7).nextBytes(content);
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		api.login("Bot", "secret");
+
+		api.upload("Drawing.dwg", MediaWikiApi.streamBody(new ByteArrayInputStream(content), content.length, "Drawing.dwg"),
+				"summary");
+		assertTrue(Arrays.equals(content, wiki.getFile("Drawing.dwg")));
+
+		// the same file again is no error
+		api.upload("Drawing.dwg", MediaWikiApi.streamBody(new ByteArrayInputStream(content), content.length, "Drawing.dwg"),
+				"summary");
+		assertEquals(2, wiki.getRequestCount("upload"));
+		api.close();
+	}
+
+	@Test
+	public void testStreamIsNotSentTwice() throws Exception {
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		api.login("Bot", "secret");
+
+		wiki.failNextEdit("badtoken");
+		try {
+			api.upload("Logo.png", MediaWikiApi.streamBody(new ByteArrayInputStream(new byte[10]), 10, "Logo.png"), "summary");
+			fail("badtoken expected");
+		} catch (MediaWikiApiException e) {
+			assertEquals("badtoken", e.getCode());
+		}
+		assertEquals(1, wiki.getRequestCount("upload"));
+		api.close();
+	}
+
+	@Test
+	public void testFileUploadIsRetried() throws Exception {
+		File file = File.createTempFile("upload", ".png");
+		FileUtils.writeStringToFile(file, "logo", "UTF-8");
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		api.login("Bot", "secret");
+
+		wiki.failNextEdit("badtoken");
+		api.upload("Logo.png", new FileBody(file, ContentType.DEFAULT_BINARY, "Logo.png"), "summary");
+		assertEquals("logo", new String(wiki.getFile("Logo.png"), "UTF-8"));
+		assertEquals(2, wiki.getRequestCount("upload"));
+		api.close();
+		file.delete();
+	}
+
+	@Test
+	public void testChunkedUpload() throws Exception {
+		byte[] content = new byte[250 * 1024];
+		new Random(11).nextBytes(content);
+		File file = File.createTempFile("upload", ".dwg");
+		FileUtils.writeByteArrayToFile(file, content);
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL()).withChunkSize(100 * 1024).withChunkRetryDelayMillis(0);
+		api.login("Bot", "secret");
+
+		api.uploadChunked("Drawing.dwg", file, "summary");
+		assertTrue(Arrays.equals(content, wiki.getFile("Drawing.dwg")));
+		// three chunks and the final request
+		assertEquals(4, wiki.getRequestCount("upload"));
+
+		api.close();
+		file.delete();
+	}
+
+	@Test
+	public void testFailedChunkIsRepeated() throws Exception {
+		byte[] content = new byte[250 * 1024];
+		new Random(13).nextBytes(content);
+		File file = File.createTempFile("upload", ".dwg");
+		FileUtils.writeByteArrayToFile(file, content);
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL()).withChunkSize(100 * 1024).withChunkRetryDelayMillis(0);
+		api.login("Bot", "secret");
+
+		wiki.failNextEdit("http-502");
+		api.uploadChunked("Drawing.dwg", file, "summary");
+		assertTrue(Arrays.equals(content, wiki.getFile("Drawing.dwg")));
+		// three chunks, one of them twice, and the final request
+		assertEquals(5, wiki.getRequestCount("upload"));
+
+		api.close();
+		file.delete();
+	}
+
+	@Test
+	public void testUploadGoesOnAtOffsetOfStash() throws Exception {
+		byte[] content = new byte[250 * 1024];
+		new Random(17).nextBytes(content);
+		File file = File.createTempFile("upload", ".dwg");
+		FileUtils.writeByteArrayToFile(file, content);
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL()).withChunkSize(100 * 1024).withChunkRetryDelayMillis(0);
+		api.login("Bot", "secret");
+
+		// the second chunk is stashed, but its answer lost
+		wiki.loseChunkAnswer(100 * 1024);
+		api.uploadChunked("Drawing.dwg", file, "summary");
+		assertTrue(Arrays.equals(content, wiki.getFile("Drawing.dwg")));
+		// the second chunk again, refused with the offset of the third
+		assertEquals(5, wiki.getRequestCount("upload"));
+
+		api.close();
+		file.delete();
+	}
+
+	@Test
+	public void testAsyncPublishIsPolled() throws Exception {
+		byte[] content = new byte[250 * 1024];
+		new Random(19).nextBytes(content);
+		File file = File.createTempFile("upload", ".dwg");
+		FileUtils.writeByteArrayToFile(file, content);
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL()).withChunkSize(100 * 1024).withPublishPollMillis(0);
+		api.login("Bot", "secret");
+
+		wiki.setPollsPerPublish(2);
+		api.uploadChunked("Drawing.dwg", file, "summary");
+		assertTrue(Arrays.equals(content, wiki.getFile("Drawing.dwg")));
+		// three chunks, the publish and two status checks
+		assertEquals(6, wiki.getRequestCount("upload"));
+
+		api.close();
+		file.delete();
+	}
+
+	@Test
+	public void testGetRevisionSha1s() throws Exception {
+		wiki.putPage("Main/Same", "Unchanged text");
+		wiki.putPage("Main/Other", "Old text");
+		wiki.putPage("Main/Lines", "Line one\nLine two");
+
+		List<String> titles = new ArrayList<String>();
+		titles.add("Main/Same");
+		titles.add("Main/Lines");
+		titles.add("main/Other");
+		titles.add("Main/New_page");
+		for (int i = 0; i < MediaWikiApi.MAX_TITLES_PER_QUERY; i++) {
+			titles.add("Filler/Page" + i);
+		}
+
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		Map<String, String> sha1s = api.getRevisionSha1s(titles);
+		api.close();
+
+		assertEquals(titles.size(), sha1s.size());
+		assertEquals(new Article("Main", "Same", "Unchanged text").getBodySha1(), sha1s.get("Main/Same"));
+		assertEquals(new Article("Main", "Other", "Old text").getBodySha1(), sha1s.get("main/Other"));
+		assertNull(sha1s.get("Main/New_page"));
+		assertTrue(sha1s.containsKey("Main/New_page"));
+		// saved with LF line ends
+		assertEquals(new Article("Main", "Lines", "Line one\r\nLine two").getBodySha1(), sha1s.get("Main/Lines"));
+		// 54 titles need two requests
+		assertEquals(2, wiki.getRequestCount("revisions"));
+	}
+
+	@Test
+	public void testGetFileSha1s() throws Exception {
+		byte[] content = "GIF89a logo".getBytes("UTF-8");
+		wiki.putFile("Logo.gif", content);
+
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		Map<String, String> sha1s = api.getFileSha1s(Arrays.asList("File:Logo.gif", "File:Missing.png"));
+		api.close();
+
+		assertEquals(String.format("%040x", new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(content))),
+				sha1s.get("File:Logo.gif"));
+		assertNull(sha1s.get("File:Missing.png"));
+		assertEquals(1, wiki.getRequestCount("imageinfo"));
+	}
+
+	@Test
+	public void testFindFileBySha1() throws Exception {
+		byte[] content = "GIF89a logo".getBytes("UTF-8");
+		wiki.putFile("Company_logo.gif", content);
+		String sha1 = String.format("%040x", new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(content)));
+
+		MediaWikiApi api = new MediaWikiApi(wiki.getApiURL());
+		assertEquals("Company_logo.gif", api.findFileBySha1(sha1));
+		assertNull(api.findFileBySha1("da39a3ee5e6b4b0d3255bfef95601890afd80709"));
+		api.close();
+	}
+}
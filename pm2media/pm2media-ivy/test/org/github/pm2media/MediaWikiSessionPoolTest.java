@@ -0,0 +1,94 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import org.gitub.pm2media.MediaWikiApiException;
+import org.gitub.pm2media.MediaWikiSessionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests spreading edits over several accounts.
+ *
+ * @author smootp
+ *
+ */
+public class MediaWikiSessionPoolTest {
+
+	MediaWikiStandIn wiki;
+	MediaWikiSessionPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		wiki = new MediaWikiStandIn();
+		wiki.addUser("Bot1", "one");
+		wiki.addUser("Bot2", "two");
+		pool = new MediaWikiSessionPool(wiki.getApiURL())
+				.withAccount("Bot1", "one")
+				.withAccount("Bot2", "two")
+				.withAccount("Bot1", "one");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.close();
+		wiki.stop();
+	}
+
+	@Test
+	public void testLogin() throws Exception {
+		assertEquals(2, pool.size());
+		assertEquals(2, pool.login());
+	}
+
+	@Test
+	public void testFailedAccountIsLeftOut() throws Exception {
+		pool.withAccount("Bot3", "wrong");
+		assertEquals(2, pool.login());
+
+		for (int i = 0; i < 4; i++) {
+			pool.edit("Page " + i, "Text", "summary");
+		}
+		assertEquals(4, wiki.getEditCount("Bot1") + wiki.getEditCount("Bot2"));
+	}
+
+	@Test
+	public void testEditFailsWhenNoAccountLogsIn() throws Exception {
+		MediaWikiSessionPool failing = new MediaWikiSessionPool(wiki.getApiURL())
+				.withAccount("Bot1", "wrong")
+				.withAccount("Bot2", "wrong");
+		try {
+			failing.edit("Page", "Text", "summary");
+			fail("login failure expected");
+		} catch (MediaWikiApiException e) {
+			// one round of logins, then the error of the last one
+		} finally {
+			failing.close();
+		}
+		assertEquals(2, wiki.getRequestCount("login"));
+	}
+
+	@Test
+	public void testRateLimitedAccountRests() throws Exception {
+		pool.login();
+		wiki.setRateLimited("Bot1", true);
+
+		for (int i = 0; i < 5; i++) {
+			pool.edit("Page " + i, "Text " + i, "summary");
+		}
+		assertEquals(0, wiki.getEditCount("Bot1"));
+		assertEquals(5, wiki.getEditCount("Bot2"));
+		assertEquals("Text 4", wiki.getPage("Page 4"));
+	}
+
+	@Test
+	public void testExpiredSessionLogsInAgain() throws Exception {
+		pool.login();
+		pool.edit("Page", "First", "summary");
+
+		wiki.expireSessions();
+		pool.edit("Page", "Second", "summary");
+		assertEquals("Second", wiki.getPage("Page"));
+	}
+}
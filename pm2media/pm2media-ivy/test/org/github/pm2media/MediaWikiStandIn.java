@@ -0,0 +1,492 @@
+package org.github.pm2media;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal stand-in for a MediaWiki api.php, running on a local port.
+ * Knows just enough of the Action API for the client tests: tokens, login,
+ * user info, revision hashes, edits and uploads.  Errors can be queued to test the client's reaction.
+ *
+ * @author smootp
+ *
+ */
+public class MediaWikiStandIn {
+	private static final String SESSION_COOKIE = "standin_session";
+
+	private final HttpServer server;
+
+	/** User name per session id. */
+	private final Map<String, String> sessions = new ConcurrentHashMap<String, String>();
+
+	/** Passwords of the known users. */
+	private final Map<String, String> users = new ConcurrentHashMap<String, String>();
+
+	/** Saved page texts by title. */
+	private final Map<String, String> pages = new ConcurrentHashMap<String, String>();
+
+	/** Uploaded file contents by file name. */
+	private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+
+	/** Chunks received so far by stash file key. */
+	private final Map<String, ByteArrayOutputStream> stash = new ConcurrentHashMap<String, ByteArrayOutputStream>();
+
+	/** Uploads published with async=1: "filename TAB status checks still to take" by stash file key. */
+	private final Map<String, String> publishing = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger pollsPerPublish = new AtomicInteger();
+
+	/** Offset of the chunk to take but not answer, -1 for none. */
+	private final AtomicLong lostChunkOffset = new AtomicLong(-1);
+
+	/** Number of requests per action (or per meta for action=query). */
+	private final ConcurrentHashMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/** Users whose edits are refused for the rate limit. */
+	private final Set<String> rateLimitedUsers = Collections.synchronizedSet(new HashSet<String>());
+
+	/** Number of edits saved per user. */
+	private final ConcurrentHashMap<String, AtomicInteger> editCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/** Error codes to answer the next edits or uploads with. */
+	private final List<String> editErrors = Collections.synchronizedList(new LinkedList<String>());
+
+	private final AtomicInteger sessionCounter = new AtomicInteger();
+
+	public MediaWikiStandIn() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/w/api.php", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				try {
+					answer(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	public String getApiURL() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/w/api.php";
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public void addUser(final String username, final String password) {
+		users.put(username, password);
+	}
+
+	public void putPage(final String title, final String text) {
+		pages.put(normalize(title), text);
+	}
+
+	public String getPage(final String title) {
+		return pages.get(title);
+	}
+
+	public void putFile(final String filename, final byte[] content) {
+		files.put(filename, content);
+	}
+
+	public byte[] getFile(final String filename) {
+		return files.get(filename);
+	}
+
+	public int getRequestCount(final String action) {
+		AtomicInteger count = requestCounts.get(action);
+		return count == null ? 0 : count.get();
+	}
+
+	public int getEditCount(final String username) {
+		AtomicInteger count = editCounts.get(username);
+		return count == null ? 0 : count.get();
+	}
+
+	public void setRateLimited(final String username, final boolean limited) {
+		if (limited) {
+			rateLimitedUsers.add(username);
+		} else {
+			rateLimitedUsers.remove(username);
+		}
+	}
+
+	/**
+	 * Logs all sessions out, as if they had timed out.
+	 */
+	public void expireSessions() {
+		sessions.clear();
+	}
+
+	public void failNextEdit(final String errorCode) {
+		editErrors.add(errorCode);
+	}
+
+	/**
+	 * Stores the chunk at the given offset of an upload, but drops the
+	 * connection instead of answering, as if the answer was lost on the way.
+	 */
+	public void loseChunkAnswer(final long offset) {
+		lostChunkOffset.set(offset);
+	}
+
+	/**
+	 * Publishes uploads made with async=1 only after the given number of
+	 * status checks, like a job queue; 0 publishes them at once.
+	 */
+	public void setPollsPerPublish(final int polls) {
+		pollsPerPublish.set(polls);
+	}
+
+	private void answer(final HttpExchange exchange) throws IOException {
+		Map<String, String> params = parseParams(exchange);
+		String session = getSession(exchange);
+		String action = params.get("action");
+		if ("query".equals(action)) {
+			count(params.containsKey("meta") ? params.get("meta") : params.containsKey("list") ? params.get("list") : params.get("prop"));
+		} else {
+			count(action);
+		}
+
+		if ("query".equals(action) && "tokens".equals(params.get("meta"))) {
+			String type = params.get("type");
+			if (!"login".equals(type) && session == null) {
+				send(exchange, 200, "{\"query\":{\"tokens\":{\"csrftoken\":\"+\\\\\"}}}");
+			} else {
+				send(exchange, 200, "{\"query\":{\"tokens\":{\"" + type + "token\":\"" + type + "-" + session + "\"}}}");
+			}
+		} else if ("query".equals(action) && "userinfo".equals(params.get("meta"))) {
+			String user = session == null ? null : sessions.get(session);
+			if (user == null) {
+				send(exchange, 200, "{\"query\":{\"userinfo\":{\"id\":0,\"name\":\"127.0.0.1\",\"anon\":\"\"}}}");
+			} else {
+				send(exchange, 200, "{\"query\":{\"userinfo\":{\"id\":1,\"name\":\"" + user + "\"}}}");
+			}
+		} else if ("query".equals(action) && "revisions".equals(params.get("prop"))) {
+			StringBuilder normalized = new StringBuilder();
+			StringBuilder result = new StringBuilder();
+			int missing = -1;
+			for (String title : params.get("titles").split("\\|")) {
+				String wikiTitle = normalize(title);
+				if (!wikiTitle.equals(title)) {
+					normalized.append(normalized.length() == 0 ? "" : ",")
+							.append("{\"from\":\"").append(title).append("\",\"to\":\"").append(wikiTitle).append("\"}");
+				}
+				result.append(result.length() == 0 ? "" : ",");
+				String text = pages.get(wikiTitle);
+				if (text == null) {
+					result.append("\"").append(missing).append("\":{\"ns\":0,\"title\":\"").append(wikiTitle).append("\",\"missing\":\"\"}");
+					missing--;
+				} else {
+					result.append("\"").append(Math.abs(wikiTitle.hashCode())).append("\":{\"ns\":0,\"title\":\"").append(wikiTitle)
+							.append("\",\"revisions\":[{\"sha1\":\"").append(sha1(text)).append("\"}]}");
+				}
+			}
+			send(exchange, 200, "{\"query\":{\"normalized\":[" + normalized + "],\"pages\":{" + result + "}}}");
+		} else if ("query".equals(action) && "imageinfo".equals(params.get("prop"))) {
+			StringBuilder result = new StringBuilder();
+			int missing = -1;
+			for (String title : params.get("titles").split("\\|")) {
+				String wikiTitle = normalize(title);
+				byte[] content = files.get(wikiTitle.substring("File:".length()));
+				result.append(result.length() == 0 ? "" : ",");
+				if (content == null) {
+					result.append("\"").append(missing).append("\":{\"ns\":6,\"title\":\"").append(wikiTitle).append("\",\"missing\":\"\"}");
+					missing--;
+				} else {
+					result.append("\"").append(Math.abs(wikiTitle.hashCode())).append("\":{\"ns\":6,\"title\":\"").append(wikiTitle)
+							.append("\",\"imageinfo\":[{\"sha1\":\"").append(sha1(content)).append("\"}]}");
+				}
+			}
+			send(exchange, 200, "{\"query\":{\"pages\":{" + result + "}}}");
+		} else if ("query".equals(action) && "allimages".equals(params.get("list"))) {
+			StringBuilder result = new StringBuilder();
+			for (Map.Entry<String, byte[]> file : files.entrySet()) {
+				if (sha1(file.getValue()).equals(params.get("aisha1")) && result.length() == 0) {
+					result.append("{\"name\":\"").append(file.getKey()).append("\"}");
+				}
+			}
+			send(exchange, 200, "{\"query\":{\"allimages\":[" + result + "]}}");
+		} else if ("login".equals(action)) {
+			String password = users.get(params.get("lgname"));
+			if (password != null && password.equals(params.get("lgpassword"))) {
+				String newSession = "s" + sessionCounter.incrementAndGet();
+				// bot passwords, "User@bot", log in as the user
+				String user = params.get("lgname").split("@")[0];
+				sessions.put(newSession, user);
+				exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + newSession + "; Path=/");
+				send(exchange, 200, "{\"login\":{\"result\":\"Success\",\"lgusername\":\"" + user + "\"}}");
+			} else {
+				send(exchange, 200, "{\"login\":{\"result\":\"Failed\",\"reason\":\"Incorrect password\"}}");
+			}
+		} else if ("edit".equals(action) || "upload".equals(action)) {
+			if (!editErrors.isEmpty()) {
+				String code = editErrors.remove(0);
+				if (code.startsWith("http-")) {
+					if (code.equals("http-429") || code.equals("http-503")) {
+						exchange.getResponseHeaders().add("Retry-After", "3");
+					}
+					send(exchange, Integer.parseInt(code.substring(5)), "");
+				} else {
+					if (code.equals("maxlag")) {
+						exchange.getResponseHeaders().add("Retry-After", "5");
+					}
+					send(exchange, 200, "{\"error\":{\"code\":\"" + code + "\",\"info\":\"stand-in error\"}}");
+				}
+			} else if ("user".equals(params.get("assert")) && (session == null || !sessions.containsKey(session))) {
+				send(exchange, 200, "{\"error\":{\"code\":\"assertuserfailed\",\"info\":\"You are no longer logged in.\"}}");
+			} else if (session != null && rateLimitedUsers.contains(sessions.get(session))) {
+				send(exchange, 200, "{\"error\":{\"code\":\"ratelimited\",\"info\":\"You've exceeded your rate limit.\"}}");
+			} else if (session == null || !("csrf-" + session).equals(params.get("token"))) {
+				send(exchange, 200, "{\"error\":{\"code\":\"badtoken\",\"info\":\"Invalid CSRF token.\"}}");
+			} else if ("upload".equals(action)) {
+				upload(exchange, params);
+			} else if (!"1".equals(params.get("bot")) || params.get("maxlag") == null) {
+				send(exchange, 200, "{\"error\":{\"code\":\"standin-params\",\"info\":\"bot and maxlag expected\"}}");
+			} else {
+				pages.put(normalize(params.get("title")), params.get("text"));
+				editCounts.putIfAbsent(sessions.get(session), new AtomicInteger());
+				editCounts.get(sessions.get(session)).incrementAndGet();
+				send(exchange, 200, "{\"edit\":{\"result\":\"Success\",\"title\":\"" + params.get("title") + "\"}}");
+			}
+		} else {
+			send(exchange, 200, "{\"error\":{\"code\":\"badvalue\",\"info\":\"Unrecognized action\"}}");
+		}
+	}
+
+	private void upload(final HttpExchange exchange, final Map<String, String> params) throws IOException {
+		if ("1".equals(params.get("stash"))) {
+			uploadChunk(exchange, params);
+			return;
+		}
+		if ("1".equals(params.get("checkstatus"))) {
+			checkStatus(exchange, params);
+			return;
+		}
+		if (params.get("filekey") != null && "1".equals(params.get("async")) && pollsPerPublish.get() > 0) {
+			if (!stash.containsKey(params.get("filekey"))) {
+				send(exchange, 200, "{\"error\":{\"code\":\"missingresult\",\"info\":\"No such file key\"}}");
+			} else {
+				publishing.put(params.get("filekey"), params.get("filename") + "\t" + pollsPerPublish.get());
+				send(exchange, 200, "{\"upload\":{\"result\":\"Poll\",\"stage\":\"queued\",\"filekey\":\""
+						+ params.get("filekey") + "\"}}");
+			}
+			return;
+		}
+		if (params.get("filekey") != null) {
+			ByteArrayOutputStream stashed = stash.remove(params.get("filekey"));
+			if (stashed == null) {
+				send(exchange, 200, "{\"error\":{\"code\":\"missingresult\",\"info\":\"No such file key\"}}");
+			} else {
+				files.put(params.get("filename"), stashed.toByteArray());
+				send(exchange, 200, "{\"upload\":{\"result\":\"Success\",\"filename\":\"" + params.get("filename") + "\"}}");
+			}
+			return;
+		}
+		if (params.get("file") == null || params.get("filename") == null || !"1".equals(params.get("ignorewarnings"))) {
+			send(exchange, 200, "{\"error\":{\"code\":\"standin-params\",\"info\":\"file, filename and ignorewarnings expected\"}}");
+			return;
+		}
+		// multipart parts are kept as ISO-8859-1, which maps each byte to one char
+		byte[] content = params.get("file").getBytes("ISO-8859-1");
+		byte[] previous = files.put(params.get("filename"), content);
+		if (previous != null && Arrays.equals(previous, content)) {
+			send(exchange, 200, "{\"error\":{\"code\":\"fileexists-no-change\",\"info\":\"The upload is an exact duplicate of the current version\"}}");
+		} else {
+			send(exchange, 200, "{\"upload\":{\"result\":\"Success\",\"filename\":\"" + params.get("filename") + "\"}}");
+		}
+	}
+
+	/**
+	 * Answers the status check of an upload published with async=1.
+	 */
+	private void checkStatus(final HttpExchange exchange, final Map<String, String> params) throws IOException {
+		String filekey = params.get("filekey");
+		String pending = publishing.get(filekey);
+		if (pending == null) {
+			send(exchange, 200, "{\"error\":{\"code\":\"missingresult\",\"info\":\"No result in status data\"}}");
+			return;
+		}
+		String filename = pending.split("\t")[0];
+		int polls = Integer.parseInt(pending.split("\t")[1]) - 1;
+		if (polls > 0) {
+			publishing.put(filekey, filename + "\t" + polls);
+			send(exchange, 200, "{\"upload\":{\"result\":\"Poll\",\"stage\":\"publish\"}}");
+			return;
+		}
+		publishing.remove(filekey);
+		files.put(filename, stash.remove(filekey).toByteArray());
+		send(exchange, 200, "{\"upload\":{\"result\":\"Success\",\"filename\":\"" + filename + "\"}}");
+	}
+
+	/**
+	 * Appends a chunk to the stash.  Chunks have to arrive in order, as with
+	 * MediaWiki, which names the offset it expects when they do not.
+	 */
+	private void uploadChunk(final HttpExchange exchange, final Map<String, String> params) throws IOException {
+		String filekey = params.get("filekey");
+		if (filekey == null) {
+			filekey = "stash" + sessionCounter.incrementAndGet();
+			stash.put(filekey, new ByteArrayOutputStream());
+		}
+		ByteArrayOutputStream stashed = stash.get(filekey);
+		long offset = Long.parseLong(params.get("offset"));
+		if (stashed == null || params.get("chunk") == null) {
+			send(exchange, 200, "{\"error\":{\"code\":\"stashfailed\",\"info\":\"No such file key\"}}");
+			return;
+		}
+		if (stashed.size() != offset) {
+			send(exchange, 200, "{\"error\":{\"code\":\"stashfailed\",\"info\":\"Chunk at unexpected offset " + offset
+					+ "\",\"offset\":" + stashed.size() + "}}");
+			return;
+		}
+		stashed.write(params.get("chunk").getBytes("ISO-8859-1"));
+		if (lostChunkOffset.compareAndSet(offset, -1)) {
+			// closing the exchange without an answer drops the connection
+			return;
+		}
+		if (stashed.size() >= Long.parseLong(params.get("filesize"))) {
+			send(exchange, 200, "{\"upload\":{\"result\":\"Success\",\"filekey\":\"" + filekey + "\"}}");
+		} else {
+			send(exchange, 200, "{\"upload\":{\"result\":\"Continue\",\"offset\":" + stashed.size() + ",\"filekey\":\""
+					+ filekey + "\"}}");
+		}
+	}
+
+	/**
+	 * Spells a title the way MediaWiki does: blanks instead of underscores and
+	 * an upper case first letter.
+	 */
+	private static String normalize(final String title) {
+		String normalized = title.replace('_', ' ').trim();
+		return normalized.isEmpty() ? normalized : Character.toUpperCase(normalized.charAt(0)) + normalized.substring(1);
+	}
+
+	private static String sha1(final String text) throws IOException {
+		return sha1(text.getBytes("UTF-8"));
+	}
+
+	private static String sha1(final byte[] content) throws IOException {
+		try {
+			return String.format("%040x", new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(content)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void count(final String action) {
+		requestCounts.putIfAbsent(String.valueOf(action), new AtomicInteger());
+		requestCounts.get(String.valueOf(action)).incrementAndGet();
+	}
+
+	private static String getSession(final HttpExchange exchange) {
+		List<String> cookieHeaders = exchange.getRequestHeaders().get("Cookie");
+		if (cookieHeaders == null) {
+			return null;
+		}
+		for (String header : cookieHeaders) {
+			for (String cookie : header.split(";")) {
+				String[] nameValue = cookie.trim().split("=", 2);
+				if (nameValue.length == 2 && nameValue[0].equals(SESSION_COOKIE)) {
+					return nameValue[1];
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Map<String, String> parseParams(final HttpExchange exchange) throws IOException {
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		if (contentType != null && contentType.startsWith("multipart/form-data")) {
+			Matcher boundary = Pattern.compile("boundary=([^;\\s]+)").matcher(contentType);
+			if (boundary.find()) {
+				return parseMultipart(exchange, boundary.group(1));
+			}
+		}
+
+		List<String> encoded = new ArrayList<String>();
+		if (exchange.getRequestURI().getRawQuery() != null) {
+			encoded.add(exchange.getRequestURI().getRawQuery());
+		}
+		encoded.add(new String(readAll(exchange.getRequestBody()), "UTF-8"));
+
+		Map<String, String> params = new HashMap<String, String>();
+		for (String query : encoded) {
+			for (String pair : query.split("&")) {
+				String[] nameValue = pair.split("=", 2);
+				if (nameValue.length == 2) {
+					params.put(URLDecoder.decode(nameValue[0], "UTF-8"), URLDecoder.decode(nameValue[1], "UTF-8"));
+				}
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Reads the parts of a multipart body.  Text parts are decoded as UTF-8,
+	 * file and chunk parts are left in ISO-8859-1 so their bytes survive.
+	 */
+	private static Map<String, String> parseMultipart(final HttpExchange exchange, final String boundary) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		String body = new String(readAll(exchange.getRequestBody()), "ISO-8859-1");
+		for (String part : body.split("--" + Pattern.quote(boundary))) {
+			int headerEnd = part.indexOf("\r\n\r\n");
+			Matcher name = Pattern.compile("name=\"([^\"]*)\"").matcher(part);
+			if (headerEnd < 0 || !name.find() || name.start() > headerEnd) {
+				continue;
+			}
+			// the line break before the next boundary belongs to the boundary
+			String value = part.substring(headerEnd + 4, part.length() - 2);
+			params.put(name.group(1), name.group(1).equals("file") || name.group(1).equals("chunk") ? value : new String(value.getBytes("ISO-8859-1"), "UTF-8"));
+		}
+		return params;
+	}
+
+	private static byte[] readAll(final InputStream input) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = input.read(buffer)) != -1) {
+			bytes.write(buffer, 0, read);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void send(final HttpExchange exchange, final int status, final String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		if (bytes.length > 0) {
+			OutputStream output = exchange.getResponseBody();
+			output.write(bytes);
+			output.close();
+		}
+	}
+}
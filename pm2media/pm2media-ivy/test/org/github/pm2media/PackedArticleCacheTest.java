@@ -0,0 +1,124 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.FileUtils;
+import org.gitub.pm2media.PackedArticleCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the article cache kept in one segment file.
+ *
+ * @author smootp
+ *
+ */
+public class PackedArticleCacheTest {
+
+	private final String cacheName = "packed-test";
+	PackedArticleCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new PackedArticleCache(cacheName);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cache.close();
+		FileUtils.deleteQuietly(new File(cacheName + "-cache"));
+	}
+
+	private File segmentFile() {
+		return new File(cacheName + "-cache", "articles.seg");
+	}
+
+	@Test
+	public void testArticlesAreKeptBetweenRuns() throws Exception {
+		cache.cacheArticle("Main/HomePage", "Welcome." + System.getProperty("line.separator") + "Second line, \u00e4\u00f6\u00fc.");
+		cache.cacheArticle("Main/Other", "Other body.");
+		assertTrue(cache.isArticleCached("Main/HomePage"));
+		assertFalse(cache.isArticleCached("Main/Missing"));
+		assertNull(cache.getCachedArticle("Main/Missing"));
+		cache.close();
+
+		cache = new PackedArticleCache(cacheName);
+		assertEquals(2, cache.size());
+		assertEquals("Welcome." + System.getProperty("line.separator") + "Second line, \u00e4\u00f6\u00fc.",
+				cache.getCachedArticle("Main/HomePage"));
+		assertEquals("Other body.", cache.getCachedArticle("Main/Other"));
+	}
+
+	@Test
+	public void testRecordsAppendedSinceOpeningAreRead() throws Exception {
+		cache.cacheArticle("Main/HomePage", "Mapped when the cache is opened again.");
+		cache.close();
+
+		cache = new PackedArticleCache(cacheName);
+		cache.cacheArticle("Main/Other", "Appended after the mapping.");
+		assertEquals("Mapped when the cache is opened again.", cache.getCachedArticle("Main/HomePage"));
+		assertEquals("Appended after the mapping.", cache.getCachedArticle("Main/Other"));
+
+		// the compacted segment is mapped anew
+		cache.compact();
+		cache.cacheArticle("Main/Third", "Appended after compaction.");
+		assertEquals("Mapped when the cache is opened again.", cache.getCachedArticle("Main/HomePage"));
+		assertEquals("Appended after the mapping.", cache.getCachedArticle("Main/Other"));
+		assertEquals("Appended after compaction.", cache.getCachedArticle("Main/Third"));
+	}
+
+	@Test
+	public void testSupersededRecordsAreCompacted() throws Exception {
+		cache.withCompactionThreshold(0);
+		cache.cacheArticle("Main/HomePage", "First version, which is rather long.");
+		cache.cacheArticle("Main/Other", "Other body.");
+		cache.cacheArticle("Main/HomePage", "Second version, which is rather long.");
+		cache.cacheArticle("Main/HomePage", "Third.");
+
+		assertEquals("Third.", cache.getCachedArticle("Main/HomePage"));
+		assertEquals("Other body.", cache.getCachedArticle("Main/Other"));
+		// only the live records are left
+		assertEquals(2 * 16 + "Main/HomePage".length() + "Third.".length() + "Main/Other".length() + "Other body.".length(),
+				cache.getSegmentLength());
+		assertEquals(cache.getSegmentLength(), segmentFile().length());
+	}
+
+	@Test
+	public void testTornRecordIsCutOff() throws Exception {
+		cache.cacheArticle("Main/HomePage", "Complete.");
+		cache.cacheArticle("Main/Other", "Cut short by a crash.");
+		long length = cache.getSegmentLength();
+		cache.close();
+
+		RandomAccessFile segment = new RandomAccessFile(segmentFile(), "rw");
+		segment.setLength(length - 5);
+		segment.close();
+
+		cache = new PackedArticleCache(cacheName);
+		assertEquals("Complete.", cache.getCachedArticle("Main/HomePage"));
+		assertFalse(cache.isArticleCached("Main/Other"));
+		cache.cacheArticle("Main/Other", "Fetched again.");
+		assertEquals("Fetched again.", cache.getCachedArticle("Main/Other"));
+	}
+
+	@Test
+	public void testDamagedRecordIsDropped() throws Exception {
+		cache.cacheArticle("Main/HomePage", "Body with a flipped bit.");
+		long length = cache.getSegmentLength();
+		cache.close();
+
+		RandomAccessFile segment = new RandomAccessFile(segmentFile(), "rw");
+		segment.seek(length - 3);
+		segment.write('X');
+		segment.close();
+
+		cache = new PackedArticleCache(cacheName);
+		assertTrue(cache.isArticleCached("Main/HomePage"));
+		assertNull(cache.getCachedArticle("Main/HomePage"));
+		assertFalse(cache.isArticleCached("Main/HomePage"));
+	}
+}
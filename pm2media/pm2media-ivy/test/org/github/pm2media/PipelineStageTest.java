@@ -0,0 +1,167 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gitub.pm2media.PipelineStage;
+import org.junit.Test;
+
+/**
+ * Tests the bounded queue and worker threads of a pipeline stage.
+ *
+ * @author smootp
+ *
+ */
+public class PipelineStageTest {
+
+	@Test
+	public void testItemsAreProcessedByWorkersOfTheirOwn() throws Exception {
+		final Set<Integer> items = Collections.synchronizedSet(new HashSet<Integer>());
+		final Set<Object> workers = Collections.synchronizedSet(new HashSet<Object>());
+		final AtomicInteger closed = new AtomicInteger();
+		final CountDownLatch allDone = new CountDownLatch(100);
+
+		PipelineStage<Integer> stage = new PipelineStage<Integer>("test", 3, 10, new PipelineStage.WorkerFactory<Integer>() {
+			@Override
+			public PipelineStage.Worker<Integer> newWorker() {
+				return new PipelineStage.Worker<Integer>() {
+					@Override
+					public void process(final Integer item) {
+						workers.add(this);
+						items.add(item);
+						allDone.countDown();
+					}
+
+					@Override
+					public void close() {
+						closed.incrementAndGet();
+					}
+				};
+			}
+		});
+		stage.start();
+		for (int i = 0; i < 100; i++) {
+			stage.put(i);
+		}
+
+		assertTrue(allDone.await(10, TimeUnit.SECONDS));
+		assertEquals(100, items.size());
+		assertTrue(workers.size() <= 3);
+		stage.stop();
+		assertEquals(3, closed.get());
+		assertEquals(100, stage.getProcessed());
+	}
+
+	@Test
+	public void testPutBlocksWhileQueueIsFull() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+
+		final PipelineStage<Integer> stage = new PipelineStage<Integer>("slow", 1, 2, new PipelineStage.WorkerFactory<Integer>() {
+			@Override
+			public PipelineStage.Worker<Integer> newWorker() {
+				return new PipelineStage.Worker<Integer>() {
+					@Override
+					public void process(final Integer item) throws InterruptedException {
+						started.countDown();
+						release.await();
+					}
+				};
+			}
+		});
+		stage.start();
+
+		stage.put(1);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		stage.put(2);
+		stage.put(3);
+		assertEquals(2, stage.getQueued());
+		assertEquals(1, stage.getBusy());
+		assertEquals("slow 2/2 queued, 1/1 busy", stage.toString());
+
+		final CountDownLatch putDone = new CountDownLatch(1);
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					stage.put(4);
+					putDone.countDown();
+				} catch (InterruptedException e) {
+					// test ends
+				}
+			}
+		});
+		producer.start();
+		assertFalse(putDone.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue(putDone.await(10, TimeUnit.SECONDS));
+		stage.stop();
+	}
+
+	@Test
+	public void testFailedItemsDoNotStopTheStage() throws Exception {
+		final CountDownLatch allDone = new CountDownLatch(2);
+		PipelineStage<Integer> stage = new PipelineStage<Integer>("failing", 1, 4, new PipelineStage.WorkerFactory<Integer>() {
+			@Override
+			public PipelineStage.Worker<Integer> newWorker() {
+				return new PipelineStage.Worker<Integer>() {
+					@Override
+					public void process(final Integer item) {
+						allDone.countDown();
+						if (item == 1) {
+							throw new IllegalStateException("broken item");
+						}
+					}
+				};
+			}
+		});
+		stage.start();
+		stage.put(1);
+		stage.put(2);
+		assertTrue(allDone.await(10, TimeUnit.SECONDS));
+		stage.stop();
+	}
+
+	@Test
+	public void testWorkerThrowingErrorIsReplaced() throws Exception {
+		final CountDownLatch allDone = new CountDownLatch(2);
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger closed = new AtomicInteger();
+		PipelineStage<Integer> stage = new PipelineStage<Integer>("single", 1, 4, new PipelineStage.WorkerFactory<Integer>() {
+			@Override
+			public PipelineStage.Worker<Integer> newWorker() {
+				created.incrementAndGet();
+				return new PipelineStage.Worker<Integer>() {
+					@Override
+					public void process(final Integer item) {
+						allDone.countDown();
+						if (item == 1) {
+							throw new Error("worker broken");
+						}
+					}
+
+					@Override
+					public void close() {
+						closed.incrementAndGet();
+					}
+				};
+			}
+		});
+		stage.start();
+		stage.put(1);
+		stage.put(2);
+
+		// the only thread goes on with a new worker
+		assertTrue(allDone.await(10, TimeUnit.SECONDS));
+		stage.stop();
+		assertEquals(2, created.get());
+		assertEquals(2, closed.get());
+	}
+}
@@ -0,0 +1,137 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gitub.pm2media.Article;
+import org.gitub.pm2media.ArticleCache;
+import org.gitub.pm2media.PmWikiCrawler;
+import org.gitub.pm2media.WikiParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the crawler against a PmWiki stand-in: every page is found and
+ * read once, and the page limit holds across threads.
+ *
+ * @author smootp
+ *
+ */
+public class PmWikiCrawlerTest {
+
+	PmWikiStandIn pmWiki;
+
+	WikiParams wikiParams;
+
+	@Before
+	public void setUp() throws Exception {
+		ArticleCache.forName("pmwiki").cleanCache();
+		pmWiki = new PmWikiStandIn();
+		pmWiki.putPage("Main/HomePage", "Welcome. See [[Guide]], [[Other/Page|the other page]] and [[Main.Guide#top]].");
+		pmWiki.putPage("Main/Guide", "Back [[HomePage]], on to [[step two -> Main/StepTwo]], out to [[http://example.com/]].");
+		pmWiki.putPage("Main/StepTwo", "The end, [[Main/HomePage]].");
+		pmWiki.putPage("Other/Page", "Also [[Site/SideBar]] and [[Main/Guide]].");
+		wikiParams = new WikiParams().withURL(pmWiki.getURL()).withUsername("reader").withPassword("secret");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pmWiki.stop();
+		ArticleCache.forName("pmwiki").cleanCache();
+	}
+
+	private static List<String> crawl(final PmWikiCrawler crawler) {
+		List<String> links = new ArrayList<String>();
+		crawler.start();
+		String link;
+		while ((link = crawler.nextLink()) != null) {
+			links.add(link);
+		}
+		crawler.stop();
+		Collections.sort(links);
+		return links;
+	}
+
+	@Test
+	public void testEveryPageIsReadOnce() {
+		PmWikiCrawler crawler = new PmWikiCrawler(wikiParams).withThreadCount(3);
+		List<String> links = crawl(crawler);
+
+		assertEquals(4, links.size());
+		assertEquals(pmWiki.getURL() + "/Main/Guide", links.get(0));
+		assertEquals(pmWiki.getURL() + "/Other/Page", links.get(3));
+		for (String page : new String[] { "Main/HomePage", "Main/Guide", "Main/StepTwo", "Other/Page" }) {
+			assertEquals(page, 1, pmWiki.getEditCount(page));
+		}
+
+		// the migration gets the article the crawler read
+		Article article = crawler.takeArticle(pmWiki.getURL() + "/Main/StepTwo");
+		assertEquals("The end, [[Main/HomePage]].", article.getBody());
+		// failures are retried through the link the article came from
+		assertEquals(pmWiki.getURL() + "/Main/StepTwo", article.getLink());
+		assertNull(crawler.takeArticle(pmWiki.getURL() + "/Main/StepTwo"));
+	}
+
+	@Test
+	public void testPageLimit() {
+		PmWikiCrawler crawler = new PmWikiCrawler(wikiParams).withThreadCount(3).withMaxPages(2);
+		List<String> links = crawl(crawler);
+
+		assertEquals(2, links.size());
+		assertEquals(2, crawler.getDiscoveredCount());
+		assertEquals(pmWiki.getURL() + "/Main/HomePage", links.get(1));
+	}
+
+	@Test
+	public void testFingerprintSet() {
+		PmWikiCrawler.FingerprintSet set = new PmWikiCrawler.FingerprintSet();
+		for (int i = 0; i < 5000; i++) {
+			assertTrue(set.add("main.page" + i));
+		}
+		for (int i = 0; i < 5000; i++) {
+			assertFalse(set.add("main.page" + i));
+		}
+		assertEquals(5000, set.size());
+	}
+
+	@Test
+	public void testFingerprintSetLimitHoldsAcrossThreads() throws Exception {
+		final PmWikiCrawler.FingerprintSet set = new PmWikiCrawler.FingerprintSet();
+		final AtomicInteger added = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			threads.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 1000; i++) {
+						if (set.add("main.page" + thread + "-" + i, 100)) {
+							added.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		start.countDown();
+		threads.shutdown();
+		assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(100, added.get());
+		assertEquals(100, set.size());
+	}
+}
@@ -0,0 +1,115 @@
+package org.github.pm2media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal stand-in for a PmWiki, running on a local port.  Serves the edit
+ * form of its pages (pmwiki.php/Group/Name?action=edit) and takes the
+ * cancel of that form, which is all PmWiki.getArticle() uses.
+ *
+ * @author smootp
+ *
+ */
+public class PmWikiStandIn {
+	private final HttpServer server;
+
+	/** Page markup by "Group/Name". */
+	private final Map<String, String> pages = new ConcurrentHashMap<String, String>();
+
+	/** Number of edit forms served per page. */
+	private final ConcurrentHashMap<String, AtomicInteger> editCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/** Number of requests for the edit form still to fail per page. */
+	private final ConcurrentHashMap<String, AtomicInteger> failures = new ConcurrentHashMap<String, AtomicInteger>();
+
+	public PmWikiStandIn() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/pmwiki.php", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				try {
+					answer(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	public String getURL() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/pmwiki.php";
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public void putPage(final String page, final String markup) {
+		pages.put(page, markup);
+	}
+
+	/**
+	 * Lets the next requests for the edit form of a page fail with a server
+	 * error.
+	 */
+	public void failNextEdits(final String page, final int count) {
+		failures.put(page, new AtomicInteger(count));
+	}
+
+	public int getEditCount(final String page) {
+		AtomicInteger count = editCounts.get(page);
+		return count == null ? 0 : count.get();
+	}
+
+	private void answer(final HttpExchange exchange) throws IOException {
+		String page = exchange.getRequestURI().getPath().substring("/pmwiki.php/".length());
+		String query = exchange.getRequestURI().getQuery();
+		InputStream input = exchange.getRequestBody();
+		while (input.read() != -1) {
+			;
+		}
+
+		if ("POST".equals(exchange.getRequestMethod())) {
+			// the cancelled edit form
+			send(exchange, 200, "<html><body><!--PageText--><!--PageFooterFmt--></body></html>");
+			return;
+		}
+		String markup = pages.get(page);
+		if (markup == null || query == null || !query.contains("action=edit")) {
+			send(exchange, 404, "<html><body>Not found</body></html>");
+			return;
+		}
+		editCounts.putIfAbsent(page, new AtomicInteger());
+		editCounts.get(page).incrementAndGet();
+		AtomicInteger failing = failures.get(page);
+		if (failing != null && failing.getAndDecrement() > 0) {
+			send(exchange, 500, "<html><body>Internal Server Error</body></html>");
+			return;
+		}
+		send(exchange, 200, "<html><body><form method=\"post\" action=\"" + getURL() + "/" + page + "\">"
+				+ "<textarea name=\"text\">" + StringEscapeUtils.escapeHtml4(markup) + "</textarea>"
+				+ "<input type=\"submit\" name=\"cancel\" value=\"Cancel\"/></form></body></html>");
+	}
+
+	private static void send(final HttpExchange exchange, final int status, final String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream output = exchange.getResponseBody();
+		output.write(bytes);
+		output.close();
+	}
+}
@@ -0,0 +1,55 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.util.Set;
+
+import org.gitub.pm2media.Article;
+import org.gitub.pm2media.PmWiki;
+import org.junit.Test;
+
+public class PmWikiTest {
+
+	final String wikiURL = "http://www.pmwiki.org/testwiki/pmwiki.php";
+
+	@Test
+	public void testSplitPathLink() {
+		assertArrayEquals(new String[] { "Main", "HomePage" },
+				PmWiki.splitArticleLink(wikiURL, wikiURL + "/Main/HomePage"));
+		assertArrayEquals(new String[] { "Main", "HomePage" },
+				PmWiki.splitArticleLink(wikiURL, wikiURL + "/Main/HomePage#section"));
+	}
+
+	@Test
+	public void testSplitQueryLink() {
+		assertArrayEquals(new String[] { "Main", "HomePage" },
+				PmWiki.splitArticleLink(wikiURL, wikiURL + "?n=Main.HomePage"));
+		assertArrayEquals(new String[] { "Main", "HomePage" },
+				PmWiki.splitArticleLink(wikiURL, wikiURL + "?n=Main.HomePage&action=browse"));
+	}
+
+	@Test
+	public void testSplitForeignLink() {
+		assertNull(PmWiki.splitArticleLink(wikiURL, "http://www.example.com/Main/HomePage"));
+		assertNull(PmWiki.splitArticleLink(wikiURL, wikiURL));
+	}
+
+	@Test
+	public void testNormalizePageName() {
+		assertEquals("main.homepage", PmWiki.normalizePageName("Main", "HomePage"));
+		assertEquals(PmWiki.normalizePageName("main", "homepage"), PmWiki.normalizePageName("Main", "HomePage"));
+	}
+
+	@Test
+	public void testMarkupLinks() {
+		Article article = new Article("Main", "HomePage", "[[Guide]] [[Other/Page|text]] [[text -> Other.Second Page]]"
+				+ " [[(Main.)about us#team]] [[Group/]] [[http://example.com/]] [[Attach:a.pdf]] [[!Category]]");
+		Set<String> links = PmWiki.getMarkupLinks(wikiURL, article);
+		assertEquals(5, links.size());
+		assertTrue(links.contains(wikiURL + "/Main/Guide"));
+		assertTrue(links.contains(wikiURL + "/Other/Page"));
+		assertTrue(links.contains(wikiURL + "/Other/SecondPage"));
+		assertTrue(links.contains(wikiURL + "/Main/AboutUs"));
+		assertTrue(links.contains(wikiURL + "/Group/HomePage"));
+	}
+}
@@ -0,0 +1,87 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.gitub.pm2media.PostManifest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the post manifest survives restarts and interrupted writes.
+ *
+ * @author smootp
+ *
+ */
+public class PostManifestTest {
+
+	File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("post-manifest", ".tsv");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	@Test
+	public void testKeptBetweenRuns() throws Exception {
+		PostManifest manifest = new PostManifest(file);
+		manifest.record("Main/Posted", "aaa", PostManifest.POSTED);
+		manifest.record("Main/Unchanged", "bbb", PostManifest.UNCHANGED);
+		manifest.record("Main/Failed", "ccc", PostManifest.FAILED);
+		manifest.close();
+
+		PostManifest nextRun = new PostManifest(file);
+		assertEquals(3, nextRun.size());
+		assertTrue(nextRun.isUpToDate("Main/Posted", "aaa"));
+		assertTrue(nextRun.isUpToDate("Main/Unchanged", "bbb"));
+		assertFalse(nextRun.isUpToDate("Main/Posted", "changed"));
+		assertFalse(nextRun.isUpToDate("Main/Failed", "ccc"));
+		assertFalse(nextRun.isUpToDate("Main/New", "ddd"));
+		nextRun.close();
+	}
+
+	@Test
+	public void testTornLineIgnored() throws Exception {
+		PostManifest manifest = new PostManifest(file);
+		manifest.record("Main/Posted", "aaa", PostManifest.POSTED);
+		manifest.close();
+		FileUtils.writeStringToFile(file, "Main/Torn\tbb", "UTF-8", true);
+
+		PostManifest nextRun = new PostManifest(file);
+		assertEquals(1, nextRun.size());
+		assertTrue(nextRun.isUpToDate("Main/Posted", "aaa"));
+		assertFalse(nextRun.isUpToDate("Main/Torn", "bb"));
+
+		// the next line starts on a line of its own
+		nextRun.record("Main/Next", "ccc", PostManifest.POSTED);
+		nextRun.close();
+		PostManifest thirdRun = new PostManifest(file);
+		assertEquals(2, thirdRun.size());
+		assertTrue(thirdRun.isUpToDate("Main/Next", "ccc"));
+		thirdRun.close();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		PostManifest manifest = new PostManifest(file);
+		for (int i = 0; i < 10; i++) {
+			manifest.record("Main/Page", "sha" + i, PostManifest.POSTED);
+		}
+		manifest.close();
+		assertEquals(10, FileUtils.readLines(file, "UTF-8").size());
+
+		PostManifest nextRun = new PostManifest(file);
+		assertEquals(1, FileUtils.readLines(file, "UTF-8").size());
+		assertTrue(nextRun.isUpToDate("Main/Page", "sha9"));
+		nextRun.close();
+	}
+}
@@ -0,0 +1,75 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.gitub.pm2media.RecentChanges;
+import org.gitub.pm2media.WikiParams;
+import org.junit.Test;
+
+/**
+ * Tests reading changed articles from the recent changes page and from the
+ * file names in wiki.d.
+ *
+ * @author smootp
+ *
+ */
+public class RecentChangesTest {
+
+	final String wikiURL = "http://www.pmwiki.org/testwiki/pmwiki.php";
+
+	final TimeZone berlin = TimeZone.getTimeZone("Europe/Berlin");
+
+	final RecentChanges recentChanges = new RecentChanges(new WikiParams().withURL(wikiURL)).withTimeZone(berlin);
+
+	final String source = "* [[Main.Guide]]  . . . March 05, 2014, at 10:15 AM by [[~Editor]]: typos\n"
+			+ "* [[Other/Page]]  . . . March 05, 2014, at 09:40 AM by [[~Editor]]: \r\n"
+			+ "(:comment not an entry:)\n"
+			+ "* [[Main.Broken]]  . . . some day\n"
+			+ "* [[Main.HomePage]]  . . . March 04, 2014, at 11:00 PM by [[~Editor]]: new\n";
+
+	private long time(final int day, final int hour, final int minute) {
+		Calendar calendar = Calendar.getInstance(berlin);
+		calendar.clear();
+		calendar.set(2014, Calendar.MARCH, day, hour, minute);
+		return calendar.getTimeInMillis();
+	}
+
+	@Test
+	public void testChangesSince() {
+		Set<String> links = recentChanges.parseRecentChanges(source, time(5, 9, 40));
+		List<String> expected = new ArrayList<String>();
+		expected.add(wikiURL + "/Main/Guide");
+		expected.add(wikiURL + "/Other/Page");
+		assertEquals(expected, new ArrayList<String>(links));
+	}
+
+	@Test
+	public void testParsingStopsAtOlderEntry() {
+		assertEquals(3, recentChanges.parseRecentChanges(source, time(4, 23, 0)).size());
+		assertTrue(recentChanges.parseRecentChanges(source, time(5, 10, 16)).isEmpty());
+	}
+
+	@Test
+	public void testTimeZone() {
+		// 10:15 in Berlin is 09:15 UTC
+		RecentChanges utc = new RecentChanges(new WikiParams().withURL(wikiURL)).withTimeZone(TimeZone.getTimeZone("UTC"));
+		assertEquals(1, utc.parseRecentChanges(source, time(5, 11, 0)).size());
+		assertTrue(recentChanges.parseRecentChanges(source, time(5, 11, 0)).isEmpty());
+	}
+
+	@Test
+	public void testLinkForPageFile() {
+		assertEquals(wikiURL + "/Main/HomePage", recentChanges.getLinkForPageFile("Main.HomePage"));
+		assertNull(recentChanges.getLinkForPageFile(".flock"));
+		assertNull(recentChanges.getLinkForPageFile("Main.HomePage,del-1394012345"));
+		assertNull(recentChanges.getLinkForPageFile("Main.HomePage.bak"));
+		assertNull(recentChanges.getLinkForPageFile("Main."));
+		assertNull(recentChanges.getLinkForPageFile("README"));
+	}
+}
@@ -0,0 +1,70 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.gitub.pm2media.RetryQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests retrying failed articles and the dead-letter file.
+ *
+ * @author smootp
+ *
+ */
+public class RetryQueueTest {
+
+	File deadLetterFile;
+
+	@Before
+	public void setUp() throws Exception {
+		deadLetterFile = File.createTempFile("dead-letter", ".tsv");
+		deadLetterFile.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		deadLetterFile.delete();
+		new File(deadLetterFile.getPath() + ".old").delete();
+	}
+
+	@Test
+	public void testRetryAfterDelay() throws Exception {
+		RetryQueue queue = new RetryQueue(deadLetterFile).withBaseDelayMillis(200);
+		queue.failed("http://wiki/pmwiki.php/Main/Page", "timeout");
+
+		assertNull(queue.poll());
+		assertFalse(queue.isEmpty());
+		long start = System.currentTimeMillis();
+		assertEquals("http://wiki/pmwiki.php/Main/Page", queue.take());
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		assertTrue(queue.isEmpty());
+		assertNull(queue.take());
+	}
+
+	@Test
+	public void testDeadLetterAsWorkList() throws Exception {
+		RetryQueue queue = new RetryQueue(deadLetterFile)
+				.withMaxAttempts(3)
+				.withBaseDelayMillis(1);
+		for (int i = 0; i < 3; i++) {
+			queue.failed("http://wiki/pmwiki.php/Main/Broken", "HTTP 500\nInternal error");
+			queue.failed("http://wiki/pmwiki.php/Main/Flaky", "timeout");
+			queue.take();
+			queue.take();
+		}
+		assertEquals(2, queue.getDeadLetterCount());
+		assertEquals(2, FileUtils.readLines(deadLetterFile, "UTF-8").size());
+
+		Set<String> workList = RetryQueue.readWorkList(deadLetterFile);
+		assertEquals(2, workList.size());
+		assertTrue(workList.contains("http://wiki/pmwiki.php/Main/Broken"));
+		assertFalse(deadLetterFile.exists());
+		assertTrue(new File(deadLetterFile.getPath() + ".old").exists());
+	}
+}
@@ -0,0 +1,101 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.gitub.pm2media.Article;
+import org.gitub.pm2media.SqlDumpWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the rows written by SqlDumpWriter.  No MySQL is available to the
+ * tests, so the statements are checked as text.
+ *
+ * @author smootp
+ *
+ */
+public class SqlDumpWriterTest {
+
+	File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("pm2media-sql", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Test
+	public void testInserts() throws Exception {
+		File file = new File(directory, "dump.sql");
+		SqlDumpWriter writer = new SqlDumpWriter(file, false)
+				.withFirstId(100)
+				.withBatchSize(2)
+				.withTablePrefix("mw_");
+		writer.write(new Article("Main", "Home page", "It's\nhere"));
+		writer.write(new Article("Main", "Second", "Two"));
+		writer.write(new Article("Main", "Third", "Three"));
+		writer.close();
+
+		String sql = FileUtils.readFileToString(file, "UTF-8");
+		// two batches of five tables
+		assertEquals(10, count(sql, "INSERT INTO "));
+		assertEquals(2, count(sql, "INSERT INTO mw_page "));
+		assertTrue(sql.contains("(102,'It\\'s\\nhere','utf-8')"));
+		assertTrue(sql.contains("(103,9,'" + sha1("It's\nhere") + "',1,'tt:102')"));
+		assertTrue(sql.contains("(100,0,'Main/Home_page',0,1,"));
+		assertTrue(sql.contains(",101,9,NULL)"));
+		assertTrue(sql.contains("(101,100,1,1,"));
+		assertTrue(sql.contains("(101,1,103,101)"));
+		// ids of the third article in the second batch
+		assertTrue(sql.contains("(108,0,'Main/Third',0,1,"));
+		assertTrue(sql.trim().endsWith("COMMIT;"));
+	}
+
+	@Test
+	public void testTabSeparated() throws Exception {
+		SqlDumpWriter writer = new SqlDumpWriter(directory, true);
+		writer.write(new Article("Main", "Page", "Tab\there"));
+		writer.close();
+
+		List<String> text = FileUtils.readLines(new File(directory, "text.tsv"), "UTF-8");
+		assertEquals(1, text.size());
+		assertEquals("3\tTab\\there\tutf-8", text.get(0));
+
+		String page = FileUtils.readLines(new File(directory, "page.tsv"), "UTF-8").get(0);
+		assertEquals(10, page.split("\t").length);
+		assertTrue(page.endsWith("\t\\N"));
+
+		String load = FileUtils.readFileToString(new File(directory, "load.sql"), "UTF-8");
+		assertEquals(5, count(load, "LOAD DATA LOCAL INFILE "));
+		assertTrue(load.contains("'slots.tsv' INTO TABLE slots"));
+	}
+
+	private static int count(final String text, final String part) {
+		int count = 0;
+		for (int i = text.indexOf(part); i != -1; i = text.indexOf(part, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+
+	private static String sha1(final String text) throws Exception {
+		String base36 = new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"))).toString(36);
+		while (base36.length() < 31) {
+			base36 = "0" + base36;
+		}
+		return base36;
+	}
+}
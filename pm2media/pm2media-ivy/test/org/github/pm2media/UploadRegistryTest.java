@@ -0,0 +1,127 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.FileUtils;
+
+import org.gitub.pm2media.UploadRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the on-disk set of uploaded files and its Bloom filter.
+ *
+ * @author smootp
+ *
+ */
+public class UploadRegistryTest {
+
+	File file;
+	File growFile;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("uploads", ".db");
+		file.delete();
+		growFile = new File(file.getPath() + ".grow");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+		growFile.delete();
+	}
+
+	@Test
+	public void testKeysAreKeptBetweenRuns() throws Exception {
+		UploadRegistry registry = new UploadRegistry(file, 100);
+		assertTrue(registry.add("http://mediawiki/index.php/a.png\tabc"));
+		assertFalse(registry.add("http://mediawiki/index.php/a.png\tabc"));
+		assertTrue(registry.contains("http://mediawiki/index.php/a.png\tabc"));
+		assertFalse(registry.contains("http://mediawiki/index.php/a.png\tdef"));
+		registry.close();
+
+		UploadRegistry nextRun = new UploadRegistry(file, 100);
+		assertTrue(nextRun.contains("http://mediawiki/index.php/a.png\tabc"));
+		assertFalse(nextRun.contains("http://mediawiki/index.php/b.png\tabc"));
+		assertEquals(1, nextRun.size());
+		nextRun.close();
+	}
+
+	@Test
+	public void testTableGrowsBeyondExpectedKeys() throws Exception {
+		UploadRegistry registry = new UploadRegistry(file, 100);
+		long initialLength = file.length();
+		for (int i = 0; i < 3000; i++) {
+			assertTrue(registry.add("file" + i));
+		}
+		assertTrue(file.length() > initialLength);
+		assertFalse(growFile.exists());
+		assertEquals(3000, registry.size());
+		for (int i = 0; i < 3000; i++) {
+			assertTrue(registry.contains("file" + i));
+		}
+		for (int i = 3000; i < 4000; i++) {
+			assertFalse(registry.contains("file" + i));
+		}
+		registry.close();
+	}
+
+	@Test
+	public void testKeysOfAnotherInstanceAreSeen() throws Exception {
+		UploadRegistry first = new UploadRegistry(file, 100);
+		UploadRegistry second = new UploadRegistry(file, 100);
+
+		first.add("logo.png\tabc");
+		// not in the second instance's filter, found on disk
+		assertTrue(second.contains("logo.png\tabc"));
+		assertFalse(second.contains("photo.jpg\tdef"));
+		second.add("photo.jpg\tdef");
+		assertTrue(first.contains("photo.jpg\tdef"));
+		assertEquals(2, first.size());
+
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testGrowthOfDeadProcessIsCompleted() throws Exception {
+		UploadRegistry registry = new UploadRegistry(file, 100);
+		for (int i = 0; i < 100; i++) {
+			registry.add("file" + i);
+		}
+		registry.close();
+
+		// the process died while copying the grown table over the table
+		FileUtils.copyFile(file, growFile);
+		RandomAccessFile torn = new RandomAccessFile(file, "rw");
+		torn.seek(32);
+		torn.write(new byte[(int) file.length() / 2]);
+		torn.close();
+
+		UploadRegistry nextRun = new UploadRegistry(file, 100);
+		assertFalse(growFile.exists());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(nextRun.contains("file" + i));
+		}
+		nextRun.close();
+	}
+
+	@Test
+	public void testIncompleteGrowthIsDiscarded() throws Exception {
+		UploadRegistry registry = new UploadRegistry(file, 100);
+		registry.add("logo.png\tabc");
+
+		// the process died while writing the grown table, before its header
+		FileUtils.writeByteArrayToFile(growFile, new byte[4096]);
+
+		assertTrue(registry.contains("logo.png\tabc"));
+		assertFalse(growFile.exists());
+		assertEquals(1, registry.size());
+		registry.close();
+	}
+}
@@ -0,0 +1,120 @@
+package org.github.pm2media;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.gitub.pm2media.Article;
+import org.gitub.pm2media.XmlDumpWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Tests the MediaWiki export format written by XmlDumpWriter.
+ *
+ * @author smootp
+ *
+ */
+public class XmlDumpWriterTest {
+
+	File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("pm2media-dump", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Test
+	public void testSingleFile() throws Exception {
+		XmlDumpWriter writer = new XmlDumpWriter(new File(directory, "dump.xml"));
+		writer.write(new Article("Main", "HomePage", "Welcome\f & <b>hello</b>"));
+		writer.write(new Article("Group", "Page", "Second page"));
+		writer.close();
+
+		assertEquals(1, writer.getFiles().length);
+		assertEquals(new File(directory, "dump.xml").getAbsoluteFile(), writer.getFiles()[0]);
+
+		Document document = parse(writer.getFiles()[0], false);
+		assertEquals("mediawiki", document.getDocumentElement().getTagName());
+		NodeList pages = document.getElementsByTagName("page");
+		assertEquals(2, pages.getLength());
+
+		Element first = (Element) pages.item(0);
+		assertEquals("Main/HomePage", text(first, "title"));
+		assertEquals("Welcome & <b>hello</b>", text(first, "text"));
+		assertEquals("22", ((Element) first.getElementsByTagName("text").item(0)).getAttribute("bytes"));
+		assertEquals(31, text(first, "sha1").length());
+		assertEquals("Group/Page", text((Element) pages.item(1), "title"));
+	}
+
+	@Test
+	public void testSha1MatchesMediaWiki() throws Exception {
+		XmlDumpWriter writer = new XmlDumpWriter(new File(directory, "dump.xml"));
+		writer.write(new Article("Main", "Empty", " "));
+		writer.close();
+
+		// sha1 of the empty string as stored by MediaWiki
+		assertEquals("phoiac9h4m842xq45sp7s6u21eteeq1",
+				text(parse(writer.getFiles()[0], false).getDocumentElement(), "sha1"));
+	}
+
+	@Test
+	public void testSplitAndGzip() throws Exception {
+		XmlDumpWriter writer = new XmlDumpWriter(new File(directory, "dump.xml"))
+				.withMaxFileSize(1)
+				.withGzip(true);
+		for (int i = 0; i < 3; i++) {
+			writer.write(new Article("Main", "Page" + i, "Text " + i));
+		}
+		writer.close();
+
+		File[] files = writer.getFiles();
+		assertEquals(3, files.length);
+		assertEquals("dump-0001.xml.gz", files[0].getName());
+		assertEquals("dump-0003.xml.gz", files[2].getName());
+		for (int i = 0; i < 3; i++) {
+			Document document = parse(files[i], true);
+			assertEquals("Main/Page" + i, text(document.getDocumentElement(), "title"));
+		}
+	}
+
+	@Test
+	public void testEmptyDump() throws Exception {
+		XmlDumpWriter writer = new XmlDumpWriter(new File(directory, "dump.xml"));
+		writer.close();
+
+		assertEquals(0, parse(writer.getFiles()[0], false).getElementsByTagName("page").getLength());
+	}
+
+	private static Document parse(final File file, final boolean gzip) throws Exception {
+		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		InputStream input = new FileInputStream(file);
+		try {
+			return builder.parse(gzip ? new GZIPInputStream(input) : input);
+		} finally {
+			input.close();
+		}
+	}
+
+	private static String text(final Element element, final String tagName) {
+		return element.getElementsByTagName(tagName).item(0).getTextContent();
+	}
+}